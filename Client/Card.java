@@ -35,6 +35,10 @@ public class Card implements Serializable {
         return this.name;
     }
 
+    public String getDescription() {
+        return this.description;
+    }
+
     public String getHistory() {
         return this.history;
     }
@@ -5,11 +5,14 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.NotBoundException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.gson.Gson;
@@ -50,6 +53,43 @@ public class ClientMain {
     /** Riferimento all'oggetto remoto del server */
     private static WorthInterface serverStub;
 
+    /** Identificativo della sessione ricevuto dal server con la login */
+    private static Long sessionId;
+
+    /**
+     * Flag dell'intestazione dei messaggi: segue l'identificativo della richiesta
+     * (il formato dei messaggi è descritto nella classe Frames del server)
+     */
+    private static final int HAS_ID_FLAG = 1 << 31;
+
+    /** Maschera per ricavare la dimensione del messaggio dall'intestazione */
+    private static final int SIZE_MASK = (1 << 30) - 1;
+
+    /**
+     * True se il client chiede al server di usare la codifica binaria dei
+     * messaggi (BinaryCodec) invece di JSON. Si disattiva avviando il client
+     * con l'argomento --codec=json.
+     */
+    private static boolean binaryCodec = true;
+
+    /** Identificativo da assegnare alla prossima richiesta inviata al server */
+    private static int nextRequestId = 0;
+
+    /**
+     * Risposte già ricevute dal server ma relative a richieste diverse da
+     * quella attesa, indicizzate per identificativo della richiesta
+     */
+    private static final HashMap<Integer, ClientServerMessage> pendingReplies = new HashMap<>();
+
+    /** Byte buffer riutilizzato per l'intestazione dei messaggi ricevuti dal server */
+    private static final ByteBuffer receiveHeaderBuffer = ByteBuffer.allocate(2 * Integer.BYTES);
+
+    /**
+     * Byte buffer riutilizzato per i messaggi da e verso il server. Viene
+     * riallocato (con capacità doppia) solo quando un messaggio non ci sta.
+     */
+    private static ByteBuffer ioBuffer = ByteBuffer.allocate(1024);
+
     /**
      * Main method
      */
@@ -63,6 +103,17 @@ public class ClientMain {
                 userLock.writeLock().unlock();
             }
         });
+        // Lettura degli argomenti da riga di comando
+        for (String arg : args) {
+            switch (arg) {
+                case "--codec=json" -> binaryCodec = false;
+                case "--codec=binary" -> binaryCodec = true;
+                default -> {
+                    System.err.println("Argomento non valido: " + arg + " (ammessi: --codec=json, --codec=binary)");
+                    return;
+                }
+            }
+        }
         // Inizializzazione di un BufferedReader per la lettura dei comandi da terminale
         InputStreamReader streamReader = new InputStreamReader(System.in);
         BufferedReader bufferedReader = new BufferedReader(streamReader);
@@ -117,8 +168,12 @@ public class ClientMain {
                             break;
                         }
                         // Potrebbe essersi già connesso nel caso di una login non riuscita
-                        if (!socketChannel.isConnected())
+                        if (!socketChannel.isConnected()) {
                             socketChannel.connect(new InetSocketAddress("127.0.0.1", TCPport));
+                            // Negoziazione della codifica dei messaggi
+                            if (binaryCodec)
+                                handshake();
+                        }
                         String nickname = words[1], password = words[2];
                         // Il metodo di login restituisce l'oggetto user
                         user = login(nickname, password);
@@ -129,7 +184,7 @@ public class ClientMain {
                             // esportazione dell'oggetto remoto del client
                             stub = (NotifyEventInterface) UnicastRemoteObject.exportObject(callbackObj, 0);
                             // registrazione alle callback per ricevere gli aggiornamenti sulla lista di utenti registrati
-                            serverStub.registerForCallback(stub);
+                            serverStub.registerForCallback(user.getNickname(), stub);
                         }
                     }
 
@@ -232,6 +287,16 @@ public class ClientMain {
                         showCards(projectName);
                     }
 
+                    case "show_summary" -> {
+                        if (words.length != 2) {
+                            displayLine("Il comando show_summary deve avere un argomento.");
+                            break;
+                        }
+                        String projectName = words[1];
+                        // Stampa del numero di carte in ogni lista del progetto
+                        showSummary(projectName);
+                    }
+
                     case "show_card" -> {
                         if (words.length != 3) {
                             displayLine("Il comando show_card deve avere due argomenti.");
@@ -262,6 +327,16 @@ public class ClientMain {
                         moveCard(projectName, cardName, sourceList, destList);
                     }
 
+                    case "import_cards" -> {
+                        if (words.length != 3) {
+                            displayLine("Il comando import_cards deve avere due argomenti.");
+                            break;
+                        }
+                        String projectName = words[1], fileName = words[2];
+                        // Aggiunta al progetto di tutte le carte elencate nel file
+                        importCards(projectName, fileName);
+                    }
+
                     case "get_card_history" -> {
                         if (words.length != 3) {
                             displayLine("Il comando get_card_history deve avere due argomenti.");
@@ -364,14 +439,16 @@ public class ClientMain {
             message.setNickname(nickname);
             message.setPassword(password);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 // Login riuscita
                 case OK -> {
                     displayLine("Accesso completato con successo, buon lavoro!");
+                    // Sessione da indicare nelle richieste successive
+                    sessionId = receivedMsg.getSessionId();
                     return receivedMsg.getUser();
                 }
                 // Utente non registrato
@@ -381,6 +458,7 @@ public class ClientMain {
                 // L'utente risulta già online
                 case ALREADY_ONLINE -> displayLine("L'utente " + nickname + " è già collegato.");
                 // Default
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -412,11 +490,11 @@ public class ClientMain {
             try {
                 // Costruzione del messaggio da inviare al server
                 ClientServerMessage message = new ClientServerMessage(Commands.LOGOUT);
-                message.setUser(user);
+                message.setSessionId(sessionId);
                 // Invio del messaggio
-                sendToServer(message);
+                int requestId = sendToServer(message);
                 // Ricezione del messaggio di risposta del server
-                ClientServerMessage receivedMsg = receiveFromServer();
+                ClientServerMessage receivedMsg = receiveFromServer(requestId);
                 // Interpretazione della reply ricevuta dal server
                 switch (receivedMsg.getReply()) {
                     case OK ->  {
@@ -430,6 +508,8 @@ public class ClientMain {
                         user.setOnline(false);
                     }
                     case UNKNOWN_ERROR -> System.err.println("\nErrore nella fase di logout.\n");
+                    case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                    case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                     default -> System.err.println("\nErrore: error code sbagliato.\n");
                 }
             } catch (IOException e) {
@@ -477,11 +557,11 @@ public class ClientMain {
         try {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.LIST_PROJECTS);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> {
@@ -491,6 +571,8 @@ public class ClientMain {
                     System.out.println('\n');
                 }
                 case UNKNOWN_ERROR -> System.err.println("\nErrore nel server.\n");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -511,17 +593,19 @@ public class ClientMain {
         try {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.CREATE_PROJECT);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             message.setProjectName(projectName);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Progetto creato con successo!");
                 case UNABLE_CREATE_PROJECT -> System.err.println("\nErrore del server.\n");
                 case PROJECT_EXISTS -> displayLine("Impossibile creare il progetto: esiste già un progetto con questo nome.");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -545,18 +629,20 @@ public class ClientMain {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.ADD_MEMBER);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             message.setNewMember(nickUser);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Membro aggiunto correttamente!");
                 case NOT_REGISTERED -> displayLine("L'utente " + nickUser + " non esiste.");
                 case ALREADY_MEMBER -> displayLine("L'utente " + nickUser + " è già membro del progetto.");
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -579,11 +665,11 @@ public class ClientMain {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.SHOW_MEMBERS);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> {
@@ -593,6 +679,8 @@ public class ClientMain {
                     System.out.println('\n');
                 }
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -615,11 +703,11 @@ public class ClientMain {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.SHOW_CARDS);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> {
@@ -629,6 +717,50 @@ public class ClientMain {
                     System.out.println('\n');
                 }
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
+                default -> System.err.println("\nErrore: error code sbagliato.\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("\nErrore sconosciuto.\n");
+        }
+    }
+
+    /**
+     * Stampa il riepilogo di un progetto, ovvero il numero di carte in ogni lista.
+     * Per farlo manda la richiesta al server, il quale risponde con un valore di
+     * Replies (che indica l'esito dell'operazione) e, in caso di successo, con il
+     * numero di carte delle liste TODO, INPROGRESS, TOBEREVISED e DONE, senza
+     * inviare le carte. Stampa a schermo il riepilogo in caso di successo oppure
+     * un messaggio di errore che dipende dal valore di Replies ricevuto.
+     * 
+     * @param projectName il nome del progetto di cui stampare il riepilogo
+     */
+    private static void showSummary(String projectName) {
+        try {
+            // Costruzione del messaggio da inviare al server
+            ClientServerMessage message = new ClientServerMessage(Commands.SHOW_SUMMARY);
+            message.setProjectName(projectName);
+            message.setSessionId(sessionId);
+            // Invio del messaggio
+            int requestId = sendToServer(message);
+            // Ricezione del messaggio di risposta del server
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
+            // Interpretazione della reply ricevuta dal server
+            switch (receivedMsg.getReply()) {
+                case OK -> {
+                    // Le liste nell'ordine in cui il server invia i contatori
+                    String[] lists = { "TODO", "INPROGRESS", "TOBEREVISED", "DONE" };
+                    ArrayList<Integer> counts = receivedMsg.getCardCounts();
+                    StringBuilder summary = new StringBuilder();
+                    for (int i = 0; i < lists.length && i < counts.size(); i++)
+                        summary.append(i > 0 ? ", " : "").append(lists[i]).append(": ").append(counts.get(i));
+                    displayLine("Riepilogo del progetto " + projectName + " - " + summary);
+                }
+                case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -653,17 +785,19 @@ public class ClientMain {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.SHOW_CARD);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             message.setCardName(cardName);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("" + receivedMsg.getCard());   // Stampa della carta
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
                 case NONEXISTENT_CARD -> displayLine("Non esiste nessuna carta di nome " + cardName + " nel progetto" + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -690,16 +824,18 @@ public class ClientMain {
             message.setProjectName(projectName);
             message.setCardName(cardName);
             message.setDescrizione(description);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Card aggiunta correttamente!");
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
                 case CARD_EXISTS -> displayLine("La card " + cardName + " esiste già nel progetto " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -728,11 +864,11 @@ public class ClientMain {
             message.setCardName(cardName);
             message.setListaPartenza(sourceList);
             message.setListaDestinazione(destList);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Card spostata correttamente da " + sourceList.toUpperCase() + " a " + destList.toUpperCase() + ".");
@@ -741,6 +877,75 @@ public class ClientMain {
                 case NONEXISTENT_CARD -> displayLine("La card " + cardName + " non è presente nella lista " + sourceList.toUpperCase() + ".");
                 case MOVE_FORBIDDEN -> displayLine("Vietato spostare la card da " + sourceList.toUpperCase() + " a " + destList.toUpperCase() + ".\n");
                 case CARD_EXISTS -> displayLine("La card " + cardName + " è già nella lista " + destList.toUpperCase() + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
+                default -> System.err.println("\nErrore: error code sbagliato.\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("\nErrore sconosciuto.\n");
+        }
+    }
+
+    /**
+     * Aggiunge a un progetto tutte le carte elencate in un file, una per riga nella
+     * forma "nome_carta descrizione". Le carte vengono inviate al server con
+     * un'unica richiesta BATCH all-or-nothing: se anche una sola carta non può
+     * essere aggiunta, il progetto resta invariato. Stampa un messaggio che dipende
+     * dall'esito dell'operazione.
+     * 
+     * @param projectName il nome del progetto a cui aggiungere le carte
+     * @param fileName    il nome del file con l'elenco delle carte
+     */
+    private static void importCards(String projectName, String fileName) {
+        // Lettura del file e costruzione dei sotto-comandi
+        ArrayList<ClientServerMessage> batch = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                String[] fields = line.split(" ", 2);
+                ClientServerMessage command = new ClientServerMessage(Commands.ADD_CARD);
+                command.setProjectName(projectName);
+                command.setCardName(fields[0]);
+                command.setDescrizione(fields.length == 2 ? fields[1].trim() : "");
+                batch.add(command);
+            }
+        } catch (IOException e) {
+            displayLine("Impossibile leggere il file " + fileName + ".");
+            return;
+        }
+        try {
+            // Costruzione del messaggio da inviare al server
+            ClientServerMessage message = new ClientServerMessage(Commands.BATCH);
+            message.setBatch(batch);
+            message.setAllOrNothing(true);
+            message.setSessionId(sessionId);
+            // Invio del messaggio
+            int requestId = sendToServer(message);
+            // Ricezione del messaggio di risposta del server
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
+            // Interpretazione della reply ricevuta dal server
+            switch (receivedMsg.getReply()) {
+                case OK -> displayLine(batch.size() + " card aggiunte correttamente!");
+                case BATCH_ABORTED -> {
+                    // Ricerca della carta che ha causato l'annullamento
+                    ArrayList<Replies> replies = receivedMsg.getBatchReplies();
+                    for (int i = 0; i < replies.size(); i++) {
+                        switch (replies.get(i)) {
+                            case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
+                            case CARD_EXISTS -> displayLine("La card " + batch.get(i).getCardName() + " esiste già nel progetto " + projectName + ". Nessuna card aggiunta.");
+                            default -> {
+                                continue;
+                            }
+                        }
+                        break;
+                    }
+                }
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -765,17 +970,19 @@ public class ClientMain {
             // Chiedo al server di restituirmi la carta (comando SHOW_CARD), e la history la prendo da lì
             ClientServerMessage message = new ClientServerMessage(Commands.SHOW_CARD);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             message.setCardName(cardName);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Storia: " + receivedMsg.getCard().getHistory());  // stampa la storia della carta
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
                 case NONEXISTENT_CARD -> displayLine("Non esiste nessuna carta di nome " + cardName + " nel progetto " + projectName + ".");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -852,16 +1059,18 @@ public class ClientMain {
             // Costruzione del messaggio da inviare al server
             ClientServerMessage message = new ClientServerMessage(Commands.CANCEL_PROJECT);
             message.setProjectName(projectName);
-            message.setNickname(user.getNickname());
+            message.setSessionId(sessionId);
             // Invio del messaggio
-            sendToServer(message);
+            int requestId = sendToServer(message);
             // Ricezione del messaggio di risposta del server
-            ClientServerMessage receivedMsg = receiveFromServer();
+            ClientServerMessage receivedMsg = receiveFromServer(requestId);
             // Interpretazione della reply ricevuta dal server
             switch (receivedMsg.getReply()) {
                 case OK -> displayLine("Progetto cancellato correttamente.");
                 case NONEXISTENT_PROJECT -> displayLine("Non sei membro di un progetto di nome " + projectName + ".");
                 case CANCEL_FORBIDDEN -> displayLine("Impossibile cancellare il progetto: le carte non sono tutte nella lista DONE.");
+                case SERVER_BUSY -> displayLine("Il server è sovraccarico, riprova tra poco.");
+                case NOT_LOGGED_IN -> displayLine("Sessione non valida, effettua di nuovo il login.");
                 default -> System.err.println("\nErrore: error code sbagliato.\n");
             }
         } catch (IOException e) {
@@ -875,72 +1084,164 @@ public class ClientMain {
      * oggetti di tipo ClientServerMessage che contengono tutte le informazioni 
      * che servono al server per soddisfare una richiesta del client (anch'essa
      * contenuta in un campo del messaggio). Il messaggio viene serializzato, e 
-     * vengono inviati al server i bytes contenuti in due byte buffers: uno contenente
-     * i byte della stringa ottenuta con la serializzazione del messaggio, l'altro 
-     * contenente il numero di bytes del precedente (il quale servirà al server per 
-     * allocare un byte buffer grande abbastanza per leggere tutto il messaggio).
+     * vengono inviati al server un'intestazione, contenente il numero di bytes
+     * della stringa ottenuta con la serializzazione (il quale servirà al server per 
+     * allocare un byte buffer grande abbastanza per leggere tutto il messaggio) e
+     * l'identificativo della richiesta, seguita dai bytes della stringa stessa.
+     * Il metodo non attende la risposta: è possibile inviare più richieste di
+     * seguito e ricevere poi le risposte con receiveFromServer().
      * 
      * @param message il messaggio da inviare
+     * @return l'identificativo assegnato alla richiesta
      * @throws IOException in caso di errori di I/O durante la chiamata alla write()
      */
-    private static void sendToServer(ClientServerMessage message) throws IOException {
-        Gson gson = new Gson();
-        // Serializzazione del messaggio
-        String str = gson.toJson(message);
-        // Codifica della stringa in un array di byte
-        byte[] byteArray = str.getBytes(StandardCharsets.UTF_8);
-        // Allocazione del byte buffer utilizzato per inviare il numero di bytes del messaggio serializzato
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        // Inizializzazione con la lunghezza dell'array di byte
-        sizeBuffer.putInt(byteArray.length);
-        // Preparazione del buffer alla scrittura dopo la lettura
-        sizeBuffer.flip();
-        // Creazione del buffer contenente i bytes del messaggio serializzato
-        ByteBuffer dataBuffer = ByteBuffer.wrap(byteArray);
-        // Invio dei bytes contenuti nei buffers
-        socketChannel.write(new ByteBuffer[]{sizeBuffer, dataBuffer});
+    private static int sendToServer(ClientServerMessage message) throws IOException {
+        // Identificativo della richiesta (sempre non negativo)
+        int requestId = nextRequestId;
+        nextRequestId = (nextRequestId + 1) & Integer.MAX_VALUE;
+        byte[] byteArray;
+        if (binaryCodec) {
+            // Codifica binaria del messaggio
+            byteArray = BinaryCodec.encode(message);
+        } else {
+            Gson gson = new Gson();
+            // Serializzazione del messaggio
+            String str = gson.toJson(message);
+            // Codifica della stringa in un array di byte
+            byteArray = str.getBytes(StandardCharsets.UTF_8);
+        }
+        // Buffer riutilizzato, contenente l'intestazione seguita dai bytes del messaggio serializzato
+        ByteBuffer frame = ensureIoBuffer(2 * Integer.BYTES + byteArray.length);
+        frame.putInt(HAS_ID_FLAG | byteArray.length);
+        frame.putInt(requestId);
+        frame.put(byteArray);
+        // Preparazione del buffer alla lettura dopo la scrittura
+        frame.flip();
+        // Invio dei bytes contenuti nel buffer
+        while (frame.hasRemaining())
+            socketChannel.write(frame);
+        return requestId;
     }
 
     /**
-     * Metodo ausiliario per la ricezione di un messaggio dal server. I messaggi 
-     * sono oggetti di tipo ClientServerMessage che contengono tutte le informazioni
-     * che servono al client, in risposta ad una sua richiesta. Per prima cosa 
-     * vengono letti dei bytes in un byte buffer, i quali sono la codifica della 
-     * dimensione del vero e proprio messaggio. Viene quindi allocato un nuovo byte 
-     * buffer della dimensione ricevuta, per contenere tutto il messaggio. Infine, si 
-     * leggono i bytes sul bytebuffer, si ricostruisce la stringa che corrisponde al 
+     * Metodo ausiliario per la ricezione della risposta a una richiesta. Se la
+     * risposta è già arrivata (mentre se ne aspettava un'altra) la restituisce
+     * subito, altrimenti legge i messaggi dal server finché non arriva quella
+     * cercata, mettendo da parte le altre.
+     * 
+     * @param requestId l'identificativo restituito da sendToServer()
+     * @return il messaggio di risposta, ovvero un oggetto di tipo ClientServerMessage
+     * @throws IOException in caso di errori di I/O durante una chiamata alla read()
+     */
+    private static ClientServerMessage receiveFromServer(int requestId) throws IOException {
+        ClientServerMessage reply = pendingReplies.remove(requestId);
+        while (reply == null) {
+            // Lettura dell'intestazione del messaggio
+            receiveHeaderBuffer.clear().limit(Integer.BYTES);
+            readFully(receiveHeaderBuffer);
+            int header = receiveHeaderBuffer.getInt(0);
+            // Lettura dell'identificativo della richiesta, se presente
+            int replyId = requestId;
+            if ((header & HAS_ID_FLAG) != 0) {
+                receiveHeaderBuffer.limit(2 * Integer.BYTES);
+                readFully(receiveHeaderBuffer);
+                replyId = receiveHeaderBuffer.getInt(Integer.BYTES);
+            }
+            ClientServerMessage message = readMessage(header & SIZE_MASK);
+            if (replyId == requestId)
+                reply = message;
+            else
+                pendingReplies.put(replyId, message);
+        }
+        return reply;
+    }
+
+    /**
+     * Metodo ausiliario per la lettura di un messaggio dal server, di cui è già
+     * stata letta l'intestazione. I messaggi sono oggetti di tipo
+     * ClientServerMessage che contengono tutte le informazioni che servono al
+     * client, in risposta ad una sua richiesta. Il messaggio viene letto in un
+     * byte buffer riutilizzato tra una chiamata e l'altra (e ingrandito solo se
+     * necessario). Infine, si ricostruisce la stringa che corrisponde al 
      * messaggio serializzato e si fa un'operazione di deserializzazione, in modo da 
      * ottenere il messaggio.
      * 
+     * @param size la dimensione in bytes del messaggio
      * @return il messaggio, ovvero un oggetto di tipo ClientServerMessage
      * @throws IOException in caso di errori di I/O durante una chiamata alla read()
      */
-    private static ClientServerMessage receiveFromServer() throws IOException {
-        // Allocazione del byte buffer utilizzato per la lettura della dimensione del messaggio in bytes
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        // Lettura della dimensione del messaggio in bytes
-        socketChannel.read(sizeBuffer);
-        // Preparazione del buffer alla scrittura dopo la lettura
-        sizeBuffer.flip();
-        // Decodifica della dimensione
-        int size = sizeBuffer.getInt();
-        // Allocazione del byte buffer utilizzato per la lettura del messaggio, con capacità uguale alla dimensione letta
-        ByteBuffer dataBuffer = ByteBuffer.allocate(size);
+    private static ClientServerMessage readMessage(int size) throws IOException {
+        // Buffer per la lettura del messaggio, con limite uguale alla dimensione letta
+        ByteBuffer dataBuffer = ensureIoBuffer(size);
+        dataBuffer.limit(size);
         // Lettura del messaggio nel byte buffer
-        socketChannel.read(dataBuffer);
+        readFully(dataBuffer);
         // Preparazione del buffer alla scrittura dopo la lettura
         dataBuffer.flip();
+        // Decodifica del messaggio binario
+        if (binaryCodec)
+            return BinaryCodec.decode(dataBuffer);
         // Ricostruzione della stringa corrispondente al messaggio serializzato
-        StringBuilder stringBuilder = new StringBuilder();
-        while (dataBuffer.hasRemaining()) {
-            stringBuilder.append(StandardCharsets.UTF_8.decode(dataBuffer).toString());
-        }
-        String received = stringBuilder.toString();
+        String received = StandardCharsets.UTF_8.decode(dataBuffer).toString();
         // Deserializzazione del messaggio
         Gson gson = new Gson();
         return gson.fromJson(received, ClientServerMessage.class);
     }
 
+    /**
+     * Metodo ausiliario per la negoziazione della codifica binaria dei messaggi:
+     * invia al server il messaggio di handshake, come primo messaggio della
+     * connessione, e attende che il server lo rimandi come conferma.
+     * 
+     * @throws IOException in caso di errori di I/O o di risposta inattesa
+     */
+    private static void handshake() throws IOException {
+        byte[] handshake = BinaryCodec.HANDSHAKE;
+        // Invio del messaggio di handshake, senza identificativo
+        ByteBuffer frame = ensureIoBuffer(Integer.BYTES + handshake.length);
+        frame.putInt(handshake.length);
+        frame.put(handshake);
+        frame.flip();
+        while (frame.hasRemaining())
+            socketChannel.write(frame);
+        // Lettura della conferma del server
+        receiveHeaderBuffer.clear().limit(Integer.BYTES);
+        readFully(receiveHeaderBuffer);
+        int size = receiveHeaderBuffer.getInt(0) & SIZE_MASK;
+        ByteBuffer reply = ensureIoBuffer(size);
+        reply.limit(size);
+        readFully(reply);
+        reply.flip();
+        if (!BinaryCodec.isHandshake(reply))
+            throw new IOException("Il server non supporta la codifica binaria");
+    }
+
+    /**
+     * Metodo ausiliario che legge dal server finché il buffer non è pieno
+     *
+     * @param buffer il buffer da riempire
+     * @throws IOException in caso di errori di I/O o di chiusura della connessione
+     */
+    private static void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (socketChannel.read(buffer) == -1)
+                throw new IOException("Connessione chiusa dal server");
+    }
+
+    /**
+     * Metodo ausiliario che restituisce il buffer riutilizzato, svuotato e con
+     * capacità di almeno size bytes
+     *
+     * @param size il numero di bytes che il buffer deve poter contenere
+     * @return il buffer, pronto per la scrittura
+     */
+    private static ByteBuffer ensureIoBuffer(int size) {
+        if (ioBuffer.capacity() < size)
+            ioBuffer = ByteBuffer.allocate(Math.max(size, ioBuffer.capacity() * 2));
+        ioBuffer.clear();
+        return ioBuffer;
+    }
+
     /**
      * Metodo per stampare gli elementi di una lista
      * 
@@ -992,9 +1293,11 @@ public class ClientMain {
         display("add_member [project_name] [nickname] : Aggiunge l'utente \"nickname\" ai membri del progetto \"project_name\".");
         display("show_members [project_name] : Mostra la lista dei membri del progetto \"project_name\".");
         display("show_cards [project_name] : Mostra tutte le card del progetto \"project_name\".");
+        display("show_summary [project_name] : Mostra il numero di card in ogni lista del progetto \"project_name\".");
         display("show_card [project_name] [card_name] : Recupera le informazioni della card \"card_name\" del progetto \"project_name\".");
         display("add_card [project_name] [card_name] [description] : Aggiunge la card \"card_name\" con descrizione \"description\" al progetto \"project_name\" (description non deve contenere spazi).");
         display("move_card [project_name] [card_name] [source_list] [dest_list] : Sposta la card \"card_name\" dalla lista di partenza \"source_list\" alla lista di destinazione \"dest_list\" del progetto \"project_name\".");
+        display("import_cards [project_name] [file] : Aggiunge al progetto \"project_name\" tutte le card elencate nel file \"file\", una per riga nella forma \"card_name description\" (nessuna card viene aggiunta se una di esse esiste già).");
         display("get_card_history [project_name] [card_name] : Mostra tutti gli spostamenti della card \"card_name\" all'interno delle liste del progetto \"project_name\".");
         display("send [project_name] [message] : Invia il messaggio \"message\" alla chat del progetto \"project_name\" (il messaggio può contenere spazi).");
         display("receive [project_name] : Visualizza i messaggi della chat del progetto \"project_name\".");
@@ -13,5 +13,7 @@ public enum Commands {
     SHOW_CARD,
     ADD_CARD,
     MOVE_CARD,
-    CANCEL_PROJECT
+    CANCEL_PROJECT,
+    BATCH,          // Lista di sotto-comandi (ADD_MEMBER, ADD_CARD, MOVE_CARD) in un unico messaggio
+    SHOW_SUMMARY    // Numero di carte in ogni lista di un progetto
 }
\ No newline at end of file
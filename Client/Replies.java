@@ -18,5 +18,9 @@ public enum Replies {
     MOVE_FORBIDDEN,         // Impossibile spostare la carta nella lista scelta (vincolo)
     UNKNOWN_ERROR,          // Errore che non dovrebbe verificarsi mai
     CANCEL_FORBIDDEN,       // Non è possibile cancellare il progetto (non tutte le carte sono nella lista DONE)
-    UNABLE_CREATE_PROJECT   // Impossibile creare un progetto perché sono esauriti gli indirizzi multicast a disposizione
+    UNABLE_CREATE_PROJECT,  // Impossibile creare un progetto perché sono esauriti gli indirizzi multicast a disposizione
+    BATCH_FORBIDDEN,        // Batch non valido (sotto-comando non ammesso, o all-or-nothing su più progetti)
+    BATCH_ABORTED,          // Batch all-or-nothing annullato perché un sotto-comando è fallito
+    SERVER_BUSY,            // Server sovraccarico, la richiesta non è stata eseguita: riprovare più tardi
+    NOT_LOGGED_IN           // Richiesta su una connessione senza login (o con un identificativo di sessione sbagliato)
 }
\ No newline at end of file
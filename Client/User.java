@@ -49,6 +49,24 @@ public class User implements Serializable {
         this.chats = new ArrayList<>();
     }
 
+    /**
+     * Costruttore utilizzato dalla codifica binaria dei messaggi (BinaryCodec),
+     * che ricostruisce l'utente con tutto il suo stato
+     * 
+     * @param nickname il nickname dell'utente
+     * @param password la password dell'utente
+     * @param online   true se l'utente è online
+     * @param users    la lista degli utenti registrati
+     * @param chats    la lista delle chat dell'utente
+     */
+    public User(String nickname, String password, boolean online, ArrayList<User> users, ArrayList<Chat> chats) {
+        this.nickname = nickname;
+        this.password = password;
+        this.online = online;
+        this.users = users;
+        this.chats = chats;
+    }
+
     public String getNickname() {
         return this.nickname;
     }
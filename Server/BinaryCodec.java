@@ -0,0 +1,441 @@
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Codifica binaria compatta dei messaggi, alternativa al JSON di Gson. Viene
+ * usata su una connessione solo se il client la richiede con il frame di
+ * handshake (HANDSHAKE) come primo messaggio, e il server lo conferma inviando
+ * lo stesso frame; i client che non lo fanno continuano a usare JSON.
+ * <p>
+ * Un messaggio codificato inizia con un varint (LEB128 senza segno) che indica
+ * quali campi sono presenti: i campi null (o false) non occupano spazio, quindi
+ * ogni comando contiene solo i campi che usa. Seguono i campi presenti, nell'ordine
+ * dei bit. Le enum sono codificate con il loro ordinale come varint, le stringhe
+ * e le liste con la lunghezza come varint seguita dagli elementi. I progetti
+ * della risposta a LIST_PROJECTS vengono codificati con il solo nome, l'unica
+ * informazione che serve al client. La classe è thread safe.
+ */
+public class BinaryCodec {
+
+    /** Payload del frame di handshake: "WRTB" seguito dalla versione della codifica */
+    public static final byte[] HANDSHAKE = { 'W', 'R', 'T', 'B', 1 };
+
+    /* Bit della maschera dei campi presenti, nell'ordine di codifica */
+    private static final int COMANDO = 1;
+    private static final int REPLY = 1 << 1;
+    private static final int USER = 1 << 2;
+    private static final int PROJECTS = 1 << 3;
+    private static final int MEMBERS = 1 << 4;
+    private static final int CARDS = 1 << 5;
+    private static final int CARD = 1 << 6;
+    private static final int NICKNAME = 1 << 7;
+    private static final int PASSWORD = 1 << 8;
+    private static final int PROJECT_NAME = 1 << 9;
+    private static final int NEW_MEMBER = 1 << 10;
+    private static final int CARD_NAME = 1 << 11;
+    private static final int DESCRIZIONE = 1 << 12;
+    private static final int LISTA_PARTENZA = 1 << 13;
+    private static final int LISTA_DESTINAZIONE = 1 << 14;
+    private static final int BATCH = 1 << 15;
+    private static final int ALL_OR_NOTHING = 1 << 16;
+    private static final int BATCH_REPLIES = 1 << 17;
+    private static final int SESSION_ID = 1 << 18;
+    private static final int CARD_COUNTS = 1 << 19;
+
+    /** Le costanti delle enum, indicizzate per ordinale */
+    private static final Commands[] COMMANDS = Commands.values();
+    private static final Replies[] REPLIES = Replies.values();
+
+    /**
+     * Controlla se il payload di un frame è il messaggio di handshake. Non
+     * modifica la posizione del buffer.
+     *
+     * @param payload il buffer contenente il payload, pronto per la lettura
+     * @return true se il payload è il messaggio di handshake
+     */
+    public static boolean isHandshake(ByteBuffer payload) {
+        if (payload.remaining() != HANDSHAKE.length)
+            return false;
+        for (int i = 0; i < HANDSHAKE.length; i++) {
+            if (payload.get(payload.position() + i) != HANDSHAKE[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Codifica un messaggio
+     *
+     * @param message il messaggio da codificare
+     * @return i bytes del messaggio codificato
+     */
+    public static byte[] encode(ClientServerMessage message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeMessage(out, message);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodifica un messaggio, consumando il buffer
+     *
+     * @param in il buffer contenente il messaggio codificato, pronto per la lettura
+     * @return il messaggio decodificato
+     * @throws IllegalArgumentException se il messaggio non è codificato correttamente
+     */
+    public static ClientServerMessage decode(ByteBuffer in) {
+        try {
+            return readMessage(in);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Messaggio binario troncato o non valido", e);
+        }
+    }
+
+    /**
+     * Metodo ausiliario che scrive un messaggio (anche come elemento di un batch)
+     *
+     * @param out     lo stream su cui scrivere
+     * @param message il messaggio
+     */
+    private static void writeMessage(ByteArrayOutputStream out, ClientServerMessage message) {
+        // Maschera dei campi presenti
+        int mask = 0;
+        if (message.getComando() != null) mask |= COMANDO;
+        if (message.getReply() != null) mask |= REPLY;
+        if (message.getUser() != null) mask |= USER;
+        if (message.getProjects() != null) mask |= PROJECTS;
+        if (message.getMembers() != null) mask |= MEMBERS;
+        if (message.getCards() != null) mask |= CARDS;
+        if (message.getCard() != null) mask |= CARD;
+        if (message.getNickname() != null) mask |= NICKNAME;
+        if (message.getPassword() != null) mask |= PASSWORD;
+        if (message.getProjectName() != null) mask |= PROJECT_NAME;
+        if (message.getNewMember() != null) mask |= NEW_MEMBER;
+        if (message.getCardName() != null) mask |= CARD_NAME;
+        if (message.getDescrizione() != null) mask |= DESCRIZIONE;
+        if (message.getListaPartenza() != null) mask |= LISTA_PARTENZA;
+        if (message.getListaDestinazione() != null) mask |= LISTA_DESTINAZIONE;
+        if (message.getBatch() != null) mask |= BATCH;
+        if (message.isAllOrNothing()) mask |= ALL_OR_NOTHING;
+        if (message.getBatchReplies() != null) mask |= BATCH_REPLIES;
+        if (message.getSessionId() != null) mask |= SESSION_ID;
+        if (message.getCardCounts() != null) mask |= CARD_COUNTS;
+        writeVarint(out, mask);
+        // Campi presenti, nell'ordine dei bit
+        if ((mask & COMANDO) != 0) writeVarint(out, message.getComando().ordinal());
+        if ((mask & REPLY) != 0) writeVarint(out, message.getReply().ordinal());
+        if ((mask & USER) != 0) writeUser(out, message.getUser(), true);
+        if ((mask & PROJECTS) != 0) {
+            writeVarint(out, message.getProjects().size());
+            for (Project project : message.getProjects())
+                writeString(out, project.getName());
+        }
+        if ((mask & MEMBERS) != 0) writeStrings(out, message.getMembers());
+        if ((mask & CARDS) != 0) writeStrings(out, message.getCards());
+        if ((mask & CARD) != 0) {
+            Card card = message.getCard();
+            writeString(out, card.getName());
+            writeString(out, card.getDescription());
+            writeString(out, card.getHistory());
+        }
+        if ((mask & NICKNAME) != 0) writeString(out, message.getNickname());
+        if ((mask & PASSWORD) != 0) writeString(out, message.getPassword());
+        if ((mask & PROJECT_NAME) != 0) writeString(out, message.getProjectName());
+        if ((mask & NEW_MEMBER) != 0) writeString(out, message.getNewMember());
+        if ((mask & CARD_NAME) != 0) writeString(out, message.getCardName());
+        if ((mask & DESCRIZIONE) != 0) writeString(out, message.getDescrizione());
+        if ((mask & LISTA_PARTENZA) != 0) writeString(out, message.getListaPartenza());
+        if ((mask & LISTA_DESTINAZIONE) != 0) writeString(out, message.getListaDestinazione());
+        if ((mask & BATCH) != 0) {
+            writeVarint(out, message.getBatch().size());
+            for (ClientServerMessage command : message.getBatch())
+                writeMessage(out, command);
+        }
+        if ((mask & BATCH_REPLIES) != 0) {
+            writeVarint(out, message.getBatchReplies().size());
+            for (Replies reply : message.getBatchReplies())
+                writeVarint(out, reply.ordinal());
+        }
+        if ((mask & SESSION_ID) != 0) writeVarlong(out, message.getSessionId());
+        if ((mask & CARD_COUNTS) != 0) {
+            writeVarint(out, message.getCardCounts().size());
+            for (int count : message.getCardCounts())
+                writeVarint(out, count);
+        }
+    }
+
+    /**
+     * Metodo ausiliario che legge un messaggio (anche come elemento di un batch)
+     *
+     * @param in il buffer da cui leggere
+     * @return il messaggio
+     */
+    private static ClientServerMessage readMessage(ByteBuffer in) {
+        int mask = readVarint(in);
+        ClientServerMessage message = (mask & COMANDO) != 0 ? new ClientServerMessage(COMMANDS[readVarint(in)])
+                : new ClientServerMessage();
+        if ((mask & REPLY) != 0) message.setReply(REPLIES[readVarint(in)]);
+        if ((mask & USER) != 0) message.setUser(readUser(in, true));
+        if ((mask & PROJECTS) != 0) {
+            int size = readSize(in);
+            ArrayList<Project> projects = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                projects.add(new Project(readString(in), null));
+            message.setProjects(projects);
+        }
+        if ((mask & MEMBERS) != 0) message.setMembers(readStrings(in));
+        if ((mask & CARDS) != 0) message.setCards(readStrings(in));
+        if ((mask & CARD) != 0) {
+            Card card = new Card(readString(in), readString(in));
+            // La storia viene ricostruita ripetendo gli spostamenti (la prima lista è sempre TODO)
+            String[] lists = readString(in).split(" -> ");
+            for (int i = 1; i < lists.length; i++)
+                card.updateHistory(lists[i]);
+            message.setCard(card);
+        }
+        if ((mask & NICKNAME) != 0) message.setNickname(readString(in));
+        if ((mask & PASSWORD) != 0) message.setPassword(readString(in));
+        if ((mask & PROJECT_NAME) != 0) message.setProjectName(readString(in));
+        if ((mask & NEW_MEMBER) != 0) message.setNewMember(readString(in));
+        if ((mask & CARD_NAME) != 0) message.setCardName(readString(in));
+        if ((mask & DESCRIZIONE) != 0) message.setDescrizione(readString(in));
+        if ((mask & LISTA_PARTENZA) != 0) message.setListaPartenza(readString(in));
+        if ((mask & LISTA_DESTINAZIONE) != 0) message.setListaDestinazione(readString(in));
+        if ((mask & BATCH) != 0) {
+            int size = readSize(in);
+            ArrayList<ClientServerMessage> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                batch.add(readMessage(in));
+            message.setBatch(batch);
+        }
+        message.setAllOrNothing((mask & ALL_OR_NOTHING) != 0);
+        if ((mask & BATCH_REPLIES) != 0) {
+            int size = readSize(in);
+            ArrayList<Replies> batchReplies = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                batchReplies.add(REPLIES[readVarint(in)]);
+            message.setBatchReplies(batchReplies);
+        }
+        if ((mask & SESSION_ID) != 0) message.setSessionId(readVarlong(in));
+        if ((mask & CARD_COUNTS) != 0) {
+            int size = readSize(in);
+            ArrayList<Integer> cardCounts = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                cardCounts.add(readVarint(in));
+            message.setCardCounts(cardCounts);
+        }
+        return message;
+    }
+
+    /**
+     * Metodo ausiliario che scrive un utente. Degli utenti della lista degli
+     * utenti registrati vengono scritti solo nickname e stato (le loro liste sono
+     * sempre vuote).
+     *
+     * @param out   lo stream su cui scrivere
+     * @param user  l'utente
+     * @param lists true se vanno scritte anche la lista degli utenti e quella delle chat
+     */
+    private static void writeUser(ByteArrayOutputStream out, User user, boolean lists) {
+        writeString(out, user.getNickname());
+        writeString(out, lists ? user.getPassword() : null);
+        out.write(user.isOnline() ? 1 : 0);
+        if (!lists)
+            return;
+        ArrayList<User> users = user.getUsersList();
+        writeVarint(out, users.size());
+        for (User other : users)
+            writeUser(out, other, false);
+        ArrayList<Chat> chats = user.getChatsList();
+        writeVarint(out, chats.size());
+        for (Chat chat : chats) {
+            writeString(out, chat.getProject());
+            writeString(out, chat.getAddress() == null ? null : chat.getAddress().getHostAddress());
+            writeVarint(out, chat.getPort());
+        }
+    }
+
+    /**
+     * Metodo ausiliario che legge un utente
+     *
+     * @param in    il buffer da cui leggere
+     * @param lists true se seguono anche la lista degli utenti e quella delle chat
+     * @return l'utente
+     */
+    private static User readUser(ByteBuffer in, boolean lists) {
+        String nickname = readString(in);
+        String password = readString(in);
+        boolean online = in.get() != 0;
+        if (!lists)
+            return new User(nickname, password, online, new ArrayList<>(), new ArrayList<>());
+        int size = readSize(in);
+        ArrayList<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            users.add(readUser(in, false));
+        size = readSize(in);
+        ArrayList<Chat> chats = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String project = readString(in);
+            String address = readString(in);
+            int port = readVarint(in);
+            try {
+                // L'indirizzo è numerico, quindi non viene fatta nessuna risoluzione DNS
+                chats.add(address == null ? new Chat(project) : new Chat(InetAddress.getByName(address), port, project));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Indirizzo della chat non valido: " + address, e);
+            }
+        }
+        return new User(nickname, password, online, users, chats);
+    }
+
+    /**
+     * Metodo ausiliario che scrive una lista di stringhe
+     *
+     * @param out     lo stream su cui scrivere
+     * @param strings la lista
+     */
+    private static void writeStrings(ByteArrayOutputStream out, ArrayList<String> strings) {
+        writeVarint(out, strings.size());
+        for (String string : strings)
+            writeString(out, string);
+    }
+
+    /**
+     * Metodo ausiliario che legge una lista di stringhe
+     *
+     * @param in il buffer da cui leggere
+     * @return la lista
+     */
+    private static ArrayList<String> readStrings(ByteBuffer in) {
+        int size = readSize(in);
+        ArrayList<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            strings.add(readString(in));
+        return strings;
+    }
+
+    /**
+     * Metodo ausiliario che legge la dimensione di una lista. Ogni elemento
+     * occupa almeno un byte, quindi una dimensione maggiore dei bytes rimasti
+     * indica un messaggio non valido: viene rifiutata prima di allocare la
+     * lista, perché un client non possa far allocare al server memoria a
+     * piacere con pochi bytes.
+     *
+     * @param in il buffer da cui leggere
+     * @return la dimensione
+     */
+    private static int readSize(ByteBuffer in) {
+        int size = readVarint(in);
+        if (size < 0 || size > in.remaining())
+            throw new BufferUnderflowException();
+        return size;
+    }
+
+    /**
+     * Metodo ausiliario che scrive una stringa: la lunghezza in bytes più uno
+     * (0 indica null) seguita dai bytes in UTF-8
+     *
+     * @param out    lo stream su cui scrivere
+     * @param string la stringa (può essere null)
+     */
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        if (string == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Metodo ausiliario che legge una stringa
+     *
+     * @param in il buffer da cui leggere
+     * @return la stringa (oppure null)
+     */
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in) - 1;
+        if (length == -1)
+            return null;
+        if (length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        if (!in.hasArray()) {
+            // Buffer direct: i bytes vanno prima copiati nello heap
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return string;
+    }
+
+    /**
+     * Metodo ausiliario che scrive un intero non negativo come varint: 7 bit per
+     * byte, dal meno significativo, con il bit più alto a 1 se segue un altro byte
+     *
+     * @param out   lo stream su cui scrivere
+     * @param value il valore
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Metodo ausiliario che scrive un long come varint (anche i valori negativi,
+     * che occupano 10 bytes)
+     *
+     * @param out   lo stream su cui scrivere
+     * @param value il valore
+     */
+    private static void writeVarlong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Metodo ausiliario che legge un long scritto come varint
+     *
+     * @param in il buffer da cui leggere
+     * @return il valore
+     */
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Varint troppo lungo");
+    }
+
+    /**
+     * Metodo ausiliario che legge un varint
+     *
+     * @param in il buffer da cui leggere
+     * @return il valore
+     */
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Varint troppo lungo");
+    }
+}
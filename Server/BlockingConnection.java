@@ -0,0 +1,203 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connessione con un client servita da un thread dedicato (virtuale, se la JVM
+ * li supporta) con I/O bloccante, in alternativa al Reactor. Il thread legge un
+ * messaggio alla volta, con lo stesso formato di intestazione usato dal Reactor,
+ * ed esegue il WorkerTask direttamente, senza passare dal thread pool; le
+ * risposte vengono scritte sul canale dallo stesso thread. Le richieste della
+ * connessione vengono quindi sempre eseguite nell'ordine di arrivo.
+ */
+public class BlockingConnection implements ClientConnection, Runnable {
+
+    /** Numero totale di connessioni servite in questa modalità */
+    private static final AtomicLong connections = new AtomicLong();
+
+    /** Numero di connessioni attualmente aperte */
+    private static final AtomicLong active = new AtomicLong();
+
+    /** Numero totale di richieste eseguite */
+    private static final AtomicLong requests = new AtomicLong();
+
+    /** Il canale per la comunicazione con il client, in modalità bloccante */
+    private final SocketChannel channel;
+
+    /** Buffer per la lettura dell'intestazione del messaggio */
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(2 * Integer.BYTES);
+
+    /** True se il client ha negoziato la codifica binaria dei messaggi */
+    private boolean binaryCodec;
+
+    /** True se la connessione va chiusa (dopo la risposta a una LOGOUT) */
+    private volatile boolean closed;
+
+    /**
+     * La sessione dell'utente che ha fatto la login su questa connessione, oppure
+     * null (protetto dal lock dell'oggetto)
+     */
+    private Session session;
+
+    /**
+     * Costruttore
+     *
+     * @param channel il canale per la comunicazione con il client, in modalità
+     *                bloccante
+     */
+    public BlockingConnection(SocketChannel channel) {
+        this.channel = channel;
+        connections.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        active.incrementAndGet();
+        // Solo il primo messaggio può essere l'handshake della codifica binaria
+        boolean firstFrame = true;
+        try {
+            while (!this.closed) {
+                // Lettura dell'intestazione del messaggio
+                this.headerBuffer.clear().limit(Integer.BYTES);
+                if (!readFully(this.headerBuffer))
+                    break;
+                int header = this.headerBuffer.getInt(0);
+                long requestId = Frames.NO_REQUEST_ID;
+                // Se il primo intero lo indica, segue l'identificativo della richiesta
+                if ((header & Frames.HAS_ID_FLAG) != 0) {
+                    this.headerBuffer.limit(2 * Integer.BYTES);
+                    if (!readFully(this.headerBuffer))
+                        throw new EOFException("Connessione chiusa durante la lettura dell'intestazione");
+                    requestId = Frames.readRequestId(this.headerBuffer);
+                }
+                // Lettura del messaggio in un buffer preso dal pool
+                ByteBuffer dataBuffer = BufferPool.shared().acquire(header & Frames.SIZE_MASK);
+                if (!readFully(dataBuffer)) {
+                    BufferPool.shared().release(dataBuffer);
+                    throw new EOFException("Connessione chiusa durante la lettura del messaggio");
+                }
+                dataBuffer.flip();
+                if (firstFrame) {
+                    firstFrame = false;
+                    if (BinaryCodec.isHandshake(dataBuffer)) {
+                        // La connessione passa alla codifica binaria: conferma al client
+                        BufferPool.shared().release(dataBuffer);
+                        this.binaryCodec = true;
+                        send(Frames.frame(BinaryCodec.HANDSHAKE, requestId));
+                        continue;
+                    }
+                }
+                requests.incrementAndGet();
+                // Esecuzione della richiesta nel thread della connessione (il task restituisce
+                // il buffer al pool)
+                new WorkerTask(this, dataBuffer, requestId).run();
+            }
+        } catch (IOException e) {
+            // Dopo una close() la read fallisce: non è un errore
+            if (!this.closed)
+                e.printStackTrace();
+        } finally {
+            close();
+            // Se l'utente non ha fatto la logout viene disconnesso (dal thread della
+            // connessione, che non serve più)
+            String loggedUser;
+            synchronized (this) {
+                loggedUser = this.session == null ? null : this.session.getNickname();
+                this.session = null;
+            }
+            if (loggedUser != null)
+                ServerMain.disconnect(loggedUser);
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Metodo ausiliario che legge dal canale finché il buffer non è pieno
+     *
+     * @param buffer il buffer da riempire
+     * @return false se il client ha chiuso la connessione prima di inviare
+     *         qualsiasi byte, true se il buffer è stato riempito
+     * @throws IOException in caso di errori di I/O, o se il client chiude la
+     *                     connessione a metà lettura
+     */
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        boolean empty = buffer.position() == 0;
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer) == -1) {
+                if (empty && buffer.position() == 0)
+                    return false;
+                throw new EOFException("Connessione chiusa a metà messaggio");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isBinaryCodec() {
+        return this.binaryCodec;
+    }
+
+    @Override
+    public synchronized boolean bindSession(Session session) {
+        // Il WorkerTask viene eseguito dal thread della connessione, che non ha
+        // ancora chiuso il canale
+        this.session = session;
+        return true;
+    }
+
+    @Override
+    public synchronized Session getSession() {
+        return this.session;
+    }
+
+    @Override
+    public synchronized void unbindSession() {
+        this.session = null;
+    }
+
+    @Override
+    public void send(ByteBuffer frame) {
+        try {
+            // Il canale è bloccante: la write ritorna solo dopo aver inviato tutto il buffer,
+            // ma per sicurezza si ripete finché resta qualcosa
+            while (frame.hasRemaining())
+                this.channel.write(frame);
+        } catch (IOException e) {
+            if (!this.closed)
+                e.printStackTrace();
+            close();
+        } finally {
+            BufferPool.shared().release(frame);
+        }
+    }
+
+    @Override
+    public void sendAndClose(ByteBuffer frame) {
+        send(frame);
+        close();
+    }
+
+    /**
+     * Chiude la connessione. Il metodo è idempotente.
+     */
+    private void close() {
+        this.closed = true;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Metodo per ottenere le statistiche delle connessioni servite in questa
+     * modalità
+     *
+     * @return una stringa con i contatori
+     */
+    public static String stats() {
+        return "connections=" + connections.get() + " active=" + active.get() + " requests=" + requests.get();
+    }
+}
@@ -0,0 +1,171 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool di byte buffer riutilizzabili, divisi in classi di dimensione (potenze di
+ * 2 da MIN_CLASS_SIZE a MAX_CLASS_SIZE). Una richiesta viene servita con un
+ * buffer della classe più piccola che la contiene; i buffer più grandi della
+ * classe massima vengono allocati ogni volta e non tornano nel pool. I buffer
+ * possono essere allocati nello heap oppure fuori dallo heap (direct), a seconda
+ * della configurazione del server. La classe è thread safe.
+ */
+public class BufferPool {
+
+    /** Esponente della classe più piccola (64 bytes) */
+    private static final int MIN_SHIFT = 6;
+
+    /** Esponente della classe più grande (1 MiB) */
+    private static final int MAX_SHIFT = 20;
+
+    /** Dimensione della classe più piccola */
+    public static final int MIN_CLASS_SIZE = 1 << MIN_SHIFT;
+
+    /** Dimensione della classe più grande */
+    public static final int MAX_CLASS_SIZE = 1 << MAX_SHIFT;
+
+    /** Il pool condiviso dal server */
+    private static final BufferPool shared = new BufferPool(ServerConfig.isDirectBuffers(),
+            ServerConfig.getPoolBuffersPerClass());
+
+    /** Una coda di buffer liberi per ogni classe */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+
+    /** Numero di buffer liberi per ogni classe (la size() delle code è lineare) */
+    private final AtomicInteger[] freeCounts;
+
+    /** True se i buffer vanno allocati fuori dallo heap */
+    private final boolean direct;
+
+    /** Massimo numero di buffer liberi trattenuti per ogni classe */
+    private final int maxPerClass;
+
+    /** Richieste servite con un buffer già presente nel pool */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Richieste che hanno richiesto l'allocazione di un nuovo buffer */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Buffer restituiti e scartati perché il pool della classe era pieno */
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * Costruttore
+     *
+     * @param direct      true se i buffer vanno allocati fuori dallo heap
+     * @param maxPerClass massimo numero di buffer liberi trattenuti per classe
+     */
+    public BufferPool(boolean direct, int maxPerClass) {
+        this.direct = direct;
+        this.maxPerClass = maxPerClass;
+        // Array di un tipo generico: va creato con il tipo grezzo
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<ByteBuffer>[] classes = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue[
+                MAX_SHIFT - MIN_SHIFT + 1];
+        this.classes = classes;
+        this.freeCounts = new AtomicInteger[this.classes.length];
+        for (int i = 0; i < this.classes.length; i++) {
+            this.classes[i] = new ConcurrentLinkedQueue<>();
+            this.freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Metodo getter
+     *
+     * @return il pool condiviso dal server
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Restituisce un buffer pronto per la scrittura, con position a 0 e limit
+     * uguale alla dimensione richiesta (la capacità può essere maggiore). Il
+     * buffer va restituito con release() quando non serve più.
+     *
+     * @param size il numero di bytes richiesto
+     * @return il buffer
+     */
+    public ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        if (index == -1) {
+            // Troppo grande per il pool
+            this.misses.incrementAndGet();
+            return allocate(size);
+        }
+        ByteBuffer buffer = this.classes[index].poll();
+        if (buffer == null) {
+            this.misses.incrementAndGet();
+            buffer = allocate(1 << (index + MIN_SHIFT));
+        } else {
+            this.freeCounts[index].decrementAndGet();
+            this.hits.incrementAndGet();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Restituisce un buffer al pool. I buffer che non appartengono a nessuna
+     * classe (o con il pool della classe già pieno) vengono lasciati al garbage
+     * collector. Dopo la chiamata il buffer non va più utilizzato.
+     *
+     * @param buffer il buffer da restituire (può essere null)
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != this.direct)
+            return;
+        int capacity = buffer.capacity();
+        // Solo i buffer con la capacità esatta di una classe tornano nel pool
+        if (Integer.bitCount(capacity) != 1 || capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE)
+            return;
+        int index = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (this.freeCounts[index].incrementAndGet() > this.maxPerClass) {
+            this.freeCounts[index].decrementAndGet();
+            this.discarded.incrementAndGet();
+            return;
+        }
+        this.classes[index].add(buffer);
+    }
+
+    /**
+     * Metodo ausiliario che calcola la classe di una richiesta
+     *
+     * @param size il numero di bytes richiesto
+     * @return l'indice della classe, oppure -1 se la richiesta è troppo grande
+     */
+    private static int classIndex(int size) {
+        if (size > MAX_CLASS_SIZE)
+            return -1;
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+        // Esponente della potenza di 2 più piccola maggiore o uguale a size
+        int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Metodo ausiliario per l'allocazione di un nuovo buffer
+     *
+     * @param capacity la capacità del buffer
+     * @return il buffer allocato
+     */
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Metodo per ottenere le statistiche del pool
+     *
+     * @return una stringa con i contatori del pool
+     */
+    public String stats() {
+        int free = 0;
+        for (AtomicInteger count : this.freeCounts)
+            free += count.get();
+        return "direct=" + this.direct + " hits=" + this.hits.get() + " misses=" + this.misses.get() + " discarded="
+                + this.discarded.get() + " free=" + free;
+    }
+}
@@ -1,5 +1,9 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Implementazione di una carta di un progetto. Le carte sono identificate 
@@ -9,14 +13,57 @@ public class Card implements Serializable {
     @Serial
     private static final long serialVersionUID = -9102823308447854792L;
 
+    /**
+     * Campi serializzati: la storia viene scritta come stringa ("TODO ->
+     * INPROGRESS -> ..."), la forma letta dal client (vedi writeObject)
+     */
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("description", String.class),
+            new ObjectStreamField("history", String.class) };
+
+    /** Separatore delle liste nella forma testuale della storia */
+    private static final String ARROW = " -> ";
+
     /** Nome della carta */
     private final String name;
 
     /** Descrizione della carta */
     private final String description;
 
-    /** Storia della carta */
-    private String history;
+    /**
+     * Storia della carta: le liste in cui è stata la carta, in ordine
+     * cronologico, come ordinali di CardList (la prima è sempre TODO). Solo i
+     * primi historySize elementi sono validi.
+     */
+    private transient byte[] historyLists;
+
+    /**
+     * Per ogni elemento della storia, l'istante (in millisecondi) in cui la
+     * carta è entrata nella lista (0 se non è noto, per le carte salvate prima
+     * che venissero registrati)
+     */
+    private transient long[] historyTimes;
+
+    /** Numero di elementi validi della storia */
+    private transient int historySize;
+
+    /** Lista in cui si trova la carta, ovvero l'ultima della storia */
+    private transient CardList location;
+
+    /**
+     * Carta precedente e successiva nella lista del progetto in cui si trova la
+     * carta. Sono gestite da Project, che collega le carte di ogni lista senza
+     * liste di appoggio.
+     */
+    transient Card prev, next;
+
+    /**
+     * Copia immutabile della carta, usata dagli snapshot dei progetti. Viene
+     * creata quando serve e scartata a ogni modifica della storia.
+     */
+    private transient volatile Card frozen;
 
     /**
      * Costruttore
@@ -25,18 +72,110 @@ public class Card implements Serializable {
      * @param description la descrizione della carta
      */
     public Card(String name, String description) {
+        this(name, description, System.currentTimeMillis());
+    }
+
+    /**
+     * Costruttore che indica l'istante di creazione della carta (utilizzato
+     * quando le operazioni del journal vengono ripetute)
+     * 
+     * @param name        il nome della carta
+     * @param description la descrizione della carta
+     * @param time        l'istante di creazione, in millisecondi
+     */
+    public Card(String name, String description, long time) {
         this.name = name;
         this.description = description;
+        this.historyLists = new byte[4];
+        this.historyTimes = new long[4];
         // Una carta viene creata nella lista TODO
-        this.history = "TODO";
+        addToHistory(CardList.TODO, time);
+    }
+
+    /**
+     * Ricostruisce una carta salvata, a partire dalla forma testuale della
+     * storia e, se presenti, dagli istanti degli spostamenti
+     * 
+     * @param name        il nome della carta
+     * @param description la descrizione della carta
+     * @param history     la storia della carta, nella forma "TODO -> ..."
+     * @param times       gli istanti in cui la carta è entrata in ogni lista della
+     *                    storia, oppure null se non sono noti
+     * @return la carta
+     */
+    public static Card restore(String name, String description, String history, long[] times) {
+        Card card = new Card(name, description);
+        card.historySize = 0;
+        String[] lists = history.split(ARROW);
+        for (int i = 0; i < lists.length; i++)
+            card.addToHistory(CardList.parse(lists[i]), times != null && i < times.length ? times[i] : 0);
+        return card;
+    }
+
+    /**
+     * Costruttore ausiliario che copia una carta (vedi frozen)
+     * 
+     * @param card la carta da copiare
+     */
+    private Card(Card card) {
+        this.name = card.name;
+        this.description = card.description;
+        this.historyLists = Arrays.copyOf(card.historyLists, card.historySize);
+        this.historyTimes = Arrays.copyOf(card.historyTimes, card.historySize);
+        this.historySize = card.historySize;
+        this.location = card.location;
+    }
+
+    /**
+     * Metodo per ottenere una copia della carta che non viene più modificata.
+     * La copia resta la stessa finché la storia della carta non cambia. Va
+     * chiamato con la lock del progetto della carta acquisita.
+     * 
+     * @return la copia immutabile della carta
+     */
+    public Card frozen() {
+        Card copy = this.frozen;
+        if (copy == null) {
+            copy = new Card(this);
+            // La copia è già immutabile: non ha bisogno di una sua copia
+            copy.frozen = copy;
+            this.frozen = copy;
+        }
+        return copy;
     }
 
     public String getName() {
         return this.name;
     }
 
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * Metodo per ottenere la storia della carta nella forma testuale
+     * 
+     * @return la storia della carta, nella forma "TODO -> INPROGRESS -> ..."
+     */
     public String getHistory() {
-        return this.history;
+        StringBuilder history = new StringBuilder();
+        for (int i = 0; i < this.historySize; i++) {
+            if (i > 0)
+                history.append(ARROW);
+            history.append(CardList.values()[this.historyLists[i]].name());
+        }
+        return history.toString();
+    }
+
+    /**
+     * Metodo per ottenere gli istanti in cui la carta è entrata nelle liste della
+     * storia
+     * 
+     * @return un array con un istante (in millisecondi, 0 se non noto) per ogni
+     *         elemento della storia
+     */
+    public long[] getHistoryTimes() {
+        return Arrays.copyOf(this.historyTimes, this.historySize);
     }
 
     /**
@@ -46,8 +185,59 @@ public class Card implements Serializable {
      * @param newList la nuova lista in cui è stata spostata la carta
      */
     public void updateHistory(String newList) {
-        // Concatenazione alla stringa history di una freccia seguita dal nome della nuova lista
-        this.history += " -> " + newList.toUpperCase();
+        updateHistory(CardList.parse(newList));
+    }
+
+    /**
+     * Metodo per l'aggiornamento della storia della carta, utilizzata nel momento 
+     * in cui la carta viene spostata in una nuova lista.
+     * 
+     * @param newList la nuova lista in cui è stata spostata la carta
+     */
+    public void updateHistory(CardList newList) {
+        updateHistory(newList, System.currentTimeMillis());
+    }
+
+    /**
+     * Metodo per l'aggiornamento della storia della carta, indicando l'istante
+     * dello spostamento
+     * 
+     * @param newList la nuova lista in cui è stata spostata la carta
+     * @param time    l'istante dello spostamento, in millisecondi
+     */
+    public void updateHistory(CardList newList, long time) {
+        addToHistory(newList, time);
+    }
+
+    /**
+     * Metodo per annullare l'ultimo spostamento registrato nella storia della
+     * carta (utilizzato quando un batch all-or-nothing viene annullato).
+     */
+    public void revertHistory() {
+        if (this.historySize > 1) {
+            this.frozen = null;
+            this.historySize--;
+            this.location = CardList.values()[this.historyLists[this.historySize - 1]];
+        }
+    }
+
+    /**
+     * Metodo ausiliario che aggiunge una lista in fondo alla storia
+     * 
+     * @param list la lista
+     * @param time l'istante in cui la carta è entrata nella lista
+     */
+    private void addToHistory(CardList list, long time) {
+        this.frozen = null;
+        // Raddoppio della capacità quando gli array sono pieni
+        if (this.historySize == this.historyLists.length) {
+            this.historyLists = Arrays.copyOf(this.historyLists, this.historySize * 2);
+            this.historyTimes = Arrays.copyOf(this.historyTimes, this.historySize * 2);
+        }
+        this.historyLists[this.historySize] = (byte) list.ordinal();
+        this.historyTimes[this.historySize] = time;
+        this.historySize++;
+        this.location = list;
     }
 
     /**
@@ -56,10 +246,27 @@ public class Card implements Serializable {
      * @return la lista in cui si trova la carta
      */
     public String getLocation() {
-        // Array contenente tutti i nomi delle liste in cui è stata spostata la carta, in ordine cronologico
-        String[] locations = history.split(" -> ");
-        // La lista corrente si trova nell'ultima posizione
-        return locations[locations.length - 1];
+        return this.location.name();
+    }
+
+    public CardList getList() {
+        return this.location;
+    }
+
+    /**
+     * Scrive la carta con la storia in forma testuale (vedi
+     * serialPersistentFields)
+     * 
+     * @param out lo stream su cui scrivere la carta
+     * @throws IOException in caso di errori di I/O
+     */
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", this.name);
+        fields.put("description", this.description);
+        fields.put("history", getHistory());
+        out.writeFields();
     }
 
     @Override
@@ -75,4 +282,10 @@ public class Card implements Serializable {
         return this.name.equals(((Card) obj).getName());
     }
 
+    @Override
+    public int hashCode() {
+        // Coerente con equals: dipende solo dal nome
+        return this.name.hashCode();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+/**
+ * Le liste di un progetto in cui può trovarsi una carta. Il nome di ogni
+ * costante è il nome della lista usato nei messaggi e nella storia delle carte.
+ */
+public enum CardList {
+    TODO, INPROGRESS, TOBEREVISED, DONE;
+
+    /**
+     * Metodo per ottenere la lista a partire dal suo nome, senza distinguere tra
+     * maiuscole e minuscole
+     *
+     * @param listName il nome della lista
+     * @return la lista, oppure null se il nome non è quello di una lista
+     */
+    public static CardList parse(String listName) {
+        for (CardList list : values()) {
+            if (list.name().equalsIgnoreCase(listName))
+                return list;
+        }
+        return null;
+    }
+}
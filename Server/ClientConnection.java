@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Connessione con un client vista da un WorkerTask, che deve sapere con quale
+ * codifica sono scritti i messaggi e come consegnare la risposta. È implementata da
+ * Connection (canale gestito da un Reactor, le risposte vengono accodate) e da
+ * BlockingConnection (canale bloccante con un thread dedicato, le risposte
+ * vengono scritte subito).
+ */
+public interface ClientConnection {
+
+    /**
+     * Invia un messaggio al client
+     *
+     * @param frame il messaggio codificato (intestazione + dati), pronto per la
+     *              lettura, preso dal pool: dopo la chiamata appartiene alla
+     *              connessione
+     */
+    void send(ByteBuffer frame);
+
+    /**
+     * Come send(), ma dopo l'invio del messaggio la connessione viene chiusa
+     *
+     * @param frame il messaggio codificato, pronto per la lettura
+     */
+    void sendAndClose(ByteBuffer frame);
+
+    /**
+     * @return true se la connessione ha negoziato la codifica binaria dei
+     *         messaggi (BinaryCodec), false se usa JSON
+     */
+    boolean isBinaryCodec();
+
+    /**
+     * Associa alla connessione la sessione dell'utente che ha appena fatto la
+     * login. Le richieste successive vengono eseguite a nome di quell'utente, e
+     * se la connessione si chiude senza una logout l'utente viene disconnesso
+     * (ServerMain.disconnect()).
+     *
+     * @param session la sessione dell'utente
+     * @return false se la connessione era già chiusa: in questo caso la sessione
+     *         non viene associata e l'utente va disconnesso dal chiamante
+     */
+    boolean bindSession(Session session);
+
+    /**
+     * @return la sessione associata alla connessione, oppure null se sulla
+     *         connessione non è stata fatta la login
+     */
+    Session getSession();
+
+    /**
+     * Dissocia la sessione dalla connessione, prima di una logout
+     */
+    void unbindSession();
+}
\ No newline at end of file
@@ -68,6 +68,33 @@ public class ClientServerMessage implements Serializable {
      */
     private String listaDestinazione;
 
+    /** I sotto-comandi di una richiesta BATCH (da client a server) */
+    private ArrayList<ClientServerMessage> batch;
+
+    /** 
+     * True se i sotto-comandi di una richiesta BATCH vanno eseguiti tutti o 
+     * nessuno (da client a server) 
+     */
+    private boolean allOrNothing;
+
+    /** 
+     * Gli esiti dei sotto-comandi di una richiesta BATCH, nello stesso ordine 
+     * (da server a client) 
+     */
+    private ArrayList<Replies> batchReplies;
+
+    /** 
+     * L'identificativo della sessione creata dalla login (da server a client, 
+     * nella risposta alla login; facoltativo da client a server) 
+     */
+    private Long sessionId;
+
+    /** 
+     * Il numero di carte in ogni lista di un progetto, nell'ordine TODO, 
+     * INPROGRESS, TOBEREVISED, DONE (da server a client) 
+     */
+    private ArrayList<Integer> cardCounts;
+
     /**
      * Costruttore del server
      */
@@ -88,6 +115,10 @@ public class ClientServerMessage implements Serializable {
         return this.comando;
     }
 
+    public void setComando(Commands comando) {
+        this.comando = comando;
+    }
+
     public Replies getReply() {
         return this.reply;
     }
@@ -199,4 +230,44 @@ public class ClientServerMessage implements Serializable {
     public void setListaDestinazione(String listaDestinazione) {
         this.listaDestinazione = listaDestinazione;
     }
+
+    public ArrayList<ClientServerMessage> getBatch() {
+        return this.batch;
+    }
+
+    public void setBatch(ArrayList<ClientServerMessage> batch) {
+        this.batch = batch;
+    }
+
+    public boolean isAllOrNothing() {
+        return this.allOrNothing;
+    }
+
+    public void setAllOrNothing(boolean allOrNothing) {
+        this.allOrNothing = allOrNothing;
+    }
+
+    public ArrayList<Replies> getBatchReplies() {
+        return this.batchReplies;
+    }
+
+    public void setBatchReplies(ArrayList<Replies> batchReplies) {
+        this.batchReplies = batchReplies;
+    }
+
+    public Long getSessionId() {
+        return this.sessionId;
+    }
+
+    public void setSessionId(Long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public ArrayList<Integer> getCardCounts() {
+        return this.cardCounts;
+    }
+
+    public void setCardCounts(ArrayList<Integer> cardCounts) {
+        this.cardCounts = cardCounts;
+    }
 }
\ No newline at end of file
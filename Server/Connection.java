@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stato di una connessione con un client gestita da un Reactor. L'oggetto è
+ * l'attachment della chiave del canale e contiene i buffer per la lettura del
+ * messaggio in arrivo e la coda dei messaggi di risposta in uscita.
+ * <p>
+ * I worker non scrivono mai direttamente sul canale: accodano la risposta con
+ * send() e tornano subito al thread pool. È il reactor, quando il canale è
+ * pronto per la scrittura (OP_WRITE), a svuotare la coda.
+ */
+public class Connection implements ClientConnection {
+
+    /** Il canale per la comunicazione con il client */
+    private final SocketChannel channel;
+
+    /** Il reactor che gestisce il canale */
+    private final Reactor reactor;
+
+    /** Executor per le richieste della connessione che vanno eseguite in ordine */
+    private final SerialExecutor orderedExecutor;
+
+    /** La chiave del canale nel selettore del reactor */
+    private SelectionKey key;
+
+    /**
+     * Buffer per la lettura dell'intestazione del messaggio (dimensione ed
+     * eventuale identificativo della richiesta), preso dal pool
+     */
+    private final ByteBuffer headerBuffer = BufferPool.shared().acquire(Integer.BYTES);
+
+    /**
+     * Buffer per la lettura del messaggio, preso dal pool con la dimensione letta.
+     * Passa al WorkerTask insieme al messaggio, che lo restituisce al pool.
+     */
+    private ByteBuffer dataBuffer;
+
+    /**
+     * Coda dei messaggi (già codificati in bytes, in buffer presi dal pool) da
+     * inviare al client
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+    /** Numero di bytes in coda e non ancora inviati */
+    private final AtomicLong outboundBytes = new AtomicLong();
+
+    /** True se il canale va chiuso dopo aver inviato tutti i messaggi in coda */
+    private volatile boolean closeAfterFlush;
+
+    /** True se il client ha negoziato la codifica binaria dei messaggi */
+    private volatile boolean binaryCodec;
+
+    /**
+     * True se è già stato letto il primo messaggio, l'unico che può essere
+     * l'handshake (usato solo dal thread del reactor)
+     */
+    private boolean firstFrameRead;
+
+    /** True se la connessione è stata chiusa (protetto dal lock dell'oggetto) */
+    private boolean closed;
+
+    /**
+     * La sessione dell'utente che ha fatto la login su questa connessione, oppure
+     * null (protetto dal lock dell'oggetto)
+     */
+    private Session session;
+
+    /**
+     * Istante in millisecondi dell'ultima lettura dal canale, per individuare le
+     * connessioni inattive (usato solo dal thread del reactor)
+     */
+    private long lastReadMillis = System.currentTimeMillis();
+
+    /**
+     * Costruttore
+     *
+     * @param channel    il canale per la comunicazione con il client
+     * @param reactor    il reactor che gestisce il canale
+     * @param threadPool il thread pool su cui eseguire le richieste
+     */
+    public Connection(SocketChannel channel, Reactor reactor, Executor threadPool) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.orderedExecutor = new SerialExecutor(threadPool);
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public ByteBuffer getHeaderBuffer() {
+        return this.headerBuffer;
+    }
+
+    public SerialExecutor getOrderedExecutor() {
+        return this.orderedExecutor;
+    }
+
+    public ByteBuffer getDataBuffer() {
+        return this.dataBuffer;
+    }
+
+    public void setDataBuffer(ByteBuffer dataBuffer) {
+        this.dataBuffer = dataBuffer;
+    }
+
+    @Override
+    public boolean isBinaryCodec() {
+        return this.binaryCodec;
+    }
+
+    /**
+     * Controlla se il messaggio appena letto è l'handshake per la codifica
+     * binaria. Solo il primo messaggio della connessione può esserlo: in quel
+     * caso la connessione passa alla codifica binaria e al client viene
+     * rimandato lo stesso messaggio come conferma. Va chiamato dal thread del
+     * reactor.
+     *
+     * @param payload   il messaggio letto, pronto per la lettura
+     * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+     * @return true se il messaggio era l'handshake (e non va passato ai worker)
+     */
+    public boolean acceptHandshake(ByteBuffer payload, long requestId) {
+        if (this.firstFrameRead)
+            return false;
+        this.firstFrameRead = true;
+        if (!BinaryCodec.isHandshake(payload))
+            return false;
+        this.binaryCodec = true;
+        send(Frames.frame(BinaryCodec.HANDSHAKE, requestId));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean bindSession(Session session) {
+        if (this.closed)
+            return false;
+        this.session = session;
+        return true;
+    }
+
+    @Override
+    public synchronized Session getSession() {
+        return this.session;
+    }
+
+    @Override
+    public synchronized void unbindSession() {
+        this.session = null;
+    }
+
+    public long getLastReadMillis() {
+        return this.lastReadMillis;
+    }
+
+    public void setLastReadMillis(long lastReadMillis) {
+        this.lastReadMillis = lastReadMillis;
+    }
+
+    /**
+     * @return true se la connessione è stata chiusa
+     */
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Prepara la connessione alla lettura del prossimo messaggio: il buffer
+     * dell'intestazione viene svuotato e quello del messaggio, ormai consegnato al
+     * WorkerTask, viene dimenticato.
+     */
+    public void nextFrame() {
+        this.headerBuffer.clear().limit(Integer.BYTES);
+        this.dataBuffer = null;
+    }
+
+    /**
+     * Accoda un messaggio da inviare al client e chiede al reactor di inviarlo
+     * quando il canale sarà pronto. Se con questo messaggio i bytes in coda
+     * superano il limite per connessione, il client è considerato troppo lento:
+     * il messaggio viene scartato e la connessione chiusa. Anche un messaggio
+     * inviato dopo la chiusura della connessione viene scartato (il buffer torna
+     * nel pool). Il metodo è thread safe e non si blocca.
+     *
+     * @param frame il messaggio codificato (intestazione + dati), pronto per la lettura
+     */
+    @Override
+    public void send(ByteBuffer frame) {
+        enqueue(frame, false);
+    }
+
+    /**
+     * Come send(), ma dopo l'invio del messaggio la connessione viene chiusa
+     *
+     * @param frame il messaggio codificato, pronto per la lettura
+     */
+    @Override
+    public void sendAndClose(ByteBuffer frame) {
+        enqueue(frame, true);
+    }
+
+    /**
+     * Metodo ausiliario per accodare un messaggio da inviare
+     *
+     * @param frame il messaggio codificato, pronto per la lettura
+     * @param close true se la connessione va chiusa dopo l'invio del messaggio
+     */
+    private void enqueue(ByteBuffer frame, boolean close) {
+        long pending = this.outboundBytes.addAndGet(frame.remaining());
+        if (pending > ServerConfig.getMaxOutboundBytes()) {
+            System.err.println("Server: limite di " + ServerConfig.getMaxOutboundBytes()
+                    + " bytes in uscita superato, chiusura della connessione");
+            this.outboundBytes.addAndGet(-frame.remaining());
+            BufferPool.shared().release(frame);
+            this.reactor.requestClose(this);
+            return;
+        }
+        // Controllo e accodamento atomici rispetto a close(): un messaggio accodato
+        // prima della chiusura viene scartato da close(), uno successivo subito
+        synchronized (this) {
+            if (this.closed) {
+                this.outboundBytes.addAndGet(-frame.remaining());
+                BufferPool.shared().release(frame);
+                return;
+            }
+            this.outbound.add(frame);
+        }
+        // Il flag va settato dopo aver accodato il messaggio, altrimenti il reactor potrebbe
+        // trovare la coda vuota e chiudere la connessione prima di averlo inviato
+        if (close)
+            this.closeAfterFlush = true;
+        this.reactor.requestWrite(this);
+    }
+
+    /**
+     * Invia al client quanti più messaggi in coda possibile senza bloccarsi.
+     * Va chiamato dal thread del reactor.
+     *
+     * @return il numero di bytes inviati
+     * @throws IOException in caso di errori di I/O durante la write()
+     */
+    public long flush() throws IOException {
+        long total = 0;
+        ByteBuffer frame;
+        while ((frame = this.outbound.peek()) != null) {
+            int written = this.channel.write(frame);
+            this.outboundBytes.addAndGet(-written);
+            total += written;
+            // Il canale non accetta altri bytes: si riprova al prossimo OP_WRITE
+            if (frame.hasRemaining())
+                break;
+            // Messaggio inviato completamente: il buffer torna nel pool
+            BufferPool.shared().release(this.outbound.poll());
+        }
+        return total;
+    }
+
+    /**
+     * @return true se ci sono ancora messaggi in coda da inviare
+     */
+    public boolean hasPendingOutput() {
+        return !this.outbound.isEmpty();
+    }
+
+    /**
+     * @return true se la connessione va chiusa dopo l'invio dei messaggi in coda
+     */
+    public boolean isCloseAfterFlush() {
+        return this.closeAfterFlush;
+    }
+
+    /**
+     * Chiude la connessione, cancellando la chiave dal selettore e scartando i
+     * messaggi in coda. Tutti i buffer della connessione tornano nel pool. Se
+     * sulla connessione c'era un utente che non ha fatto la logout, il reactor
+     * lo fa disconnettere. Va chiamato dal thread del reactor.
+     */
+    public void close() {
+        String loggedUser;
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.closed = true;
+            loggedUser = this.session == null ? null : this.session.getNickname();
+            this.session = null;
+        }
+        if (this.key != null)
+            this.key.cancel();
+        BufferPool pool = BufferPool.shared();
+        pool.release(this.headerBuffer);
+        pool.release(this.dataBuffer);
+        this.dataBuffer = null;
+        ByteBuffer frame;
+        while ((frame = this.outbound.poll()) != null)
+            pool.release(frame);
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (loggedUser != null)
+            this.reactor.userDisconnected(loggedUser);
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Formato dei messaggi (frame) scambiati tra client e server sulla connessione
+ * TCP. Ogni frame inizia con un intero di intestazione: i 30 bit meno
+ * significativi contengono la dimensione in bytes del messaggio serializzato,
+ * mentre i due bit più significativi sono dei flag.
+ * <ul>
+ * <li>HAS_ID_FLAG: all'intestazione segue un secondo intero, l'identificativo
+ * della richiesta. Il server lo riporta nella risposta, così che un client
+ * possa inviare più richieste di seguito e associare le risposte.</li>
+ * <li>UNORDERED_FLAG: la richiesta può essere eseguita in parallelo alle altre
+ * della stessa connessione, e la sua risposta può arrivare fuori ordine.</li>
+ * </ul>
+ * Un frame senza flag ha lo stesso formato della versione originale del
+ * protocollo, quindi i client che non usano gli identificativi continuano a
+ * funzionare.
+ */
+public class Frames {
+
+    /** Flag dell'intestazione: segue l'identificativo della richiesta */
+    public static final int HAS_ID_FLAG = 1 << 31;
+
+    /** Flag dell'intestazione: la richiesta non deve rispettare l'ordine */
+    public static final int UNORDERED_FLAG = 1 << 30;
+
+    /** Maschera per ricavare la dimensione del messaggio dall'intestazione */
+    public static final int SIZE_MASK = UNORDERED_FLAG - 1;
+
+    /**
+     * Valore dell'identificativo per i frame che non lo hanno. Gli identificativi
+     * sono interi a 32 bit, letti senza segno (vedi readRequestId): nessun
+     * identificativo può coincidere con questo valore.
+     */
+    public static final long NO_REQUEST_ID = -1;
+
+    /**
+     * Legge l'identificativo della richiesta dall'intestazione di un frame con
+     * HAS_ID_FLAG (lettura assoluta, dopo il primo intero)
+     *
+     * @param header il buffer dell'intestazione
+     * @return l'identificativo, senza segno
+     */
+    public static long readRequestId(ByteBuffer header) {
+        return Integer.toUnsignedLong(header.getInt(Integer.BYTES));
+    }
+
+    /**
+     * Metodo per ottenere la dimensione dell'intestazione di un frame
+     *
+     * @param requestId l'identificativo della richiesta, oppure NO_REQUEST_ID
+     * @return il numero di bytes dell'intestazione
+     */
+    public static int headerSize(long requestId) {
+        return requestId != NO_REQUEST_ID ? 2 * Integer.BYTES : Integer.BYTES;
+    }
+
+    /**
+     * Scrive l'intestazione di un frame all'inizio del buffer (scrittura assoluta,
+     * la posizione del buffer non cambia)
+     *
+     * @param frame       il buffer del frame
+     * @param payloadSize la dimensione in bytes del messaggio serializzato
+     * @param requestId   l'identificativo della richiesta, oppure NO_REQUEST_ID
+     */
+    public static void putHeader(ByteBuffer frame, int payloadSize, long requestId) {
+        if (requestId != NO_REQUEST_ID) {
+            frame.putInt(0, HAS_ID_FLAG | payloadSize);
+            frame.putInt(Integer.BYTES, (int) requestId);
+        } else {
+            frame.putInt(0, payloadSize);
+        }
+    }
+
+    /**
+     * Crea il frame per un messaggio serializzato, in un buffer preso dal pool.
+     * Il buffer va restituito al pool quando il frame è stato inviato.
+     *
+     * @param payload   i bytes del messaggio serializzato
+     * @param requestId l'identificativo della richiesta, oppure NO_REQUEST_ID
+     * @return il buffer contenente il frame, pronto per la lettura
+     */
+    public static ByteBuffer frame(byte[] payload, long requestId) {
+        int headerSize = headerSize(requestId);
+        ByteBuffer frame = BufferPool.shared().acquire(headerSize + payload.length);
+        putHeader(frame, payload.length, requestId);
+        frame.position(headerSize);
+        frame.put(payload);
+        // Preparazione del buffer alla lettura dopo la scrittura
+        frame.flip();
+        return frame;
+    }
+}
\ No newline at end of file
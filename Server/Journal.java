@@ -0,0 +1,750 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal (write-ahead log) delle operazioni che modificano lo stato del
+ * server: registrazioni, creazione e cancellazione di progetti, aggiunta di
+ * membri e di carte, spostamenti di carte. Ogni record ha un numero di
+ * sequenza (LSN) crescente e viene aggiunto in fondo al file, mentre il
+ * chiamante tiene ancora le lock dell'operazione: l'ordine dei record è quello
+ * in cui le operazioni sono state applicate.
+ * <p>
+ * All'avvio il server ricarica lo stato salvato e ripete i record del journal
+ * con LSN successivo a quello dello stato salvato.
+ * <p>
+ * Il journal è una directory di segmenti, file chiamati con l'LSN dell'ultimo
+ * record precedente al segmento: i record di un segmento hanno LSN maggiore.
+ * Il server passa a un nuovo segmento a ogni avvio e a ogni snapshot dello
+ * stato (rotate()), e cancella i segmenti i cui record sono tutti contenuti
+ * negli snapshot conservati (prune()). Un record interrotto può trovarsi solo
+ * in fondo a un segmento scritto prima di un crash: la lettura di quel segmento
+ * si ferma lì e prosegue con il segmento successivo.
+ * <p>
+ * In modalità "group" (group commit) i record vengono accodati in memoria e un
+ * thread flusher li scrive a gruppi, con una fsync per gruppo: le risposte ai
+ * client che dipendono da quei record vengono inviate dopo la fsync.
+ * <p>
+ * Dopo un errore di scrittura il journal non accetta altri record e non
+ * conferma più quelli in attesa: chi aspetta un record lo sa con un errore, e
+ * le operazioni successive vengono rifiutate fino al riavvio del server. In
+ * modalità "group" le operazioni non confermate sono già applicate in memoria:
+ * il flusher esegue allora l'azione di errore passata al costruttore, con cui
+ * il server smette di servire le richieste e termina.
+ * <p>
+ * Forma di un record: lunghezza del corpo (int), CRC32 del corpo (int), corpo.
+ * Il corpo contiene LSN (long), tipo (byte), istante dell'operazione in
+ * millisecondi (long), numero di campi (byte) e i campi, ognuno con la sua
+ * lunghezza (int, -1 per un campo null) e i bytes UTF-8. Un record incompleto o con il CRC sbagliato
+ * in fondo al file (una scrittura interrotta) viene scartato alla lettura.
+ */
+public class Journal {
+
+    /** Tipi di record */
+    public enum Type {
+        REGISTER,       // Campi: nickname, password
+        CREATE_PROJECT, // Campi: nickname del creatore, nome del progetto
+        ADD_MEMBER,     // Campi: nome del progetto, nickname del nuovo membro
+        ADD_CARD,       // Campi: nome del progetto, nome della carta, descrizione
+        MOVE_CARD,      // Campi: nome del progetto, nome della carta, lista di destinazione
+        CANCEL_PROJECT  // Campi: nome del progetto
+    }
+
+    /** Un record del journal */
+    public static class Record {
+
+        /** Il tipo di operazione */
+        private final Type type;
+
+        /** L'istante dell'operazione, in millisecondi */
+        private final long time;
+
+        /** I campi dell'operazione */
+        private final String[] fields;
+
+        /** Il numero di sequenza, assegnato quando il record viene scritto */
+        private long lsn;
+
+        /**
+         * Costruttore
+         *
+         * @param type   il tipo di operazione
+         * @param time   l'istante dell'operazione, in millisecondi
+         * @param fields i campi dell'operazione
+         */
+        public Record(Type type, long time, String... fields) {
+            this.type = type;
+            this.time = time;
+            this.fields = fields;
+        }
+
+        public Type getType() {
+            return this.type;
+        }
+
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * Metodo per ottenere un campo del record
+         *
+         * @param index la posizione del campo
+         * @return il campo
+         */
+        public String getField(int index) {
+            return this.fields[index];
+        }
+
+        public long getLsn() {
+            return this.lsn;
+        }
+    }
+
+    /** Dimensione dell'intestazione di un record (lunghezza e CRC) */
+    private static final int HEADER_SIZE = 8;
+
+    /** Capacità iniziale del buffer dei record in attesa del flusher */
+    private static final int PENDING_CAPACITY = 64 * 1024;
+
+    /** Modalità di sincronizzazione sul disco (vedi ServerConfig) */
+    private final String syncMode;
+
+    /** Prefisso e estensione dei nomi dei segmenti */
+    private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+
+    /** La directory dei segmenti */
+    private final Path dir;
+
+    /**
+     * Il segmento corrente, su cui vengono scritti i record. Viene scritto e
+     * sostituito con il monitor fileLock acquisito.
+     */
+    private FileChannel channel;
+
+    /** Lock per la scrittura e la sostituzione del segmento corrente */
+    private final Object fileLock = new Object();
+
+    /** LSN dell'ultimo record precedente al segmento corrente (il suo nome) */
+    private long segmentStart;
+
+    /** Bytes dei record aggiunti al segmento corrente */
+    private long segmentBytes;
+
+    /**
+     * Il primo errore di scrittura, oppure null. Dopo un errore il journal non
+     * accetta altri record: un record scritto in parte renderebbe illeggibili
+     * tutti quelli successivi del segmento.
+     */
+    private IOException failure;
+
+    /** LSN dell'ultimo record aggiunto */
+    private long lastLsn;
+
+    /** LSN dell'ultimo record scritto sul file (e sincronizzato, se previsto) */
+    private long durableLsn;
+
+    /**
+     * Record aggiunti e non ancora scritti sul file, in modalità "group": il
+     * thread flusher li scrive e li sincronizza tutti insieme, con una sola fsync
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(PENDING_CAPACITY);
+
+    /** Numero di record in pending */
+    private int pendingRecords;
+
+    /** Istante (System.nanoTime) in cui è stato aggiunto il primo record in pending */
+    private long pendingSince;
+
+    /**
+     * Azione eseguita dal flusher, una sola volta, dopo un errore di scrittura
+     * di un gruppo (e dopo le azioni di errore dei record in attesa)
+     */
+    private final Runnable onFailure;
+
+    /** Numero di record oltre il quale il flusher scrive subito il gruppo */
+    private final int groupSize;
+
+    /** Attesa massima in nanosecondi del primo record di un gruppo */
+    private final long groupWaitNanos;
+
+    /**
+     * Azioni da eseguire quando i loro record sono sul disco (o quando la
+     * scrittura fallisce), in ordine di LSN
+     */
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong(w -> w.lsn));
+
+    /** LSN dell'ultimo record aggiunto da ogni thread (vedi takeAppendedLsn) */
+    private final ThreadLocal<long[]> appendedLsn = ThreadLocal.withInitial(() -> new long[1]);
+
+    /** Durata delle fsync */
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+
+    /** Contatori per le statistiche */
+    private final AtomicLong records = new AtomicLong(), bytes = new AtomicLong();
+
+    /** Un'azione in attesa che un record sia sul disco */
+    private static class Waiter {
+
+        /** L'LSN del record */
+        private final long lsn;
+
+        /** L'azione da eseguire */
+        private final Runnable action;
+
+        /** L'azione da eseguire se il record non può essere scritto */
+        private final Runnable onFailure;
+
+        private Waiter(long lsn, Runnable action, Runnable onFailure) {
+            this.lsn = lsn;
+            this.action = action;
+            this.onFailure = onFailure;
+        }
+    }
+
+    /**
+     * Costruttore: apre il journal per aggiungere record, dopo che è stato letto
+     * con replay(), creando un nuovo segmento. In modalità "group" avvia il
+     * thread flusher.
+     *
+     * @param dir            la directory dei segmenti (viene creata se non
+     *                       esiste)
+     * @param lastLsn        l'LSN più alto già assegnato (nello stato salvato o
+     *                       nei record letti da replay())
+     * @param syncMode       la modalità di sincronizzazione: "none" (nessuna
+     *                       fsync), "batch" (una fsync per ogni append),
+     *                       "command" (una fsync per ogni record) oppure "group"
+     *                       (una fsync per ogni gruppo di record, dal flusher)
+     * @param groupSize      in modalità "group", il numero di record oltre il
+     *                       quale un gruppo viene scritto senza attendere
+     * @param groupWaitMicros in modalità "group", l'attesa massima in
+     *                       microsecondi del primo record di un gruppo
+     * @param onFailure      in modalità "group", l'azione da eseguire se la
+     *                       scrittura di un gruppo fallisce
+     * @throws IOException in caso di errori di I/O
+     */
+    public Journal(Path dir, long lastLsn, String syncMode, int groupSize, int groupWaitMicros, Runnable onFailure)
+            throws IOException {
+        this.dir = dir;
+        this.onFailure = onFailure;
+        this.syncMode = syncMode;
+        this.lastLsn = lastLsn;
+        this.durableLsn = lastLsn;
+        this.groupSize = groupSize;
+        this.groupWaitNanos = groupWaitMicros * 1000L;
+        Files.createDirectories(dir);
+        // I record interrotti in fondo all'ultimo segmento restano dove sono: i nuovi
+        // record vanno in un segmento nuovo
+        this.channel = openSegment(lastLsn);
+        this.segmentStart = lastLsn;
+        if (syncMode.equals("group")) {
+            Thread flusher = new Thread(this::flushLoop, "journal-flusher");
+            // Il thread non deve impedire la terminazione del server
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Legge i segmenti del journal, in ordine, e passa al consumer i record con
+     * LSN maggiore di quello indicato. Se la directory non esiste non fa niente.
+     *
+     * @param dir      la directory dei segmenti
+     * @param afterLsn l'LSN dell'ultima operazione già contenuta nello stato
+     *                 salvato
+     * @param consumer il consumer che applica i record
+     * @return l'LSN dell'ultimo record passato al consumer, oppure afterLsn se
+     *         non ce ne sono
+     * @throws IOException in caso di errori di I/O
+     */
+    public static long replay(Path dir, long afterLsn, Consumer<Record> consumer) throws IOException {
+        long lastLsn = afterLsn;
+        CRC32 crc = new CRC32();
+        for (Path segment : listSegments(dir)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+            while (data.remaining() >= HEADER_SIZE) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                // Record interrotto o corrotto: la lettura del segmento si ferma qui
+                if (length < 0 || length > data.remaining())
+                    break;
+                crc.reset();
+                crc.update(data.array(), data.position(), length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                Record record = decode(data.slice(data.position(), length));
+                data.position(data.position() + length);
+                // I record già applicati (o contenuti nello stato) vengono saltati
+                if (record.lsn > lastLsn) {
+                    consumer.accept(record);
+                    lastLsn = record.lsn;
+                }
+            }
+        }
+        return lastLsn;
+    }
+
+    /**
+     * Aggiunge dei record in fondo al journal, assegnando a ognuno l'LSN
+     * successivo. Nelle modalità "none", "batch" e "command" i record vengono
+     * scritti sul file (e sincronizzati secondo la modalità) prima di tornare;
+     * in modalità "group" vengono solo accodati per il flusher, e il chiamante
+     * deve aspettare che siano sul disco (vedi whenDurable) prima di rispondere
+     * al client. Va chiamato con le lock delle operazioni ancora acquisite. Il
+     * metodo è thread safe.
+     *
+     * @param batch i record da aggiungere
+     * @throws IOException in caso di errori di I/O
+     */
+    public synchronized void append(List<Record> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+        checkFailure();
+        try {
+            for (Record record : batch) {
+                record.lsn = ++this.lastLsn;
+                ByteBuffer buffer = encode(record);
+                this.bytes.addAndGet(buffer.remaining());
+                this.records.incrementAndGet();
+                this.segmentBytes += buffer.remaining();
+                switch (this.syncMode) {
+                    case "group" -> addPending(buffer);
+                    case "command" -> {
+                        write(buffer);
+                        sync();
+                    }
+                    default -> write(buffer);
+                }
+            }
+            if (this.syncMode.equals("batch"))
+                sync();
+        } catch (IOException e) {
+            // I record del batch non sono sul disco (o lo sono in parte): il chiamante
+            // deve annullare le operazioni
+            this.failure = e;
+            throw e;
+        }
+        this.appendedLsn.get()[0] = this.lastLsn;
+        if (this.syncMode.equals("group"))
+            // Sveglia del flusher
+            notifyAll();
+        else
+            this.durableLsn = this.lastLsn;
+    }
+
+    /**
+     * Metodo per ottenere, e azzerare, l'LSN dell'ultimo record aggiunto dal
+     * thread corrente: il worker lo usa, al termine di una richiesta, per sapere
+     * se la risposta deve aspettare che i record siano sul disco.
+     *
+     * @return l'LSN dell'ultimo record aggiunto dal thread dopo la chiamata
+     *         precedente, oppure 0 se non ne ha aggiunti
+     */
+    public long takeAppendedLsn() {
+        long[] lsn = this.appendedLsn.get();
+        long result = lsn[0];
+        lsn[0] = 0;
+        return result;
+    }
+
+    /**
+     * Metodo per sapere se un record è sul disco
+     *
+     * @param lsn l'LSN del record
+     * @return true se il record è stato scritto (e sincronizzato, se previsto)
+     */
+    public synchronized boolean isDurable(long lsn) {
+        return lsn <= this.durableLsn;
+    }
+
+    /**
+     * Esegue un'azione quando un record è sul disco: subito, nel thread
+     * chiamante, se lo è già, altrimenti nel thread flusher dopo la fsync del
+     * gruppo del record. Se la scrittura del record fallisce (o è già fallita)
+     * esegue invece onFailure. Le azioni non devono bloccarsi. Il metodo è
+     * thread safe.
+     *
+     * @param lsn       l'LSN del record
+     * @param action    l'azione da eseguire
+     * @param onFailure l'azione da eseguire se il record non può essere scritto
+     */
+    public void whenDurable(long lsn, Runnable action, Runnable onFailure) {
+        boolean failed;
+        synchronized (this) {
+            failed = lsn > this.durableLsn && this.failure != null;
+            if (lsn > this.durableLsn && !failed) {
+                this.waiters.add(new Waiter(lsn, action, onFailure));
+                return;
+            }
+        }
+        if (failed)
+            onFailure.run();
+        else
+            action.run();
+    }
+
+    /**
+     * Attende che un record sia sul disco. Il metodo è thread safe.
+     *
+     * @param lsn l'LSN del record
+     * @return true se il record è sul disco, false se non può essere scritto
+     *         (o se il thread è stato interrotto)
+     */
+    public synchronized boolean awaitDurable(long lsn) {
+        try {
+            while (lsn > this.durableLsn && this.failure == null)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return lsn <= this.durableLsn;
+    }
+
+    /**
+     * Metodo per ottenere l'LSN dell'ultimo record aggiunto. Per avere l'LSN
+     * dell'ultima operazione contenuta in uno stato salvato va chiamato con
+     * tutte le lock dello stato acquisite.
+     *
+     * @return l'LSN dell'ultimo record
+     */
+    public synchronized long getLastLsn() {
+        return this.lastLsn;
+    }
+
+    /**
+     * Metodo per ottenere i bytes dei record aggiunti al segmento corrente,
+     * ovvero successivi all'ultimo snapshot
+     *
+     * @return i bytes del segmento corrente
+     */
+    public synchronized long getSegmentBytes() {
+        return this.segmentBytes;
+    }
+
+    /**
+     * Passa a un nuovo segmento, dopo che tutti i record aggiunti sono sul disco:
+     * il segmento precedente contiene solo record con LSN minore o uguale a
+     * getLastLsn(). Va chiamato con tutte le lock dello stato acquisite, in modo
+     * che non vengano aggiunti record. Se il segmento corrente non ha record non
+     * fa niente.
+     *
+     * @throws IOException in caso di errori di I/O
+     */
+    public synchronized void rotate() throws IOException {
+        // Dopo un errore di scrittura non si fanno più snapshot: lo stato salvato
+        // resta quello coerente con i record sul disco
+        checkFailure();
+        if (this.segmentStart == this.lastLsn)
+            return;
+        // In modalità "group" il flusher deve prima aver scritto tutti i record
+        if (!awaitDurable(this.lastLsn))
+            checkFailure();
+        synchronized (this.fileLock) {
+            this.channel.close();
+            this.channel = openSegment(this.lastLsn);
+        }
+        this.segmentStart = this.lastLsn;
+        this.segmentBytes = 0;
+    }
+
+    /**
+     * Cancella i segmenti che contengono solo record con LSN minore o uguale a
+     * quello indicato, ovvero già contenuti in tutti gli snapshot conservati. Il
+     * segmento corrente non viene mai cancellato.
+     *
+     * @param lsn l'LSN dell'ultima operazione contenuta nello snapshot più
+     *            vecchio tra quelli conservati
+     * @return il numero di segmenti cancellati
+     * @throws IOException in caso di errori di I/O
+     */
+    public int prune(long lsn) throws IOException {
+        List<Path> segments = listSegments(this.dir);
+        int deleted = 0;
+        // Un segmento contiene record fino al nome del segmento successivo
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (segmentLsn(segments.get(i + 1)) > lsn)
+                break;
+            Files.delete(segments.get(i));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Metodo per ottenere le statistiche del journal
+     *
+     * @return una stringa con i contatori del journal e la durata delle fsync
+     */
+    public String stats() {
+        long syncs = this.syncLatency.getCount();
+        String recordsPerSync = syncs == 0 ? "0" : String.valueOf(Math.round(this.records.get() * 10.0 / syncs) / 10.0);
+        long durable;
+        synchronized (this) {
+            durable = this.durableLsn;
+        }
+        return "sync=" + this.syncMode + " lastLsn=" + getLastLsn() + " durableLsn=" + durable + " segmentBytes="
+                + getSegmentBytes() + " records="
+                + this.records.get() + " bytes=" + this.bytes.get() + " recordsPerFsync=" + recordsPerSync
+                + " fsync: " + this.syncLatency.summary();
+    }
+
+    /**
+     * Ciclo del thread flusher, in modalità "group": aspetta che ci siano record
+     * in attesa, chiude il gruppo quando è pieno o quando il suo primo record ha
+     * atteso il tempo massimo, lo scrive sul file con una sola fsync ed esegue le
+     * azioni dei record del gruppo. Mentre il flusher scrive, i nuovi record si
+     * accumulano nel gruppo successivo. Se la scrittura fallisce il gruppo non
+     * viene confermato: il flusher esegue le azioni di errore di tutti i record
+     * in attesa, poi l'azione di errore del journal, e termina.
+     */
+    private void flushLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(PENDING_CAPACITY);
+        while (true) {
+            ByteBuffer group;
+            long groupLsn;
+            synchronized (this) {
+                try {
+                    while (this.pendingRecords == 0)
+                        wait();
+                    long remaining;
+                    while (this.pendingRecords < this.groupSize
+                            && (remaining = this.pendingSince + this.groupWaitNanos - System.nanoTime()) > 0)
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Scambio dei buffer: i nuovi record vanno nell'altro
+                group = this.pending;
+                groupLsn = this.lastLsn;
+                this.pending = spare.clear();
+                this.pendingRecords = 0;
+            }
+            try {
+                group.flip();
+                synchronized (this.fileLock) {
+                    write(group);
+                    sync();
+                }
+            } catch (IOException e) {
+                System.err.println("Server: scrittura del journal fallita, le operazioni in attesa non vengono confermate ("
+                        + e.getMessage() + ")");
+                // Nessun record in attesa può più arrivare sul disco: il gruppo può essere
+                // scritto in parte, e i record successivi sarebbero illeggibili
+                ArrayList<Runnable> failed = new ArrayList<>();
+                synchronized (this) {
+                    this.failure = e;
+                    while (!this.waiters.isEmpty())
+                        failed.add(this.waiters.poll().onFailure);
+                    // Sveglia di chi aspetta con awaitDurable
+                    notifyAll();
+                }
+                for (Runnable action : failed)
+                    action.run();
+                this.onFailure.run();
+                return;
+            }
+            spare = group;
+            // Azioni dei record del gruppo, eseguite senza lock
+            ArrayList<Runnable> ready = new ArrayList<>();
+            synchronized (this) {
+                this.durableLsn = groupLsn;
+                while (!this.waiters.isEmpty() && this.waiters.peek().lsn <= groupLsn)
+                    ready.add(this.waiters.poll().action);
+                // Sveglia di chi aspetta con awaitDurable
+                notifyAll();
+            }
+            for (Runnable action : ready)
+                action.run();
+        }
+    }
+
+    /**
+     * Metodo ausiliario che controlla se c'è stato un errore di scrittura. Va
+     * chiamato con il monitor del journal acquisito.
+     *
+     * @throws IOException se il journal non accetta più record
+     */
+    private void checkFailure() throws IOException {
+        if (this.failure != null)
+            throw new IOException("Journal non più scrivibile dopo un errore di scrittura", this.failure);
+    }
+
+    /**
+     * Metodo ausiliario che accoda un record codificato per il flusher
+     *
+     * @param buffer il record codificato
+     */
+    private void addPending(ByteBuffer buffer) {
+        if (this.pendingRecords == 0)
+            this.pendingSince = System.nanoTime();
+        if (this.pending.remaining() < buffer.remaining()) {
+            // Raddoppio della capacità del buffer
+            ByteBuffer larger = ByteBuffer
+                    .allocate(Math.max(this.pending.capacity() * 2, this.pending.position() + buffer.remaining()));
+            this.pending.flip();
+            larger.put(this.pending);
+            this.pending = larger;
+        }
+        this.pending.put(buffer);
+        this.pendingRecords++;
+    }
+
+    /**
+     * Metodo ausiliario che crea (o svuota) un segmento
+     *
+     * @param lsn l'LSN dell'ultimo record precedente al segmento
+     * @return il segmento aperto in scrittura
+     * @throws IOException in caso di errori di I/O
+     */
+    private FileChannel openSegment(long lsn) throws IOException {
+        // Un segmento con lo stesso nome non può contenere record validi (avrebbero
+        // LSN maggiore di lsn): al più un record interrotto
+        FileChannel segment = FileChannel.open(this.dir.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, lsn,
+                SEGMENT_SUFFIX)), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // Il nuovo file deve essere nella directory anche dopo un crash
+        if (!this.syncMode.equals("none"))
+            forceDirectory(this.dir);
+        return segment;
+    }
+
+    /**
+     * Forza la scrittura sul disco di una directory, ovvero dei file creati,
+     * rinominati o cancellati al suo interno. Sui sistemi che non permettono di
+     * aprire una directory (Windows) non fa niente.
+     *
+     * @param dir la directory
+     */
+    public static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directory non apribile: la durabilità dipende dal file system
+        }
+    }
+
+    /**
+     * Metodo ausiliario che elenca i segmenti di una directory
+     *
+     * @param dir la directory dei segmenti
+     * @return i segmenti, in ordine di LSN (vuota se la directory non esiste)
+     * @throws IOException in caso di errori di I/O
+     */
+    private static List<Path> listSegments(Path dir) throws IOException {
+        ArrayList<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        segments.sort(Comparator.comparingLong(Journal::segmentLsn));
+        return segments;
+    }
+
+    /**
+     * Metodo ausiliario che ricava l'LSN dal nome di un segmento
+     *
+     * @param segment il segmento
+     * @return l'LSN dell'ultimo record precedente al segmento
+     */
+    private static long segmentLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Metodo ausiliario che scrive un buffer sul file del journal
+     *
+     * @param buffer il buffer da scrivere
+     * @throws IOException in caso di errori di I/O
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            this.channel.write(buffer);
+    }
+
+    /**
+     * Metodo ausiliario che forza la scrittura sul disco del journal,
+     * registrandone la durata
+     *
+     * @throws IOException in caso di errori di I/O
+     */
+    private void sync() throws IOException {
+        long start = System.nanoTime();
+        this.channel.force(false);
+        this.syncLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Metodo ausiliario che codifica un record, con intestazione
+     *
+     * @param record il record
+     * @return un buffer pronto per essere scritto
+     */
+    private static ByteBuffer encode(Record record) {
+        byte[][] fields = new byte[record.fields.length][];
+        int length = 8 + 1 + 8 + 1;
+        for (int i = 0; i < fields.length; i++) {
+            // Un campo può essere null (ad esempio la descrizione di una carta)
+            fields[i] = record.fields[i] == null ? null : record.fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + (fields[i] == null ? 0 : fields[i].length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(record.lsn);
+        buffer.put((byte) record.type.ordinal());
+        buffer.putLong(record.time);
+        buffer.put((byte) fields.length);
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+                continue;
+            }
+            buffer.putInt(field.length);
+            buffer.put(field);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    /**
+     * Metodo ausiliario che decodifica il corpo di un record
+     *
+     * @param body il corpo del record
+     * @return il record
+     */
+    private static Record decode(ByteBuffer body) {
+        long lsn = body.getLong();
+        Type type = Type.values()[body.get()];
+        long time = body.getLong();
+        String[] fields = new String[body.get()];
+        for (int i = 0; i < fields.length; i++) {
+            int length = body.getInt();
+            if (length == -1)
+                continue;
+            byte[] field = new byte[length];
+            body.get(field);
+            fields[i] = new String(field, StandardCharsets.UTF_8);
+        }
+        Record record = new Record(type, time, fields);
+        record.lsn = lsn;
+        return record;
+    }
+}
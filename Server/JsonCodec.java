@@ -0,0 +1,719 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Codifica JSON dei messaggi, compatibile con quella prodotta da Gson tramite
+ * riflessione (stessi nomi dei campi, campi null omessi), ma letta e scritta
+ * direttamente sui byte buffer dei frame: la decodifica legge dal buffer del
+ * messaggio con un JsonReader, e la codifica scrive con un JsonWriter in un
+ * buffer preso dal pool, che diventa il frame da inviare. Non vengono create
+ * stringhe intermedie né oggetti Gson per ogni messaggio: l'istanza di Gson è
+ * condivisa (Gson è thread safe) e per ClientServerMessage, User, Project e
+ * Card sono registrati dei TypeAdapter scritti a mano, senza riflessione.
+ */
+public class JsonCodec {
+
+    /** Istanza di Gson condivisa, con i TypeAdapter dei messaggi registrati */
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(ClientServerMessage.class, new MessageAdapter())
+            .registerTypeAdapter(User.class, new UserAdapter())
+            .registerTypeAdapter(Project.class, new ProjectAdapter())
+            .registerTypeAdapter(Card.class, new CardAdapter(false))
+            .create();
+
+    /**
+     * Istanza di Gson per i file dello stato del server: le carte vengono scritte
+     * anche con gli istanti degli spostamenti ("historyTimes"), oltre alla storia
+     * in forma testuale, che resta quella dei file delle versioni precedenti
+     */
+    private static final Gson stateGson = new GsonBuilder()
+            .registerTypeAdapter(Card.class, new CardAdapter(true))
+            .create();
+
+    /** Adapter dei messaggi, preso una volta sola dall'istanza condivisa */
+    private static final TypeAdapter<ClientServerMessage> messageAdapter = gson.getAdapter(ClientServerMessage.class);
+
+    /**
+     * Metodo getter
+     *
+     * @return l'istanza di Gson condivisa, con i TypeAdapter dei messaggi
+     */
+    public static Gson gson() {
+        return gson;
+    }
+
+    /**
+     * Metodo getter
+     *
+     * @return l'istanza di Gson per i file dello stato del server
+     */
+    public static Gson stateGson() {
+        return stateGson;
+    }
+
+    /**
+     * Decodifica un messaggio JSON, consumando il buffer
+     *
+     * @param in il buffer contenente il messaggio in UTF-8, pronto per la lettura
+     * @return il messaggio decodificato
+     * @throws JsonParseException se il messaggio non è un JSON valido
+     */
+    public static ClientServerMessage decode(ByteBuffer in) {
+        try {
+            JsonReader reader = gson.newJsonReader(
+                    new InputStreamReader(new ByteBufferInputStream(in), StandardCharsets.UTF_8));
+            return messageAdapter.read(reader);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            throw new JsonParseException("Messaggio JSON non valido", e);
+        }
+    }
+
+    /**
+     * Codifica un messaggio in JSON e crea il frame da inviare, in un buffer
+     * preso dal pool. Il buffer va restituito al pool quando il frame è stato
+     * inviato.
+     *
+     * @param message   il messaggio da codificare
+     * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+     * @return il buffer contenente il frame, pronto per la lettura
+     */
+    public static ByteBuffer encodeFrame(ClientServerMessage message, long requestId) {
+        FrameOutputStream out = new FrameOutputStream(Frames.headerSize(requestId));
+        try {
+            JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            messageAdapter.write(writer, message);
+            writer.flush();
+        } catch (IOException e) {
+            // Lo stream scrive in memoria, non può fallire
+            throw new IllegalStateException(e);
+        }
+        return out.finish(requestId);
+    }
+
+    /**
+     * InputStream che legge i bytes di un ByteBuffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /** Il buffer da cui leggere */
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!this.buffer.hasRemaining())
+                return -1;
+            int count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * OutputStream che scrive in un buffer preso dal pool, lasciando all'inizio lo
+     * spazio per l'intestazione del frame. Se il buffer si riempie ne viene preso
+     * uno grande il doppio e quello vecchio torna nel pool.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        /** La dimensione dell'intestazione del frame */
+        private final int headerSize;
+
+        /** Il buffer in cui si sta scrivendo */
+        private ByteBuffer buffer;
+
+        public FrameOutputStream(int headerSize) {
+            this.headerSize = headerSize;
+            this.buffer = BufferPool.shared().acquire(BufferPool.MIN_CLASS_SIZE * 4);
+            this.buffer.limit(this.buffer.capacity()).position(headerSize);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            this.buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            ensureRemaining(length);
+            this.buffer.put(bytes, offset, length);
+        }
+
+        /**
+         * Metodo ausiliario che garantisce lo spazio per altri bytes
+         *
+         * @param count il numero di bytes da scrivere
+         */
+        private void ensureRemaining(int count) {
+            if (this.buffer.remaining() >= count)
+                return;
+            int capacity = this.buffer.capacity();
+            while (capacity - this.buffer.position() < count)
+                capacity *= 2;
+            ByteBuffer bigger = BufferPool.shared().acquire(capacity);
+            bigger.limit(bigger.capacity());
+            this.buffer.flip();
+            bigger.put(this.buffer);
+            BufferPool.shared().release(this.buffer);
+            this.buffer = bigger;
+        }
+
+        /**
+         * Scrive l'intestazione del frame nello spazio riservato
+         *
+         * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+         * @return il buffer contenente il frame, pronto per la lettura
+         */
+        public ByteBuffer finish(long requestId) {
+            this.buffer.flip();
+            Frames.putHeader(this.buffer, this.buffer.limit() - this.headerSize, requestId);
+            return this.buffer;
+        }
+    }
+
+    /**
+     * Metodo ausiliario che scrive una lista di stringhe
+     *
+     * @param out     il writer
+     * @param strings la lista
+     * @throws IOException in caso di errori di scrittura
+     */
+    private static void writeStrings(JsonWriter out, ArrayList<String> strings) throws IOException {
+        out.beginArray();
+        for (String string : strings)
+            out.value(string);
+        out.endArray();
+    }
+
+    /**
+     * Metodo ausiliario che legge una lista di stringhe
+     *
+     * @param in il reader
+     * @return la lista
+     * @throws IOException in caso di errori di lettura
+     */
+    private static ArrayList<String> readStrings(JsonReader in) throws IOException {
+        ArrayList<String> strings = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext())
+            strings.add(readString(in));
+        in.endArray();
+        return strings;
+    }
+
+    /**
+     * Metodo ausiliario che legge una stringa, che può essere null
+     *
+     * @param in il reader
+     * @return la stringa
+     * @throws IOException in caso di errori di lettura
+     */
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Metodo ausiliario che scrive una lista di carte
+     *
+     * @param out   il writer
+     * @param cards la lista
+     * @throws IOException in caso di errori di scrittura
+     */
+    private static void writeCards(JsonWriter out, Collection<Card> cards) throws IOException {
+        out.beginArray();
+        for (Card card : cards)
+            CardAdapter.writeCard(out, card);
+        out.endArray();
+    }
+
+    /**
+     * Metodo ausiliario che legge una lista di carte
+     *
+     * @param in il reader
+     * @return la lista
+     * @throws IOException in caso di errori di lettura
+     */
+    private static ArrayList<Card> readCards(JsonReader in) throws IOException {
+        ArrayList<Card> cards = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext())
+            cards.add(CardAdapter.readCard(in));
+        in.endArray();
+        return cards;
+    }
+
+    /**
+     * TypeAdapter dei messaggi. I campi null non vengono scritti, come fa Gson
+     * con la riflessione.
+     */
+    private static class MessageAdapter extends TypeAdapter<ClientServerMessage> {
+
+        @Override
+        public void write(JsonWriter out, ClientServerMessage message) throws IOException {
+            if (message == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (message.getComando() != null)
+                out.name("comando").value(message.getComando().name());
+            if (message.getReply() != null)
+                out.name("reply").value(message.getReply().name());
+            if (message.getUser() != null) {
+                out.name("user");
+                UserAdapter.writeUser(out, message.getUser());
+            }
+            if (message.getProjects() != null) {
+                out.name("projects").beginArray();
+                for (Project project : message.getProjects())
+                    ProjectAdapter.writeProject(out, project);
+                out.endArray();
+            }
+            if (message.getMembers() != null)
+                writeStrings(out.name("members"), message.getMembers());
+            if (message.getCards() != null)
+                writeStrings(out.name("cards"), message.getCards());
+            if (message.getCard() != null) {
+                out.name("card");
+                CardAdapter.writeCard(out, message.getCard());
+            }
+            if (message.getNickname() != null)
+                out.name("nickname").value(message.getNickname());
+            if (message.getPassword() != null)
+                out.name("password").value(message.getPassword());
+            if (message.getProjectName() != null)
+                out.name("projectName").value(message.getProjectName());
+            if (message.getNewMember() != null)
+                out.name("newMember").value(message.getNewMember());
+            if (message.getCardName() != null)
+                out.name("cardName").value(message.getCardName());
+            if (message.getDescrizione() != null)
+                out.name("descrizione").value(message.getDescrizione());
+            if (message.getListaPartenza() != null)
+                out.name("listaPartenza").value(message.getListaPartenza());
+            if (message.getListaDestinazione() != null)
+                out.name("listaDestinazione").value(message.getListaDestinazione());
+            if (message.getBatch() != null) {
+                out.name("batch").beginArray();
+                for (ClientServerMessage command : message.getBatch())
+                    write(out, command);
+                out.endArray();
+            }
+            out.name("allOrNothing").value(message.isAllOrNothing());
+            if (message.getBatchReplies() != null) {
+                out.name("batchReplies").beginArray();
+                for (Replies reply : message.getBatchReplies())
+                    out.value(reply.name());
+                out.endArray();
+            }
+            if (message.getSessionId() != null)
+                out.name("sessionId").value(message.getSessionId());
+            if (message.getCardCounts() != null) {
+                out.name("cardCounts").beginArray();
+                for (int count : message.getCardCounts())
+                    out.value(count);
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public ClientServerMessage read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            ClientServerMessage message = new ClientServerMessage();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                // I valori null equivalgono a un campo assente
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "comando" -> message.setComando(Commands.valueOf(in.nextString()));
+                    case "reply" -> message.setReply(Replies.valueOf(in.nextString()));
+                    case "user" -> message.setUser(UserAdapter.readUser(in));
+                    case "projects" -> {
+                        ArrayList<Project> projects = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext())
+                            projects.add(ProjectAdapter.readProject(in));
+                        in.endArray();
+                        message.setProjects(projects);
+                    }
+                    case "members" -> message.setMembers(readStrings(in));
+                    case "cards" -> message.setCards(readStrings(in));
+                    case "card" -> message.setCard(CardAdapter.readCard(in));
+                    case "nickname" -> message.setNickname(in.nextString());
+                    case "password" -> message.setPassword(in.nextString());
+                    case "projectName" -> message.setProjectName(in.nextString());
+                    case "newMember" -> message.setNewMember(in.nextString());
+                    case "cardName" -> message.setCardName(in.nextString());
+                    case "descrizione" -> message.setDescrizione(in.nextString());
+                    case "listaPartenza" -> message.setListaPartenza(in.nextString());
+                    case "listaDestinazione" -> message.setListaDestinazione(in.nextString());
+                    case "batch" -> {
+                        ArrayList<ClientServerMessage> batch = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext())
+                            batch.add(read(in));
+                        in.endArray();
+                        message.setBatch(batch);
+                    }
+                    case "allOrNothing" -> message.setAllOrNothing(in.nextBoolean());
+                    case "sessionId" -> message.setSessionId(in.nextLong());
+                    case "cardCounts" -> {
+                        ArrayList<Integer> cardCounts = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext())
+                            cardCounts.add(in.nextInt());
+                        in.endArray();
+                        message.setCardCounts(cardCounts);
+                    }
+                    case "batchReplies" -> {
+                        ArrayList<Replies> batchReplies = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext())
+                            batchReplies.add(Replies.valueOf(in.nextString()));
+                        in.endArray();
+                        message.setBatchReplies(batchReplies);
+                    }
+                    // Campi sconosciuti (ad esempio di una versione più recente del client)
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+    }
+
+    /**
+     * TypeAdapter degli utenti. Gli utenti della lista degli utenti registrati
+     * hanno a loro volta una lista (vuota) di utenti e di chat.
+     */
+    private static class UserAdapter extends TypeAdapter<User> {
+
+        @Override
+        public void write(JsonWriter out, User user) throws IOException {
+            writeUser(out, user);
+        }
+
+        @Override
+        public User read(JsonReader in) throws IOException {
+            return readUser(in);
+        }
+
+        public static void writeUser(JsonWriter out, User user) throws IOException {
+            if (user == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("nickname").value(user.getNickname());
+            out.name("password").value(user.getPassword());
+            out.name("online").value(user.isOnline());
+            if (user.getUsersList() != null) {
+                out.name("users").beginArray();
+                for (User other : user.getUsersList())
+                    writeUser(out, other);
+                out.endArray();
+            }
+            if (user.getChatsList() != null) {
+                out.name("chats").beginArray();
+                for (Chat chat : user.getChatsList()) {
+                    out.beginObject();
+                    if (chat.getAddress() != null)
+                        out.name("address").value(chat.getAddress().getHostAddress());
+                    out.name("port").value(chat.getPort());
+                    out.name("project").value(chat.getProject());
+                    if (chat.getMessages() != null)
+                        writeStrings(out.name("messages"), chat.getMessages());
+                    out.endObject();
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        public static User readUser(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String nickname = null, password = null;
+            boolean online = false;
+            ArrayList<User> users = new ArrayList<>();
+            ArrayList<Chat> chats = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "nickname" -> nickname = in.nextString();
+                    case "password" -> password = in.nextString();
+                    case "online" -> online = in.nextBoolean();
+                    case "users" -> {
+                        in.beginArray();
+                        while (in.hasNext())
+                            users.add(readUser(in));
+                        in.endArray();
+                    }
+                    case "chats" -> {
+                        in.beginArray();
+                        while (in.hasNext())
+                            chats.add(readChat(in));
+                        in.endArray();
+                    }
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new User(nickname, password, online, users, chats);
+        }
+
+        /**
+         * Metodo ausiliario che legge una chat (i messaggi non letti non vengono
+         * ricostruiti: il server non li usa)
+         *
+         * @param in il reader
+         * @return la chat
+         * @throws IOException in caso di errori di lettura
+         */
+        private static Chat readChat(JsonReader in) throws IOException {
+            String address = null, project = null;
+            int port = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "address" -> address = in.nextString();
+                    case "port" -> port = in.nextInt();
+                    case "project" -> project = in.nextString();
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            // L'indirizzo è numerico, quindi non viene fatta nessuna risoluzione DNS
+            return address == null ? new Chat(project) : new Chat(InetAddress.getByName(address), port, project);
+        }
+    }
+
+    /**
+     * TypeAdapter dei progetti
+     */
+    private static class ProjectAdapter extends TypeAdapter<Project> {
+
+        @Override
+        public void write(JsonWriter out, Project project) throws IOException {
+            writeProject(out, project);
+        }
+
+        @Override
+        public Project read(JsonReader in) throws IOException {
+            return readProject(in);
+        }
+
+        public static void writeProject(JsonWriter out, Project project) throws IOException {
+            if (project == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("name").value(project.getName());
+            // Le carte e i membri si leggono dallo snapshot del progetto, perché il
+            // messaggio viene codificato dopo il rilascio delle lock del server
+            ProjectSnapshot snapshot = project.getSnapshot();
+            writeCards(out.name("toDo"), snapshot.getList(CardList.TODO));
+            writeCards(out.name("inProgress"), snapshot.getList(CardList.INPROGRESS));
+            writeCards(out.name("toBeRevised"), snapshot.getList(CardList.TOBEREVISED));
+            writeCards(out.name("done"), snapshot.getList(CardList.DONE));
+            writeCards(out.name("cards"), snapshot.getAllCards());
+            writeStrings(out.name("members"), snapshot.getMembers());
+            if (project.getChatAddress() != null)
+                out.name("chatAddress").value(project.getChatAddress().getHostAddress());
+            if (project.getMulticastAddress() != null)
+                out.name("multicastAddress").value(project.getMulticastAddress());
+            out.name("chatPort").value(project.getChatPort());
+            out.endObject();
+        }
+
+        public static Project readProject(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String projectName = null, multicastAddress = null;
+            int chatPort = 0;
+            ArrayList<Card> toDo = null, inProgress = null, toBeRevised = null, done = null, cards = null;
+            ArrayList<String> members = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "name" -> projectName = in.nextString();
+                    case "toDo" -> toDo = readCards(in);
+                    case "inProgress" -> inProgress = readCards(in);
+                    case "toBeRevised" -> toBeRevised = readCards(in);
+                    case "done" -> done = readCards(in);
+                    case "cards" -> cards = readCards(in);
+                    case "members" -> members = readStrings(in);
+                    case "multicastAddress" -> multicastAddress = in.nextString();
+                    case "chatPort" -> chatPort = in.nextInt();
+                    // chatAddress viene ricavato da multicastAddress
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            Project project = new Project(projectName);
+            // I membri vengono memorizzati con i loro identificativi (i nickname non
+            // registrati vengono ignorati)
+            if (members != null) {
+                for (String member : members)
+                    project.addMember(ServerMain.getUserId(member));
+            }
+            // Le carte delle 4 liste, nel loro ordine, poi eventuali carte presenti solo
+            // nella lista di tutte le carte (addCard ignora quelle già aggiunte)
+            for (ArrayList<Card> list : Arrays.asList(toDo, inProgress, toBeRevised, done, cards)) {
+                if (list != null) {
+                    for (Card card : list)
+                        project.addCard(card);
+                }
+            }
+            if (multicastAddress != null)
+                project.setChatAddress(multicastAddress);
+            project.setChatPort(chatPort);
+            return project;
+        }
+    }
+
+    /**
+     * TypeAdapter delle carte
+     */
+    private static class CardAdapter extends TypeAdapter<Card> {
+
+        /** True se vanno scritti anche gli istanti degli spostamenti */
+        private final boolean withTimes;
+
+        public CardAdapter(boolean withTimes) {
+            this.withTimes = withTimes;
+        }
+
+        @Override
+        public void write(JsonWriter out, Card card) throws IOException {
+            if (card != null && this.withTimes) {
+                out.beginObject();
+                out.name("name").value(card.getName());
+                out.name("description").value(card.getDescription());
+                out.name("history").value(card.getHistory());
+                out.name("historyTimes").beginArray();
+                for (long time : card.getHistoryTimes())
+                    out.value(time);
+                out.endArray();
+                out.endObject();
+            } else
+                writeCard(out, card);
+        }
+
+        @Override
+        public Card read(JsonReader in) throws IOException {
+            return readCard(in);
+        }
+
+        public static void writeCard(JsonWriter out, Card card) throws IOException {
+            if (card == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("name").value(card.getName());
+            out.name("description").value(card.getDescription());
+            out.name("history").value(card.getHistory());
+            out.endObject();
+        }
+
+        public static Card readCard(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String name = null, description = null, history = null;
+            long[] times = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String field = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case "name" -> name = in.nextString();
+                    case "description" -> description = in.nextString();
+                    case "history" -> history = in.nextString();
+                    case "historyTimes" -> {
+                        ArrayList<Long> list = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext())
+                            list.add(in.nextLong());
+                        in.endArray();
+                        times = list.stream().mapToLong(Long::longValue).toArray();
+                    }
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            // La storia viene ricostruita dalla forma testuale (senza storia la carta è in TODO)
+            return Card.restore(name, description, history != null ? history : "TODO", times);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma di durate, con una classe per ogni potenza di 2 di nanosecondi:
+ * la classe i contiene le durate d con 2^(i-1) <= d < 2^i (la classe 0 le durate
+ * nulle). I percentili sono quindi approssimati per eccesso al limite superiore
+ * della classe, al massimo il doppio del valore reale, ma la registrazione di un
+ * campione costa solo qualche incremento atomico. La classe è thread safe.
+ */
+public class LatencyHistogram {
+
+    /** Numero di classi (le durate fino a 2^62 ns bastano per sempre) */
+    private static final int BUCKETS = 64;
+
+    /** Numero di campioni per ogni classe */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** Numero totale di campioni */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Somma delle durate dei campioni, in nanosecondi */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Durata massima registrata, in nanosecondi */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra un campione
+     *
+     * @param nanos la durata in nanosecondi (i valori negativi contano come 0)
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        this.buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        this.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Restituisce il numero di campioni registrati
+     *
+     * @return il numero di campioni
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Calcola un percentile, approssimato al limite superiore della classe che
+     * lo contiene (e comunque non oltre la durata massima registrata)
+     *
+     * @param percentile il percentile, tra 0 e 100
+     * @return la durata in nanosecondi, oppure 0 se non ci sono campioni
+     */
+    public long percentile(double percentile) {
+        long total = this.count.get();
+        if (total == 0)
+            return 0;
+        // Numero di campioni che devono stare sotto il percentile
+        long threshold = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= threshold && seen > 0)
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, this.max.get());
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Metodo per ottenere un riassunto dell'istogramma
+     *
+     * @return una stringa con numero di campioni, media, percentili e massimo
+     *         (le durate sono in microsecondi)
+     */
+    public String summary() {
+        long total = this.count.get();
+        long mean = total == 0 ? 0 : this.sum.get() / total;
+        return "n=" + total + " mean=" + micros(mean) + "us p50=" + micros(percentile(50)) + "us p99="
+                + micros(percentile(99)) + "us p999=" + micros(percentile(99.9)) + "us max="
+                + micros(this.max.get()) + "us";
+    }
+
+    /**
+     * Metodo ausiliario per la conversione da nanosecondi a microsecondi
+     *
+     * @param nanos la durata in nanosecondi
+     * @return la durata in microsecondi, con un decimale
+     */
+    private static String micros(long nanos) {
+        return String.valueOf(Math.round(nanos / 100.0) / 10.0);
+    }
+}
@@ -1,40 +1,87 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serial;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implementazione di un progetto in Worth. I progetti sono identificati
- * univocamente da loro nome.
+ * univocamente da loro nome; dentro il server hanno anche un identificativo
+ * numerico, assegnato da ServerMain, e i membri sono memorizzati con gli
+ * identificativi numerici degli utenti. I nickname dei membri vengono ricavati
+ * solo quando servono (risposte ai client, serializzazione, salvataggio).
  */
 public class Project implements Serializable {
     @Serial
     private static final long serialVersionUID = -6249673315807452565L;
 
+    /**
+     * Campi serializzati, gli stessi della versione con una ArrayList per ogni
+     * lista di carte: il client riceve i progetti tramite RMI e li legge con
+     * quella forma. Le liste vengono costruite da writeObject.
+     */
+    @Serial
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("toDo", ArrayList.class),
+            new ObjectStreamField("inProgress", ArrayList.class),
+            new ObjectStreamField("toBeRevised", ArrayList.class),
+            new ObjectStreamField("done", ArrayList.class),
+            new ObjectStreamField("cards", ArrayList.class),
+            new ObjectStreamField("members", ArrayList.class),
+            new ObjectStreamField("chatAddress", InetAddress.class),
+            new ObjectStreamField("multicastAddress", String.class),
+            new ObjectStreamField("chatPort", int.class) };
+
     /** Il nome del progetto */
     private final String name;
 
-    /** Lista TODO */
-    private final ArrayList<Card> toDo;
+    /** Tutte le carte del progetto, per nome, in ordine di creazione */
+    private final transient LinkedHashMap<String, Card> cards;
 
-    /** Lista INPROGRESS */
-    private final ArrayList<Card> inProgress;
+    /**
+     * Prima e ultima carta di ogni lista (indicizzate con l'ordinale di
+     * CardList). Le carte di una lista sono collegate tra loro dai campi prev e
+     * next, quindi aggiungere, spostare e rimuovere una carta costa O(1).
+     */
+    private final transient Card[] heads, tails;
 
-    /** Lista TOBEREVISED */
-    private final ArrayList<Card> toBeRevised;
+    /**
+     * Numero di carte in ogni lista (indicizzato con l'ordinale di CardList),
+     * aggiornato a ogni aggiunta e spostamento
+     */
+    private final transient int[] sizes;
 
-    /** Lista DONE */
-    private final ArrayList<Card> done;
+    /**
+     * Identificativo numerico del progetto, assegnato da ServerMain quando il
+     * progetto viene aggiunto ai progetti creati (-1 prima)
+     */
+    private transient int id;
 
     /**
-     * Una lista contenente una copia di tutte le carte che appartengono al 
-     * progetto
+     * Gli identificativi dei membri del progetto, in ordine di aggiunta (solo i
+     * primi memberCount elementi sono validi)
      */
-    private final ArrayList<Card> cards;
+    private transient int[] memberIds;
 
-    /** I nickname dei membri del progetto */
-    private final ArrayList<String> members;
+    /** Il numero di membri del progetto */
+    private transient int memberCount;
+
+    /**
+     * Insieme degli identificativi dei membri, per controllare l'appartenenza al
+     * progetto in tempo costante
+     */
+    private final transient BitSet memberSet;
 
     /** Indirizzo (multicast) della chat */
     private InetAddress chatAddress;
@@ -46,68 +93,325 @@ public class Project implements Serializable {
     private int chatPort;
 
     /**
-     * Costruttore
+     * Lock del progetto, per le liste delle carte e dei membri. Non viene
+     * serializzata (il client riceve i progetti solo per le chat).
+     */
+    private final transient ReentrantReadWriteLock lock;
+
+    /**
+     * True se il progetto è stato cancellato. Va letto con la lock del progetto
+     * acquisita: chi ha trovato il progetto prima della cancellazione non deve
+     * più modificarlo.
+     */
+    private transient boolean deleted;
+
+    /**
+     * Versione del progetto, incrementata a ogni modifica (con la write lock del
+     * progetto acquisita)
+     */
+    private transient long version;
+
+    /**
+     * Lo snapshot dell'ultima versione del progetto, oppure null se il progetto
+     * è stato modificato dopo l'ultimo snapshot (vedi getSnapshot)
+     */
+    private transient volatile ProjectSnapshot snapshot;
+
+    /**
+     * Il riepilogo dell'ultima versione del progetto, sostituito a ogni
+     * modifica (vedi publishSummary)
+     */
+    private transient volatile ProjectSummary summary;
+
+    /**
+     * True se il progetto è stato modificato dopo l'ultimo checkpoint dello
+     * stato (un progetto nuovo non è ancora in nessun checkpoint). Protetto dalla
+     * lock del progetto.
+     */
+    private transient boolean dirty;
+
+    /**
+     * I nomi delle carte aggiunte, spostate o rimosse dopo l'ultimo checkpoint
+     * dello stato. Protetto dalla lock del progetto.
+     */
+    private final transient HashSet<String> dirtyCards;
+
+    /**
+     * Costruttore: crea un progetto senza membri
+     * 
+     * @param name il nome del progetto
+     */
+    public Project(String name) {
+        this.name = name;
+        this.id = -1;
+        this.cards = new LinkedHashMap<>();
+        this.heads = new Card[CardList.values().length];
+        this.tails = new Card[CardList.values().length];
+        this.sizes = new int[CardList.values().length];
+        this.memberIds = new int[4];
+        this.memberSet = new BitSet();
+        this.lock = new ReentrantReadWriteLock();
+        this.dirty = true;
+        this.dirtyCards = new HashSet<>();
+        this.summary = new ProjectSummary(false, new BitSet(), this.sizes.clone());
+    }
+
+    /**
+     * Costruttore utilizzato dalla codifica dei messaggi (BinaryCodec), comune
+     * a client e server
      * 
      * @param name            il nome del progetto
-     * @param nickFirstMember il nickname del primo membro del progetto, ovvero
-     *                        l'utente che ne ha richiesto la creazione
+     * @param nickFirstMember il nickname del primo membro del progetto, oppure
+     *                        null per un progetto senza membri
      */
     public Project(String name, String nickFirstMember) {
-        this.name = name;
-        this.toDo = new ArrayList<>();
-        this.inProgress = new ArrayList<>();
-        this.toBeRevised = new ArrayList<>();
-        this.done = new ArrayList<>();
-        this.cards = new ArrayList<>();
-        this.members = new ArrayList<>();
-        this.members.add(nickFirstMember);
+        this(name);
+        if (nickFirstMember != null)
+            addMember(ServerMain.getUserId(nickFirstMember));
     }
 
     public String getName() {
         return this.name;
     }
 
+    public int getId() {
+        return this.id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Metodo per sapere se un utente è membro del progetto
+     * 
+     * @param userId l'identificativo dell'utente
+     * @return true se l'utente è membro del progetto
+     */
+    public boolean isMember(int userId) {
+        return userId >= 0 && this.memberSet.get(userId);
+    }
+
+    /**
+     * Aggiunge un membro al progetto, in fondo alla lista dei membri
+     * 
+     * @param userId l'identificativo dell'utente
+     * @return true se è stato aggiunto, false se era già membro (o se
+     *         l'identificativo non è valido)
+     */
+    public boolean addMember(int userId) {
+        if (userId < 0 || this.memberSet.get(userId))
+            return false;
+        changed(null);
+        if (this.memberCount == this.memberIds.length)
+            this.memberIds = Arrays.copyOf(this.memberIds, this.memberCount * 2);
+        this.memberIds[this.memberCount++] = userId;
+        this.memberSet.set(userId);
+        publishSummary(true);
+        return true;
+    }
+
+    /**
+     * Rimuove un membro dal progetto (utilizzato quando un batch all-or-nothing
+     * viene annullato)
+     * 
+     * @param userId l'identificativo dell'utente
+     */
+    public void removeMember(int userId) {
+        if (!isMember(userId))
+            return;
+        changed(null);
+        this.memberSet.clear(userId);
+        for (int i = 0; i < this.memberCount; i++) {
+            if (this.memberIds[i] == userId) {
+                System.arraycopy(this.memberIds, i + 1, this.memberIds, i, this.memberCount - i - 1);
+                this.memberCount--;
+                break;
+            }
+        }
+        publishSummary(true);
+    }
+
+    /**
+     * Metodo per ottenere gli identificativi dei membri del progetto
+     * 
+     * @return una copia degli identificativi, in ordine di aggiunta
+     */
+    public int[] getMemberIds() {
+        return Arrays.copyOf(this.memberIds, this.memberCount);
+    }
+
+    /**
+     * Metodo per ottenere i nickname dei membri del progetto, ricavati dagli
+     * identificativi
+     * 
+     * @return una nuova lista con i nickname dei membri, in ordine di aggiunta
+     */
     public ArrayList<String> getMembers() {
-        return this.members;
+        ArrayList<String> members = new ArrayList<>(this.memberCount);
+        for (int i = 0; i < this.memberCount; i++)
+            members.add(ServerMain.getNickname(this.memberIds[i]));
+        return members;
+    }
+
+    /**
+     * Metodo per ottenere tutte le carte del progetto, in ordine di creazione
+     * 
+     * @return una vista non modificabile delle carte del progetto
+     */
+    public Collection<Card> getAllCards() {
+        return Collections.unmodifiableCollection(this.cards.values());
     }
 
-    public ArrayList<Card> getAllCards() {
-        return this.cards;
+    /**
+     * Metodo per cercare una carta del progetto
+     * 
+     * @param cardName il nome della carta
+     * @return la carta, oppure null se non c'è nessuna carta con quel nome
+     */
+    public Card getCard(String cardName) {
+        return this.cards.get(cardName);
     }
 
     /**
-     * Metodo per ottenere il riferimento ad una delle 4 liste della chat (TODO,
+     * Aggiunge una carta al progetto, in fondo alla lista in cui si trova
+     * secondo la sua storia (TODO per una carta appena creata).
+     * 
+     * @param card la carta da aggiungere
+     * @return true se è stata aggiunta, false se esiste già una carta con lo
+     *         stesso nome
+     */
+    public boolean addCard(Card card) {
+        if (this.cards.putIfAbsent(card.getName(), card) != null)
+            return false;
+        changed(card);
+        link(card);
+        publishSummary(false);
+        return true;
+    }
+
+    /**
+     * Rimuove una carta dal progetto (utilizzato quando un batch all-or-nothing
+     * viene annullato, o quando la scrittura del journal fallisce)
+     * 
+     * @param card la carta da rimuovere
+     */
+    public void removeCard(Card card) {
+        changed(card);
+        unlink(card);
+        this.cards.remove(card.getName());
+        publishSummary(false);
+    }
+
+    /**
+     * Sposta una carta in fondo a un'altra lista, aggiornandone la storia
+     * 
+     * @param card la carta da spostare
+     * @param list la lista di destinazione
+     */
+    public void moveCard(Card card, CardList list) {
+        moveCard(card, list, System.currentTimeMillis());
+    }
+
+    /**
+     * Sposta una carta in fondo a un'altra lista, aggiornandone la storia con
+     * l'istante indicato
+     * 
+     * @param card la carta da spostare
+     * @param list la lista di destinazione
+     * @param time l'istante dello spostamento, in millisecondi
+     */
+    public void moveCard(Card card, CardList list, long time) {
+        changed(card);
+        unlink(card);
+        card.updateHistory(list, time);
+        link(card);
+        publishSummary(false);
+    }
+
+    /**
+     * Annulla l'ultimo spostamento di una carta, che torna in fondo alla lista
+     * precedente (utilizzato quando un batch all-or-nothing viene annullato, o
+     * quando la scrittura del journal fallisce)
+     * 
+     * @param card la carta da riportare nella lista precedente
+     */
+    public void revertMove(Card card) {
+        changed(card);
+        unlink(card);
+        card.revertHistory();
+        link(card);
+        publishSummary(false);
+    }
+
+    /**
+     * Metodo per ottenere le carte di una delle 4 liste del progetto (TODO,
      * INPROGRESS, TOBEREVISED, DONE)
      * 
-     * @param listName il nome della lista
-     * @return il riferimento alla lista
-     */
-    public ArrayList<Card> getList(String listName) {
-        ArrayList<Card> list;
-        switch (listName.toUpperCase()) {
-            case "TODO" -> list = this.getToDo();
-            case "INPROGRESS" -> list = this.getInProgress();
-            case "TOBEREVISED" -> list = this.getToBeRevised();
-            case "DONE" -> list = this.getDone();
-            default -> list = null;
-        }
-        return list;
+     * @param list la lista
+     * @return una copia della lista, in ordine di arrivo delle carte
+     */
+    public ArrayList<Card> getList(CardList list) {
+        ArrayList<Card> result = new ArrayList<>();
+        for (Card card = this.heads[list.ordinal()]; card != null; card = card.next)
+            result.add(card);
+        return result;
     }
 
-    public ArrayList<Card> getToDo() {
-        return this.toDo;
+    /**
+     * Metodo per ottenere il numero di carte di una lista, senza scorrerla
+     * 
+     * @param list la lista
+     * @return il numero di carte nella lista
+     */
+    public int getListSize(CardList list) {
+        return this.sizes[list.ordinal()];
     }
 
-    public ArrayList<Card> getInProgress() {
-        return this.inProgress;
+    /**
+     * Metodo per sapere se tutte le carte del progetto sono nella lista DONE
+     * 
+     * @return true se tutte le carte sono in DONE (anche se non ci sono carte)
+     */
+    public boolean isAllDone() {
+        return this.sizes[CardList.DONE.ordinal()] == this.cards.size();
     }
 
-    public ArrayList<Card> getToBeRevised() {
-        return this.toBeRevised;
+    /**
+     * Metodo ausiliario che collega una carta in fondo alla lista in cui si trova
+     * 
+     * @param card la carta
+     */
+    private void link(Card card) {
+        int list = card.getList().ordinal();
+        card.prev = this.tails[list];
+        card.next = null;
+        if (this.tails[list] == null)
+            this.heads[list] = card;
+        else
+            this.tails[list].next = card;
+        this.tails[list] = card;
+        this.sizes[list]++;
     }
 
-    public ArrayList<Card> getDone() {
-        return this.done;
+    /**
+     * Metodo ausiliario che scollega una carta dalla lista in cui si trova
+     * 
+     * @param card la carta
+     */
+    private void unlink(Card card) {
+        int list = card.getList().ordinal();
+        if (card.prev == null)
+            this.heads[list] = card.next;
+        else
+            card.prev.next = card.next;
+        if (card.next == null)
+            this.tails[list] = card.prev;
+        else
+            card.next.prev = card.prev;
+        card.prev = null;
+        card.next = null;
+        this.sizes[list]--;
     }
 
     public InetAddress getChatAddress() {
@@ -127,6 +431,117 @@ public class Project implements Serializable {
         }
     }
 
+    public ReentrantReadWriteLock getLock() {
+        return this.lock;
+    }
+
+    public boolean isDeleted() {
+        return this.deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        changed(null);
+        this.deleted = deleted;
+        publishSummary(false);
+    }
+
+    /**
+     * Metodo per ottenere lo snapshot dell'ultima versione del progetto, da
+     * leggere senza lock. Se il progetto è stato modificato dopo l'ultimo
+     * snapshot ne costruisce uno nuovo con la read lock del progetto e lo
+     * pubblica. Non va chiamato con la write lock del progetto acquisita, perché
+     * pubblicherebbe uno stato intermedio. Il metodo è thread safe.
+     * 
+     * @return lo snapshot del progetto
+     */
+    public ProjectSnapshot getSnapshot() {
+        ProjectSnapshot current = this.snapshot;
+        if (current != null)
+            return current;
+        this.lock.readLock().lock();
+        try {
+            // Un altro lettore può averlo costruito mentre si aspettava la lock
+            current = this.snapshot;
+            if (current == null) {
+                current = new ProjectSnapshot(this, this.version);
+                this.snapshot = current;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return current;
+    }
+
+    /**
+     * Metodo per ottenere il riepilogo dell'ultima versione del progetto, da
+     * leggere senza lock. Il metodo è thread safe.
+     * 
+     * @return il riepilogo del progetto
+     */
+    public ProjectSummary getSummary() {
+        return this.summary;
+    }
+
+    /**
+     * Metodo ausiliario che sostituisce il riepilogo del progetto al termine di
+     * una modifica, con la write lock acquisita. Copia solo i contatori delle
+     * liste e, se sono cambiati i membri, il loro insieme: il costo non dipende
+     * dal numero di carte.
+     *
+     * @param membersChanged true se la modifica ha aggiunto o rimosso un membro
+     */
+    private void publishSummary(boolean membersChanged) {
+        BitSet members = membersChanged ? (BitSet) this.memberSet.clone() : this.summary.getMemberSet();
+        this.summary = new ProjectSummary(this.deleted, members, this.sizes.clone());
+    }
+
+    /**
+     * Metodo per sapere se il progetto è stato modificato dopo l'ultimo
+     * checkpoint dello stato. Va chiamato con la lock del progetto acquisita.
+     *
+     * @return true se il progetto va scritto nel prossimo checkpoint
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Metodo per ottenere i nomi delle carte modificate dopo l'ultimo checkpoint
+     * dello stato (comprese quelle rimosse). Va chiamato con la lock del progetto
+     * acquisita.
+     *
+     * @return una nuova lista con i nomi delle carte
+     */
+    public ArrayList<String> getDirtyCards() {
+        return new ArrayList<>(this.dirtyCards);
+    }
+
+    /**
+     * Dimentica le modifiche, dopo che il progetto è stato scritto in un
+     * checkpoint (o ripristinato da un checkpoint). Va chiamato con la lock del
+     * progetto acquisita.
+     */
+    public void clearDirty() {
+        this.dirty = false;
+        this.dirtyCards.clear();
+    }
+
+    /**
+     * Metodo ausiliario chiamato a ogni modifica del progetto, con la write lock
+     * acquisita: passa alla versione successiva, scarta lo snapshot e segna il
+     * progetto (e la carta) da scrivere nel prossimo checkpoint
+     *
+     * @param card la carta modificata, oppure null se la modifica non riguarda
+     *             una carta
+     */
+    private void changed(Card card) {
+        this.version++;
+        this.snapshot = null;
+        this.dirty = true;
+        if (card != null)
+            this.dirtyCards.add(card.getName());
+    }
+
     public int getChatPort() {
         return this.chatPort;
     }
@@ -135,6 +550,29 @@ public class Project implements Serializable {
         this.chatPort = chatPort;
     }
 
+    /**
+     * Scrive il progetto con la stessa forma della versione con una ArrayList
+     * per ogni lista di carte (vedi serialPersistentFields)
+     * 
+     * @param out lo stream su cui scrivere il progetto
+     * @throws IOException in caso di errori di I/O
+     */
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", this.name);
+        fields.put("toDo", getList(CardList.TODO));
+        fields.put("inProgress", getList(CardList.INPROGRESS));
+        fields.put("toBeRevised", getList(CardList.TOBEREVISED));
+        fields.put("done", getList(CardList.DONE));
+        fields.put("cards", new ArrayList<>(this.cards.values()));
+        fields.put("members", getMembers());
+        fields.put("chatAddress", this.chatAddress);
+        fields.put("multicastAddress", this.multicastAddress);
+        fields.put("chatPort", this.chatPort);
+        out.writeFields();
+    }
+
     @Override
     public String toString() {
         return this.name;
@@ -147,4 +585,10 @@ public class Project implements Serializable {
         // Due progetti sono uguali se hanno lo stesso nome
         return this.name.equals(((Project) obj).getName());
     }
+
+    @Override
+    public int hashCode() {
+        // Coerente con equals: dipende solo dal nome
+        return this.name.hashCode();
+    }
 }
\ No newline at end of file
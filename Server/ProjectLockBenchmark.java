@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Benchmark della contesa sulle lock dei progetti. Un numero fisso di thread
+ * esegue richieste (SHOW_CARDS e MOVE_CARD) chiamando direttamente i metodi di
+ * ServerMain, come farebbero i worker, su un numero crescente di progetti: ogni
+ * thread lavora su un solo progetto, assegnato in round-robin. Per ogni numero
+ * di progetti stampa il throughput ottenuto, che con una lock per progetto
+ * cresce con il numero di progetti toccati in parallelo.
+ * <p>
+ * Con --global-lock=true ogni richiesta viene eseguita anche con una lock
+ * globale (in lettura per SHOW_CARDS, in scrittura per MOVE_CARD), come faceva
+ * il server con una sola lock per tutti i progetti, per confrontare i due casi
+ * (la lock globale copre anche l'invio delle notifiche sulle chat, quindi il
+ * confronto è leggermente a sfavore di questo caso).
+ * <p>
+ * Uso: java ProjectLockBenchmark [--threads=8] [--seconds=3] [--cards=1000]
+ * [--write-percent=10] [--global-lock=false]
+ */
+public class ProjectLockBenchmark {
+
+    /** Nickname dell'utente che esegue le richieste */
+    private static final String NICKNAME = "benchmark";
+
+    /** Lock globale usata con --global-lock=true */
+    private static final ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = 8;
+        int seconds = 3;
+        int cards = 1000;
+        int writePercent = 10;
+        boolean useGlobalLock = false;
+        for (String arg : args) {
+            // Divisione dell'argomento in nome e valore
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1)
+                throw new IllegalArgumentException("Argomento non valido: " + arg);
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "threads" -> threads = Integer.parseInt(value);
+                case "seconds" -> seconds = Integer.parseInt(value);
+                case "cards" -> cards = Integer.parseInt(value);
+                case "write-percent" -> writePercent = Integer.parseInt(value);
+                case "global-lock" -> useGlobalLock = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + arg);
+            }
+        }
+        // Creazione dell'utente e di un progetto per ogni thread, con le carte lette da SHOW_CARDS
+        ServerMain.putIfAbsent(new User(NICKNAME, NICKNAME));
+        for (int p = 0; p < threads; p++) {
+            ServerMain.createProject(NICKNAME, projectName(p));
+            ArrayList<ClientServerMessage> batch = new ArrayList<>();
+            for (int c = 0; c < cards; c++) {
+                ClientServerMessage command = new ClientServerMessage(Commands.ADD_CARD);
+                command.setProjectName(projectName(p));
+                command.setCardName("card-" + c);
+                command.setDescrizione("");
+                batch.add(command);
+            }
+            ServerMain.batch(NICKNAME, batch, false);
+        }
+        // Una carta per thread in ogni progetto, spostata avanti e indietro dalle
+        // richieste MOVE_CARD del thread
+        for (int p = 0; p < threads; p++) {
+            for (int t = 0; t < threads; t++) {
+                ServerMain.addCard(NICKNAME, projectName(p), movingCardName(t), "");
+                ServerMain.moveCard(NICKNAME, projectName(p), movingCardName(t), "TODO", "INPROGRESS");
+            }
+        }
+        System.out.println("thread=" + threads + " carte=" + cards + " scritture=" + writePercent + "% lock-globale="
+                + useGlobalLock);
+        for (int projects = 1; projects <= threads; projects *= 2) {
+            double throughput = run(threads, projects, seconds, writePercent, useGlobalLock);
+            System.out.printf("progetti=%d op/s=%.0f%n", projects, throughput);
+        }
+    }
+
+    /**
+     * Esegue un round del benchmark
+     *
+     * @param threads       il numero di thread
+     * @param projects      il numero di progetti toccati dai thread
+     * @param seconds       la durata del round in secondi
+     * @param writePercent  la percentuale di richieste MOVE_CARD
+     * @param useGlobalLock true per eseguire le richieste anche con la lock globale
+     * @return il numero di richieste eseguite al secondo
+     */
+    private static double run(int threads, int projects, int seconds, int writePercent, boolean useGlobalLock)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            String project = projectName(t % projects);
+            workers[t] = new Thread(() -> {
+                String card = movingCardName(id);
+                // Lista in cui si trova la carta del thread; se un round precedente l'ha
+                // lasciata nell'altra lista il primo spostamento fallisce e si inverte
+                boolean inProgress = true;
+                while (System.nanoTime() < deadline) {
+                    if (ThreadLocalRandom.current().nextInt(100) < writePercent) {
+                        String source = inProgress ? "INPROGRESS" : "TOBEREVISED";
+                        String dest = inProgress ? "TOBEREVISED" : "INPROGRESS";
+                        if (useGlobalLock)
+                            globalLock.writeLock().lock();
+                        ServerMain.moveCard(NICKNAME, project, card, source, dest);
+                        if (useGlobalLock)
+                            globalLock.writeLock().unlock();
+                        inProgress = !inProgress;
+                    } else {
+                        if (useGlobalLock)
+                            globalLock.readLock().lock();
+                        ServerMain.showCards(NICKNAME, project);
+                        if (useGlobalLock)
+                            globalLock.readLock().unlock();
+                    }
+                    operations.increment();
+                }
+            }, "benchmark-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        return operations.sum() / (double) seconds;
+    }
+
+    private static String projectName(int index) {
+        return "benchmark-" + index;
+    }
+
+    private static String movingCardName(int thread) {
+        return "moving-" + thread;
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+/**
+ * Fotografia immutabile di un progetto, con un numero di versione. Il progetto
+ * pubblica uno snapshot alla volta: le modifiche lo scartano e il primo
+ * lettore successivo ne costruisce uno nuovo (con la read lock del progetto).
+ * Gli altri lettori usano lo snapshot pubblicato senza acquisire nessuna lock,
+ * e le risposte ai client possono essere codificate dopo, perché niente di
+ * quello che contiene viene più modificato.
+ */
+public class ProjectSnapshot {
+
+    /** La versione del progetto fotografata */
+    private final long version;
+
+    /** True se il progetto era già stato cancellato */
+    private final boolean deleted;
+
+    /** Gli identificativi dei membri del progetto */
+    private final BitSet memberSet;
+
+    /** I nickname dei membri del progetto, in ordine di aggiunta */
+    private final ArrayList<String> members;
+
+    /** Copie immutabili delle carte del progetto, per nome, in ordine di creazione */
+    private final LinkedHashMap<String, Card> cards;
+
+    /** I nomi delle carte del progetto, in ordine di creazione */
+    private final ArrayList<String> cardNames;
+
+    /** Le carte di ogni lista (indicizzate con l'ordinale di CardList) */
+    private final ArrayList<ArrayList<Card>> lists;
+
+    /**
+     * Costruttore: fotografa lo stato attuale di un progetto. Va chiamato con la
+     * lock del progetto acquisita.
+     *
+     * @param project il progetto
+     * @param version la versione attuale del progetto
+     */
+    public ProjectSnapshot(Project project, long version) {
+        this.version = version;
+        this.deleted = project.isDeleted();
+        this.memberSet = new BitSet();
+        for (int userId : project.getMemberIds())
+            this.memberSet.set(userId);
+        this.members = project.getMembers();
+        this.cards = new LinkedHashMap<>();
+        this.cardNames = new ArrayList<>();
+        for (Card card : project.getAllCards()) {
+            this.cards.put(card.getName(), card.frozen());
+            this.cardNames.add(card.getName());
+        }
+        this.lists = new ArrayList<>();
+        for (CardList list : CardList.values()) {
+            ArrayList<Card> frozenList = new ArrayList<>(project.getListSize(list));
+            for (Card card : project.getList(list))
+                frozenList.add(card.frozen());
+            this.lists.add(frozenList);
+        }
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public boolean isDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * Metodo per sapere se un utente era membro del progetto
+     *
+     * @param userId l'identificativo dell'utente
+     * @return true se l'utente era membro del progetto
+     */
+    public boolean isMember(int userId) {
+        return userId >= 0 && this.memberSet.get(userId);
+    }
+
+    /**
+     * Metodo per ottenere i nickname dei membri. La lista è condivisa tra tutti i
+     * lettori dello snapshot e non va modificata.
+     *
+     * @return i nickname dei membri, in ordine di aggiunta
+     */
+    public ArrayList<String> getMembers() {
+        return this.members;
+    }
+
+    /**
+     * Metodo per cercare una carta del progetto
+     *
+     * @param cardName il nome della carta
+     * @return la copia immutabile della carta, oppure null se non c'è nessuna
+     *         carta con quel nome
+     */
+    public Card getCard(String cardName) {
+        return this.cards.get(cardName);
+    }
+
+    /**
+     * Metodo per ottenere tutte le carte del progetto
+     *
+     * @return una vista non modificabile delle carte, in ordine di creazione
+     */
+    public Collection<Card> getAllCards() {
+        return Collections.unmodifiableCollection(this.cards.values());
+    }
+
+    /**
+     * Metodo per ottenere i nomi delle carte. La lista è condivisa tra tutti i
+     * lettori dello snapshot e non va modificata.
+     *
+     * @return i nomi delle carte, in ordine di creazione
+     */
+    public ArrayList<String> getCardNames() {
+        return this.cardNames;
+    }
+
+    /**
+     * Metodo per ottenere le carte di una lista
+     *
+     * @param list la lista
+     * @return una vista non modificabile della lista, in ordine di arrivo delle
+     *         carte
+     */
+    public Collection<Card> getList(CardList list) {
+        return Collections.unmodifiableCollection(this.lists.get(list.ordinal()));
+    }
+
+    /**
+     * Metodo per ottenere il numero di carte di una lista
+     *
+     * @param list la lista
+     * @return il numero di carte nella lista
+     */
+    public int getListSize(CardList list) {
+        return this.lists.get(list.ordinal()).size();
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Riepilogo immutabile di un progetto: se è stato cancellato, i suoi membri e
+ * il numero di carte di ogni lista. A differenza dello snapshot (vedi
+ * ProjectSnapshot), che viene ricostruito copiando tutte le carte, il
+ * riepilogo costa O(1) e viene sostituito dal progetto a ogni modifica, così
+ * SHOW_SUMMARY può leggerlo senza lock anche quando il progetto viene
+ * modificato di continuo.
+ */
+public class ProjectSummary {
+
+    /** True se il progetto era già stato cancellato */
+    private final boolean deleted;
+
+    /**
+     * Gli identificativi dei membri del progetto. L'insieme è condiviso tra i
+     * riepiloghi successivi finché i membri non cambiano, e non viene più
+     * modificato.
+     */
+    private final BitSet memberSet;
+
+    /** Il numero di carte di ogni lista (indicizzato con l'ordinale di CardList) */
+    private final int[] sizes;
+
+    /**
+     * Costruttore
+     *
+     * @param deleted   true se il progetto è stato cancellato
+     * @param memberSet gli identificativi dei membri (non va più modificato)
+     * @param sizes     il numero di carte di ogni lista (non va più modificato)
+     */
+    public ProjectSummary(boolean deleted, BitSet memberSet, int[] sizes) {
+        this.deleted = deleted;
+        this.memberSet = memberSet;
+        this.sizes = sizes;
+    }
+
+    public boolean isDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * Metodo per sapere se un utente era membro del progetto
+     *
+     * @param userId l'identificativo dell'utente
+     * @return true se l'utente era membro del progetto
+     */
+    public boolean isMember(int userId) {
+        return userId >= 0 && this.memberSet.get(userId);
+    }
+
+    /**
+     * Metodo per ottenere l'insieme dei membri, che il progetto riutilizza nel
+     * riepilogo successivo se i membri non sono cambiati
+     *
+     * @return l'insieme dei membri, da non modificare
+     */
+    public BitSet getMemberSet() {
+        return this.memberSet;
+    }
+
+    /**
+     * Metodo per ottenere il numero di carte di ogni lista
+     *
+     * @return una nuova lista con il numero di carte di ogni lista, nell'ordine
+     *         di CardList
+     */
+    public ArrayList<Integer> getCardCounts() {
+        ArrayList<Integer> cardCounts = new ArrayList<>(this.sizes.length);
+        for (int size : this.sizes)
+            cardCounts.add(size);
+        return cardCounts;
+    }
+}
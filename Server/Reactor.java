@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Un Reactor gestisce, con un proprio selettore, la lettura delle richieste da
+ * un sottoinsieme dei canali dei client. I canali gli vengono consegnati già
+ * accettati tramite il metodo register(), oppure, se il reactor è l'unico del
+ * server, li accetta lui stesso dal server socket channel. Ogni messaggio letto
+ * completamente viene trasformato in un WorkerTask e passato al thread pool,
+ * senza decodificarlo: la decodifica è compito del worker, così che un messaggio
+ * grande non rallenti la lettura dagli altri canali del reactor.
+ * Il reactor si occupa anche di inviare le risposte accodate dai worker sulle
+ * connessioni che gestisce.
+ */
+public class Reactor implements Runnable {
+
+    /** Identificativo del reactor (utilizzato nel nome del thread e nelle statistiche) */
+    private final int id;
+
+    /** Il selettore del reactor */
+    private final Selector selector;
+
+    /** Il thread pool a cui passare i task */
+    private final WorkerPool threadPool;
+
+    /**
+     * Canali accettati da un altro thread e non ancora registrati nel selettore.
+     * La registrazione deve essere fatta dal thread del reactor, altrimenti si
+     * bloccherebbe finché il reactor è fermo sulla select().
+     */
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+    /** Connessioni con nuovi messaggi in coda da inviare, segnalate dai worker */
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /** Connessioni da chiudere, segnalate dai worker */
+    private final ConcurrentLinkedQueue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+
+    /** Numero totale di connessioni assegnate al reactor */
+    private final AtomicLong connections = new AtomicLong();
+
+    /** Numero totale di richieste lette e passate al thread pool */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** Numero totale di bytes letti dai canali */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /** Numero totale di bytes inviati sui canali */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /** Numero di connessioni chiuse dal client (end of stream sul canale) */
+    private final AtomicLong closedByPeer = new AtomicLong();
+
+    /** Numero di connessioni chiuse perché inattive */
+    private final AtomicLong reaped = new AtomicLong();
+
+    /**
+     * Ruota delle scadenze delle connessioni, per chiudere quelle inattive da più
+     * di idleTimeoutMillis (null se le connessioni inattive non vanno chiuse)
+     */
+    private final TimerWheel<Connection> idleWheel;
+
+    /** Tempo di inattività dopo il quale una connessione viene chiusa */
+    private final long idleTimeoutMillis;
+
+    /** Numero di iterazioni del ciclo di selezione */
+    private final AtomicLong selects = new AtomicLong();
+
+    /**
+     * Durata di ogni iterazione del ciclo di selezione, dal ritorno della
+     * select() alla fine della gestione delle chiavi pronte (il tempo passato
+     * bloccati nella select() non è compreso)
+     */
+    private final LatencyHistogram loopTimes = new LatencyHistogram();
+
+    /** Numero di chiavi registrate nel selettore, aggiornato dopo ogni select() */
+    private volatile int registeredKeys;
+
+    /**
+     * Costruttore
+     *
+     * @param id         l'identificativo del reactor
+     * @param threadPool il thread pool a cui passare i task
+     * @throws IOException in caso di errori nell'apertura del selettore
+     */
+    public Reactor(int id, WorkerPool threadPool) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+        this.threadPool = threadPool;
+        this.idleTimeoutMillis = ServerConfig.getIdleTimeout() * 1000L;
+        // Un tick di 1/8 del timeout (tra 10 ms e 1 s): una connessione viene chiusa al più
+        // un tick dopo la scadenza
+        this.idleWheel = this.idleTimeoutMillis == 0 ? null
+                : new TimerWheel<>(512, Math.max(10, Math.min(1000, this.idleTimeoutMillis / 8)),
+                        System.currentTimeMillis());
+        ServerMetrics.register("reactor-" + id, this::stats);
+    }
+
+    /**
+     * Registra il server socket channel nel selettore del reactor, in modo che
+     * sia il reactor stesso ad accettare le connessioni. Va chiamato prima di
+     * avviare il reactor.
+     *
+     * @param serverSocketChannel il server socket channel in modalità non bloccante
+     * @throws ClosedChannelException se il canale è chiuso
+     */
+    public void registerAcceptor(ServerSocketChannel serverSocketChannel) throws ClosedChannelException {
+        serverSocketChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Consegna al reactor un canale appena accettato. Il metodo è thread safe:
+     * il canale viene messo in coda e il selettore viene svegliato, così che la
+     * registrazione avvenga nel thread del reactor.
+     *
+     * @param client il canale per la comunicazione con il client
+     */
+    public void register(SocketChannel client) {
+        this.pendingChannels.add(client);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Segnala al reactor che la connessione ha nuovi messaggi da inviare. Il
+     * metodo è thread safe e non si blocca.
+     *
+     * @param connection la connessione con messaggi in coda
+     */
+    public void requestWrite(Connection connection) {
+        this.pendingWrites.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Segnala al reactor che la connessione va chiusa. Il metodo è thread safe e
+     * non si blocca.
+     *
+     * @param connection la connessione da chiudere
+     */
+    public void requestClose(Connection connection) {
+        this.pendingCloses.add(connection);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Ciclo infinito
+            while (true) {
+                // Selezione tra i canali registrati di quelli pronti ad operazioni di I/O del
+                // rispettivo interest set
+                // Se ci sono connessioni da controllare la select() non si blocca oltre un tick
+                this.selector.select(this.idleWheel == null ? 0 : this.idleWheel.getTickMillis());
+                long iterationStart = System.nanoTime();
+                this.selects.incrementAndGet();
+                // Registrazione dei canali consegnati da altri thread
+                registerPendingChannels();
+                // Invio dei messaggi accodati dai worker e chiusura delle connessioni segnalate
+                processPendingWrites();
+                // Iteratore per il set di ready keys
+                Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+                // Scansione del set
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    if (!key.isValid())
+                        continue;
+                    // Se il canale relativo alla chiave è pronto per accettare una connessione
+                    if (key.isAcceptable()) {
+                        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+                        if (client != null)
+                            addChannel(client);
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            // Se il canale è pronto per una operazione di write()
+                            if (key.isWritable())
+                                write(connection);
+                            // Se il canale è pronto per una operazione di read()
+                            if (key.isValid() && key.isReadable())
+                                read(connection);
+                        } catch (IOException e) {
+                            // Errore sul canale di un client: viene chiusa solo la sua connessione
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                }
+                // Chiusura delle connessioni inattive
+                if (this.idleWheel != null)
+                    this.idleWheel.advance(System.currentTimeMillis(), this::checkIdle);
+                this.registeredKeys = this.selector.keys().size();
+                this.loopTimes.record(System.nanoTime() - iterationStart);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Segnala al reactor che è stata chiusa la connessione di un utente che non ha
+     * fatto la logout. La disconnessione dell'utente esegue delle callback RMI,
+     * quindi viene passata al thread pool invece di essere fatta dal reactor.
+     *
+     * @param nickname il nickname dell'utente
+     */
+    public void userDisconnected(String nickname) {
+        // Senza controllo di ammissione: la disconnessione non può essere rifiutata
+        this.threadPool.execute(() -> ServerMain.disconnect(nickname));
+    }
+
+    /**
+     * Controlla una connessione scaduta nella ruota: se nel frattempo ci sono
+     * state delle letture viene reinserita con la nuova scadenza, altrimenti
+     * viene chiusa.
+     *
+     * @param connection la connessione
+     */
+    private void checkIdle(Connection connection) {
+        if (connection.isClosed())
+            return;
+        long deadline = connection.getLastReadMillis() + this.idleTimeoutMillis;
+        if (deadline > System.currentTimeMillis()) {
+            this.idleWheel.schedule(connection, deadline);
+        } else {
+            this.reaped.incrementAndGet();
+            connection.close();
+        }
+    }
+
+    /**
+     * Registra nel selettore tutti i canali in attesa nella coda pendingChannels
+     */
+    private void registerPendingChannels() {
+        SocketChannel client;
+        while ((client = this.pendingChannels.poll()) != null) {
+            try {
+                addChannel(client);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gestisce le richieste di scrittura e di chiusura arrivate dai worker
+     */
+    private void processPendingWrites() {
+        Connection connection;
+        while ((connection = this.pendingCloses.poll()) != null)
+            connection.close();
+        while ((connection = this.pendingWrites.poll()) != null) {
+            if (!connection.getKey().isValid())
+                continue;
+            try {
+                write(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Invia i messaggi in coda di una connessione. Se il canale non accetta
+     * tutti i bytes, aggiunge OP_WRITE all'interest set per riprovare quando sarà
+     * pronto; se invece la coda è stata svuotata, toglie OP_WRITE (ed eventualmente
+     * chiude la connessione, se era stato richiesto).
+     *
+     * @param connection la connessione con messaggi in coda
+     * @throws IOException in caso di errori di I/O durante la write()
+     */
+    private void write(Connection connection) throws IOException {
+        SelectionKey key = connection.getKey();
+        this.bytesWritten.addAndGet(connection.flush());
+        if (connection.hasPendingOutput()) {
+            // Il canale non ha accettato tutti i bytes: si attende che sia pronto
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (connection.isCloseAfterFlush()) {
+            connection.close();
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Registra un canale per la comunicazione con un client nel selettore del
+     * reactor. Va chiamato dal thread del reactor.
+     *
+     * @param client il canale per la comunicazione con il client
+     * @throws IOException in caso di errori nella configurazione del canale
+     */
+    private void addChannel(SocketChannel client) throws IOException {
+        // Modalità non bloccante
+        client.configureBlocking(false);
+        // Stato della connessione, da utilizzare come attachment
+        Connection connection = new Connection(client, this, this.threadPool);
+        // Registrazione del socket channel per la comunicazione con il client. Interest set: read().
+        connection.setKey(client.register(this.selector, SelectionKey.OP_READ, connection));
+        this.connections.incrementAndGet();
+        if (this.idleWheel != null)
+            this.idleWheel.schedule(connection, connection.getLastReadMillis() + this.idleTimeoutMillis);
+    }
+
+    /**
+     * Lettura dal canale di una connessione pronta. Quando un messaggio è stato
+     * letto completamente viene creato un WorkerTask, che viene passato al thread
+     * pool direttamente (se la richiesta non deve rispettare l'ordine) oppure
+     * tramite l'executor seriale della connessione.
+     *
+     * @param connection la connessione pronta per la lettura
+     * @throws IOException in caso di errori di I/O durante la read()
+     */
+    private void read(Connection connection) throws IOException {
+        // Riferimento al canale pronto
+        SocketChannel client = connection.getChannel();
+        ByteBuffer headerBuffer = connection.getHeaderBuffer();
+        if (this.idleWheel != null)
+            connection.setLastReadMillis(System.currentTimeMillis());
+        // Lettura dell'intestazione del messaggio
+        if (headerBuffer.hasRemaining()) {
+            int read = client.read(headerBuffer);
+            if (read == -1) {
+                // Il client ha chiuso la connessione (senza logout, altrimenti sarebbe già chiusa)
+                closedByPeer(connection);
+                return;
+            }
+            if (read > 0)
+                this.bytesRead.addAndGet(read);
+            // Se il primo intero indica che segue l'identificativo della richiesta, estende
+            // il buffer per leggere anche quello
+            if (!headerBuffer.hasRemaining() && headerBuffer.limit() == Integer.BYTES
+                    && (headerBuffer.getInt(0) & Frames.HAS_ID_FLAG) != 0) {
+                headerBuffer.limit(2 * Integer.BYTES);
+                read = client.read(headerBuffer);
+                if (read > 0)
+                    this.bytesRead.addAndGet(read);
+            }
+        }
+        // Se non ha finito di leggere non fa nulla, continua a leggere dopo la prossima select(),
+        // altrimenti entra nel ramo if
+        if (!headerBuffer.hasRemaining()) {
+            // Decodifica dell'intestazione (lettura assoluta, il buffer resta pieno finché il
+            // messaggio non è stato letto tutto)
+            int header = headerBuffer.getInt(0);
+            int size = header & Frames.SIZE_MASK;
+            long requestId = (header & Frames.HAS_ID_FLAG) != 0 ? Frames.readRequestId(headerBuffer)
+                    : Frames.NO_REQUEST_ID;
+            // Se il buffer per la lettura del messaggio è null allora lo prendo dal pool, altrimenti
+            // significa che non aveva finito di leggere i dati dopo la select() precedente
+            if (connection.getDataBuffer() == null)
+                connection.setDataBuffer(BufferPool.shared().acquire(size));
+            ByteBuffer dataBuffer = connection.getDataBuffer();
+            // Lettura del messaggio
+            int read = client.read(dataBuffer);
+            if (read == -1) {
+                closedByPeer(connection);
+                return;
+            }
+            if (read > 0)
+                this.bytesRead.addAndGet(read);
+            // Se ha letto tutto il messaggio entra nel ramo if, altrimenti continuerà a leggere
+            // dopo la prossima select()
+            if (dataBuffer.position() == size) {
+                // Preparazione alla scrittura dopo la lettura
+                dataBuffer.flip();
+                // Task worker per soddisfare la richiesta del client, se il thread pool può
+                // accettarlo
+                Runnable task;
+                if (connection.acceptHandshake(dataBuffer, requestId)) {
+                    // Handshake della codifica binaria, già gestito dalla connessione
+                    BufferPool.shared().release(dataBuffer);
+                } else if ((task = this.threadPool.admit(new WorkerTask(connection, dataBuffer, requestId))) == null) {
+                    // Server sovraccarico: la richiesta viene scartata e il client avvisato subito
+                    BufferPool.shared().release(dataBuffer);
+                    WorkerTask.replyBusy(connection, requestId);
+                } else if ((header & Frames.UNORDERED_FLAG) != 0) {
+                    // Passaggio del task al thread pool: le richieste senza il flag UNORDERED_FLAG
+                    // vengono eseguite una alla volta, nell'ordine di arrivo
+                    this.threadPool.execute(task);
+                } else {
+                    connection.getOrderedExecutor().execute(task);
+                }
+                this.requests.incrementAndGet();
+                // Resetto il buffer per l'intestazione del messaggio, in modo che possa leggere
+                // quella del prossimo, e dimentico il buffer del messaggio (ora è del task)
+                connection.nextFrame();
+            }
+        }
+    }
+
+    /**
+     * Gestisce la chiusura della connessione da parte del client: la chiave viene
+     * cancellata e i buffer tornano nel pool (altrimenti il canale resterebbe
+     * pronto per la lettura per sempre, facendo girare a vuoto il selettore)
+     *
+     * @param connection la connessione chiusa dal client
+     */
+    private void closedByPeer(Connection connection) {
+        this.closedByPeer.incrementAndGet();
+        connection.close();
+    }
+
+    /**
+     * Metodo per ottenere le statistiche del reactor
+     *
+     * @return una stringa con i contatori del reactor
+     */
+    public String stats() {
+        return "connections=" + this.connections.get() + " keys=" + this.registeredKeys + " requests="
+                + this.requests.get() + " bytesRead=" + this.bytesRead.get() + " bytesWritten="
+                + this.bytesWritten.get() + " closedByPeer=" + this.closedByPeer.get() + " reaped=" + this.reaped.get()
+                + " selects=" + this.selects.get() + " loop[" + this.loopTimes.summary()
+                + "]";
+    }
+
+    public int getId() {
+        return this.id;
+    }
+}
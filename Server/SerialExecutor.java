@@ -0,0 +1,101 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor che esegue i task uno alla volta, nell'ordine in cui li riceve,
+ * utilizzando i thread di un altro executor. Viene utilizzato per eseguire in
+ * ordine le richieste di una stessa connessione senza dedicarle un thread.
+ */
+public class SerialExecutor implements Executor {
+
+    /** Task in attesa di essere eseguiti */
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    /** L'executor su cui eseguire i task */
+    private final Executor executor;
+
+    /** True se un task è in esecuzione (o è stato passato all'executor) */
+    private boolean running;
+
+    /** Il task di un SerialExecutor in esecuzione nel thread corrente, se c'è */
+    private static final ThreadLocal<Running> current = new ThreadLocal<>();
+
+    /** Un task in esecuzione, con il suo executor */
+    private static class Running {
+
+        /** L'executor del task */
+        private final SerialExecutor executor;
+
+        /** True se il task ha rimandato l'esecuzione del successivo (vedi defer()) */
+        private boolean deferred;
+
+        private Running(SerialExecutor executor) {
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Costruttore
+     *
+     * @param executor l'executor su cui eseguire i task
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            this.tasks.add(() -> {
+                Running running = new Running(this);
+                current.set(running);
+                try {
+                    task.run();
+                } finally {
+                    current.remove();
+                    if (!running.deferred)
+                        scheduleNext();
+                }
+            });
+            // Se c'è già un task in esecuzione, questo verrà eseguito al suo termine
+            if (this.running)
+                return;
+            this.running = true;
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Rimanda l'esecuzione del task successivo a quello in esecuzione nel thread
+     * corrente: al termine del task il successivo non parte, finché non viene
+     * eseguita l'azione restituita. Serve a un task che deve aspettare un evento
+     * (ad esempio la scrittura del journal sul disco) prima di rispondere, per
+     * non bloccare il thread e mantenere comunque l'ordine delle risposte.
+     *
+     * @return l'azione che fa partire il task successivo (da eseguire una sola
+     *         volta), oppure null se il thread corrente non sta eseguendo un task
+     *         di un SerialExecutor
+     */
+    public static Runnable defer() {
+        Running running = current.get();
+        if (running == null)
+            return null;
+        running.deferred = true;
+        return running.executor::scheduleNext;
+    }
+
+    /**
+     * Passa all'executor il prossimo task in coda, se c'è
+     */
+    private void scheduleNext() {
+        Runnable next;
+        synchronized (this) {
+            next = this.tasks.poll();
+            if (next == null) {
+                this.running = false;
+                return;
+            }
+        }
+        this.executor.execute(next);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Configurazione del server, letta dagli argomenti passati da riga di comando
+ * all'avvio. Ogni opzione ha la forma --nome=valore; le opzioni non specificate
+ * mantengono il valore di default.
+ */
+public class ServerConfig {
+
+    /**
+     * Numero di reactor (selettori dedicati alla lettura dei canali dei client).
+     * Con un solo reactor lo stesso selettore accetta anche le connessioni, come
+     * nella versione originale del server; con più reactor un thread acceptor
+     * distribuisce le connessioni accettate in round-robin.
+     */
+    private static int reactors = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Intervallo in secondi tra due stampe delle statistiche del server (0 per
+     * disabilitare le stampe)
+     */
+    private static int statsInterval = 0;
+
+    /**
+     * Massimo numero di bytes in attesa di essere inviati a un singolo client.
+     * Un client che non legge le risposte abbastanza velocemente da restare
+     * sotto questo limite viene disconnesso.
+     */
+    private static int maxOutboundBytes = 4 * 1024 * 1024;
+
+    /**
+     * True se i buffer del pool per la lettura e la scrittura dei messaggi vanno
+     * allocati fuori dallo heap (direct buffers)
+     */
+    private static boolean directBuffers = false;
+
+    /** Massimo numero di buffer liberi trattenuti dal pool per ogni classe di dimensione */
+    private static int poolBuffersPerClass = 256;
+
+    /** Numero di thread del pool dei worker */
+    private static int workers = 8;
+
+    /** Capacità della coda del pool dei worker */
+    private static int workerQueueCapacity = 1024;
+
+    /**
+     * Soglia di richieste in attesa di un worker oltre la quale il server
+     * risponde SERVER_BUSY (0 per usare la capacità della coda)
+     */
+    private static int workerQueueHighWater = 0;
+
+    /**
+     * Secondi di inattività (nessun messaggio ricevuto) dopo i quali una
+     * connessione gestita da un reactor viene chiusa, e l'utente disconnesso
+     * (0 per non chiudere mai le connessioni inattive)
+     */
+    private static int idleTimeout = 0;
+
+    /**
+     * Modalità di gestione delle connessioni: "reactor" (selettori e thread pool)
+     * oppure "thread-per-connection" (un thread per connessione con I/O
+     * bloccante; i thread sono virtuali se la JVM li supporta)
+     */
+    private static String ioMode = "reactor";
+
+    /**
+     * Sincronizzazione sul disco del journal delle operazioni: "none" (i record
+     * vengono solo scritti, e sopravvivono alla terminazione del processo ma non
+     * a un crash del sistema), "batch" (una fsync per ogni richiesta, anche se è
+     * un BATCH con più sotto-comandi), "command" (una fsync per ogni
+     * operazione) oppure "group" (group commit: un thread scrive i record di più
+     * richieste con una sola fsync, e le risposte partono dopo la fsync)
+     */
+    private static String journalSync = "batch";
+
+    /**
+     * In modalità journal-sync=group, numero di record oltre il quale un gruppo
+     * viene scritto subito
+     */
+    private static int journalGroupSize = 256;
+
+    /**
+     * In modalità journal-sync=group, attesa massima in microsecondi del primo
+     * record di un gruppo prima della scrittura (0 = il gruppo contiene i record
+     * arrivati durante la fsync precedente)
+     */
+    private static int journalGroupWait = 0;
+
+    /**
+     * Intervallo in secondi tra due snapshot dello stato in background (0 =
+     * nessuno snapshot periodico)
+     */
+    private static int snapshotInterval = 300;
+
+    /**
+     * Bytes di journal dopo i quali viene fatto uno snapshot dello stato in
+     * background, senza aspettare l'intervallo (0 = nessuna soglia)
+     */
+    private static int snapshotJournalBytes = 64 * 1024 * 1024;
+
+    /** Numero di generazioni di snapshot conservate (la più recente e le precedenti) */
+    private static int snapshotKeep = 2;
+
+    /**
+     * Numero di snapshot incrementali (con solo i progetti e le carte modificati)
+     * tra due snapshot completi (0 = tutti gli snapshot sono completi)
+     */
+    private static int snapshotFullEvery = 8;
+
+    /**
+     * Formato degli snapshot: "dirs" (una directory per progetto e un file per
+     * carta) oppure "packed" (un solo file con tutti i progetti e un indice). Le
+     * generazioni salvate nell'altro formato vengono convertite all'avvio.
+     */
+    private static String snapshotFormat = "dirs";
+
+    /**
+     * Legge gli argomenti da riga di comando e aggiorna la configurazione.
+     *
+     * @param args gli argomenti passati al main del server
+     * @throws IllegalArgumentException se un argomento non è riconosciuto o ha
+     *                                  un valore non valido
+     */
+    public static void parse(String[] args) {
+        for (String arg : args) {
+            // Divisione dell'argomento in nome e valore
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1)
+                throw new IllegalArgumentException("Argomento non valido: " + arg);
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "reactors" -> reactors = parsePositive(name, value);
+                case "stats-interval" -> statsInterval = parseNonNegative(name, value);
+                case "max-outbound-bytes" -> maxOutboundBytes = parsePositive(name, value);
+                case "direct-buffers" -> directBuffers = parseBoolean(name, value);
+                case "pool-buffers-per-class" -> poolBuffersPerClass = parseNonNegative(name, value);
+                case "workers" -> workers = parsePositive(name, value);
+                case "worker-queue-capacity" -> workerQueueCapacity = parsePositive(name, value);
+                case "worker-queue-high-water" -> workerQueueHighWater = parsePositive(name, value);
+                case "idle-timeout" -> idleTimeout = parseNonNegative(name, value);
+                case "io-mode" -> ioMode = parseChoice(name, value, "reactor", "thread-per-connection");
+                case "journal-sync" -> journalSync = parseChoice(name, value, "none", "batch", "command", "group");
+                case "journal-group-size" -> journalGroupSize = parsePositive(name, value);
+                case "journal-group-wait" -> journalGroupWait = parseNonNegative(name, value);
+                case "snapshot-interval" -> snapshotInterval = parseNonNegative(name, value);
+                case "snapshot-journal-bytes" -> snapshotJournalBytes = parseNonNegative(name, value);
+                case "snapshot-keep" -> snapshotKeep = parsePositive(name, value);
+                case "snapshot-full-every" -> snapshotFullEvery = parseNonNegative(name, value);
+                case "snapshot-format" -> snapshotFormat = parseChoice(name, value, "dirs", "packed");
+                default -> throw new IllegalArgumentException("Opzione sconosciuta: " + name);
+            }
+        }
+        if (workerQueueHighWater > workerQueueCapacity)
+            throw new IllegalArgumentException("worker-queue-high-water non può superare worker-queue-capacity");
+    }
+
+    /**
+     * Metodo ausiliario per il parsing di un intero strettamente positivo
+     *
+     * @param name  il nome dell'opzione
+     * @param value il valore da convertire
+     * @return il valore convertito
+     */
+    private static int parsePositive(String name, String value) {
+        int result = parseNonNegative(name, value);
+        if (result == 0)
+            throw new IllegalArgumentException("Il valore di " + name + " deve essere positivo");
+        return result;
+    }
+
+    /**
+     * Metodo ausiliario per il parsing di un intero non negativo
+     *
+     * @param name  il nome dell'opzione
+     * @param value il valore da convertire
+     * @return il valore convertito
+     */
+    private static int parseNonNegative(String name, String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valore non numerico per " + name + ": " + value);
+        }
+        if (result < 0)
+            throw new IllegalArgumentException("Il valore di " + name + " non può essere negativo");
+        return result;
+    }
+
+    /**
+     * Metodo ausiliario per il parsing di un valore booleano
+     *
+     * @param name  il nome dell'opzione
+     * @param value il valore da convertire ("true" o "false")
+     * @return il valore convertito
+     */
+    private static boolean parseBoolean(String name, String value) {
+        return switch (value) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("Valore non booleano per " + name + ": " + value);
+        };
+    }
+
+    /**
+     * Metodo ausiliario per il parsing di un valore scelto tra quelli ammessi
+     *
+     * @param name    il nome dell'opzione
+     * @param value   il valore da controllare
+     * @param choices i valori ammessi
+     * @return il valore
+     */
+    private static String parseChoice(String name, String value, String... choices) {
+        for (String choice : choices) {
+            if (choice.equals(value))
+                return value;
+        }
+        throw new IllegalArgumentException("Valore non ammesso per " + name + ": " + value + " (ammessi: "
+                + String.join(", ", choices) + ")");
+    }
+
+    public static int getReactors() {
+        return reactors;
+    }
+
+    public static int getStatsInterval() {
+        return statsInterval;
+    }
+
+    public static int getMaxOutboundBytes() {
+        return maxOutboundBytes;
+    }
+
+    public static boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public static int getPoolBuffersPerClass() {
+        return poolBuffersPerClass;
+    }
+
+    public static String getIoMode() {
+        return ioMode;
+    }
+
+    public static int getWorkers() {
+        return workers;
+    }
+
+    public static int getWorkerQueueCapacity() {
+        return workerQueueCapacity;
+    }
+
+    public static int getWorkerQueueHighWater() {
+        return workerQueueHighWater == 0 ? workerQueueCapacity : workerQueueHighWater;
+    }
+
+    public static int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public static String getJournalSync() {
+        return journalSync;
+    }
+
+    public static int getJournalGroupSize() {
+        return journalGroupSize;
+    }
+
+    public static int getJournalGroupWait() {
+        return journalGroupWait;
+    }
+
+    public static int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public static int getSnapshotJournalBytes() {
+        return snapshotJournalBytes;
+    }
+
+    public static int getSnapshotKeep() {
+        return snapshotKeep;
+    }
+
+    public static int getSnapshotFullEvery() {
+        return snapshotFullEvery;
+    }
+
+    public static String getSnapshotFormat() {
+        return snapshotFormat;
+    }
+}
\ No newline at end of file
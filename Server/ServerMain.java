@@ -1,30 +1,41 @@
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 
 /**
  * Server class
@@ -39,25 +50,72 @@ public class ServerMain {
     /** Lock per la lista degli utenti registrati */
     private static final ReentrantReadWriteLock usersLock = new ReentrantReadWriteLock();
 
+    /**
+     * Indice degli utenti registrati per nickname, per le ricerche in tempo
+     * costante. Contiene gli stessi oggetti della lista, che resta per le
+     * callback e per il salvataggio su file. Un utente entra nell'indice per
+     * ultimo, con la write lock degli utenti acquisita, quando ha già il suo
+     * identificativo: chi lo trova nell'indice (senza lock) lo trova completo.
+     */
+    private static final ConcurrentHashMap<String, User> usersByNickname = new ConcurrentHashMap<>();
+
+    /**
+     * Utenti registrati per identificativo. Gli identificativi sono densi
+     * (l'indice dell'utente nella lista degli utenti registrati) e non vengono
+     * mai riutilizzati, perché gli utenti non si cancellano. L'array viene
+     * sostituito quando è pieno, con la write lock degli utenti acquisita, e si
+     * legge senza lock.
+     */
+    private static volatile User[] usersById = new User[16];
+
     /** Lista di tutti i progetti creati */
     private static final ArrayList<Project> createdProjects = new ArrayList<>();
 
-    /** Lock per la lista dei progetti creati */
+    /**
+     * Lock per la lista dei progetti creati e per l'indice dei progetti per nome:
+     * serve solo per creare e cancellare progetti e per leggere la lista. Le
+     * operazioni su un singolo progetto usano la lock del progetto.
+     */
     private static final ReentrantReadWriteLock projectsLock = new ReentrantReadWriteLock();
 
+    /**
+     * Indice dei progetti creati per nome. Viene modificato con la write lock dei
+     * progetti acquisita, ma si può leggere senza lock.
+     */
+    private static final ConcurrentHashMap<String, Project> projectsByName = new ConcurrentHashMap<>();
+
+    /**
+     * Progetti creati per identificativo. Gli identificativi sono densi: quelli
+     * dei progetti cancellati vengono riassegnati ai nuovi progetti. Ogni utente
+     * tiene gli identificativi dei progetti di cui è membro (indice inverso dei
+     * membri). Protetto dalla lock dei progetti.
+     */
+    private static Project[] projectsById = new Project[16];
+
+    /** Identificativi dei progetti assegnati. Protetto dalla lock dei progetti */
+    private static final BitSet usedProjectIds = new BitSet();
+
     /**
      * Lista di oggetti remoti dei client, per tenere traccia degli utenti
      * registrati al servizio di callback
      */
     private static final ArrayList<NotifyEventInterface> clientsRegisteredForCallback = new ArrayList<>();
 
+    /**
+     * Stub dei client registrati al servizio di callback, indicizzati per
+     * nickname dell'utente (solo per i client che hanno usato
+     * registerForCallback(nickname, stub)). Protetto da callbackLock.
+     */
+    private static final HashMap<String, NotifyEventInterface> callbackStubs = new HashMap<>();
+
     /** Lock per la lista dei client registrati al servizio di RMI callback */
     private static final ReentrantReadWriteLock callbackLock = new ReentrantReadWriteLock();
 
     /**
      * Thread pool di thread worker, incaricati di gestire le richieste dei client
+     * (creato nel main, dopo la lettura della configurazione)
      */
-    private static final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    private static WorkerPool threadPool;
 
     /** Porta del registry */
     private static final int registryPort = 6789;
@@ -82,9 +140,52 @@ public class ServerMain {
     /** Dimensione per i buffer */
     private static final int BUFFER_SIZE = (int) Math.pow(2, 10);
 
-    /** Nome della directory contenente lo stato del sistema */
+    /**
+     * Nome della directory contenente lo stato del sistema nel formato
+     * precedente agli snapshot: viene letta solo se non ci sono snapshot, e
+     * cancellata dopo il primo snapshot
+     */
     private static final String stateDirName = "state";
 
+    /**
+     * Nome della directory degli snapshot dello stato. Ogni snapshot è una
+     * directory (generazione) chiamata con il prefisso generationPrefix e l'LSN
+     * dell'ultima operazione del journal che contiene, con dentro lo stato nello
+     * stesso formato della directory stateDirName.
+     */
+    private static final String snapshotsDirName = "snapshots";
+
+    /** Prefisso dei nomi delle generazioni degli snapshot */
+    private static final String generationPrefix = "gen-";
+
+    /** Estensione di una generazione non ancora completa */
+    private static final String incompleteSuffix = ".tmp";
+
+    /**
+     * Nome del file, in una generazione incrementale, che contiene l'LSN della
+     * generazione precedente su cui si basa (le generazioni complete non lo
+     * hanno)
+     */
+    private static final String parentFilename = "parent.json";
+
+    /**
+     * Nome del file, in una generazione incrementale, che contiene i nomi dei
+     * progetti cancellati dopo la generazione precedente
+     */
+    private static final String deletedProjectsFilename = "deletedProjects.json";
+
+    /**
+     * Nome del file, in una generazione incrementale, che contiene per ogni
+     * progetto i nomi delle carte rimosse dopo la generazione precedente
+     */
+    private static final String deletedCardsFilename = "deletedCards.json";
+
+    /**
+     * Nome del file, in una generazione nel formato "packed", che contiene tutti
+     * i progetti della generazione (vedi StatePack) al posto delle loro directory
+     */
+    private static final String packFilename = "projects.pack";
+
     /** Nome del file contenente lo stato degli utenti registrati */
     private static final String usersFilename = "usersState.json";
 
@@ -94,19 +195,103 @@ public class ServerMain {
      */
     private static final String projectMembersFilename = "projectMembers.json";
 
+    /** Nome della directory dei segmenti del journal delle operazioni */
+    private static final String journalDirName = "journal";
+
+    /**
+     * Nome del file del journal prima dell'introduzione dei segmenti: se esiste
+     * all'avvio diventa il primo segmento
+     */
+    private static final String journalFilename = "journal.log";
+
+    /**
+     * Nome del file, nella directory dello stato, che contiene l'LSN dell'ultima
+     * operazione del journal compresa nello stato salvato
+     */
+    private static final String journalLsnFilename = "journalLsn.json";
+
+    /**
+     * Journal delle operazioni che modificano lo stato, aperto da restoreState
+     * (null se il server non è stato avviato dal main, come nel benchmark)
+     */
+    private static Journal journal;
+
+    /**
+     * True dopo un errore di scrittura di un gruppo di record del journal: il
+     * server non risponde più alle richieste e sta terminando (vedi journalFailed)
+     */
+    private static volatile boolean journalFailed;
+
+    /** Lock che impedisce di fare due snapshot dello stato insieme */
+    private static final Object snapshotLock = new Object();
+
+    /**
+     * LSN dell'ultima operazione contenuta nell'ultimo snapshot (-1 se lo stato
+     * non è ancora in uno snapshot), protetto da snapshotLock
+     */
+    private static long lastSnapshotLsn = -1;
+
+    /**
+     * Numero di snapshot incrementali dopo l'ultimo completo nella catena
+     * dell'ultimo snapshot, oppure -1 se il prossimo snapshot deve essere
+     * completo; protetto da snapshotLock
+     */
+    private static int deltaCount = -1;
+
+    /**
+     * Numero di utenti registrati contenuti negli snapshot (gli utenti non
+     * vengono mai rimossi, uno snapshot incrementale contiene quelli successivi),
+     * protetto da snapshotLock
+     */
+    private static int savedUsers;
+
+    /**
+     * Nomi dei progetti cancellati dopo l'ultimo snapshot, da scrivere nel
+     * prossimo snapshot incrementale. Protetto dalla lock dei progetti: viene
+     * modificato con la write lock, oppure da saveState con la read lock (che
+     * esclude le cancellazioni).
+     */
+    private static final ArrayList<String> deletedProjects = new ArrayList<>();
+
+    /** Numero di file delle carte scritti dall'ultimo snapshot */
+    private static volatile int lastSnapshotCards;
+
+    /** Istante (System.nanoTime) dell'ultimo snapshot, o dell'avvio */
+    private static volatile long lastSnapshotTime = System.nanoTime();
+
+    /** Statistiche degli snapshot: numero, durata dell'ultimo e durata delle lock */
+    private static final LatencyHistogram snapshotLatency = new LatencyHistogram(),
+            snapshotLockLatency = new LatencyHistogram();
+
     /**
      * Main method
      */
     public static void main(String[] args) {
+        // Lettura della configurazione da riga di comando
+        ServerConfig.parse(args);
+        // Ripristino dello stato del sistema e apertura del journal. Se lo stato
+        // salvato non è leggibile il server non parte: uno snapshot dello stato
+        // parziale, e la cancellazione delle generazioni precedenti, renderebbero
+        // definitiva la perdita
+        try {
+            restoreState();
+        } catch (IOException e) {
+            System.err.println("Server: impossibile ripristinare lo stato salvato, avvio interrotto");
+            e.printStackTrace();
+            System.exit(1);
+        }
         // Hook per effettuare il salvataggio dello stato in caso di un'interruzione,
-        // come un CTRL-C
+        // come un CTRL-C (solo dopo il ripristino dello stato)
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 saveState();
             }
         });
-        // Ripristino dello stato del sistema
-        restoreState();
+        if (journal != null) {
+            ServerMetrics.register("journal", journal::stats);
+            ServerMetrics.register("snapshots", ServerMain::snapshotStats);
+            startSnapshots();
+        }
         // Inizializzazione dell'oggetto esportato dal server
         WorthImpl server = new WorthImpl();
         try {
@@ -123,95 +308,43 @@ public class ServerMain {
             ServerSocket serverSocket = serverSocketChannel.socket();
             // Associazione dell'indirizzo al server socket
             serverSocket.bind(new InetSocketAddress(TCPport));
-            // Modalità non bloccante
-            serverSocketChannel.configureBlocking(false);
-            // Apertura selettore
-            Selector selector = Selector.open();
-            // Registrazione del socket channel nel selettore. Interest set: accept(). Viene
-            // aggiornato il key set del
-            // selettore con l'aggiunta della chiave relativa al canale
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            // Ciclo infinito
-            while (true) {
-                // Selezione tra i canali registrati di quelli pronti ad operazioni di I/O del
-                // rispettivo interest set
-                selector.select();
-                // Riferimento all'insieme di chiavi precedentemente registrate (che si trovano
-                // nel key set del
-                // selettore), per le quali una delle operazioni dell'interest set della chiave
-                // si trova anche nel ready
-                // set (il canale è pronto per l'esecuzione di tale operazione)
-                Set<SelectionKey> readyKeys = selector.selectedKeys();
-                // Iteratore per il set di ready keys
-                Iterator<SelectionKey> keyIterator = readyKeys.iterator();
-                // Scansione del set
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    // Se il canale relativo alla chiave è pronto per accettare una connessione
-                    // socket (operazione di
-                    // accept())
-                    if (key.isAcceptable()) {
-                        // Esecuzione di accept(). L'unico canale registrato con l'operazione di
-                        // accept() nell'interest
-                        // set è serverSocketChannel
-                        SocketChannel client = serverSocketChannel.accept();
-                        // Modalità non bloccante
-                        client.configureBlocking(false);
-                        // Byte buffers da utilizzare come attachment
-                        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES), dataBuffer = null;
-                        // Registrazione del socket channel per la comunicazione con il client. Interest
-                        // set: read().
-                        // Attachment: Due byte buffer, il primo per leggere la dimensione del
-                        // messaggio, il
-                        // secondo per leggere il messaggio, allocato con la dimensione letta dal primo.
-                        client.register(selector, SelectionKey.OP_READ, new ByteBuffer[] { sizeBuffer, dataBuffer });
-                    } else if (key.isReadable()) { // Se il canale relativo alla chiave è pronto per una operazione di
-                                                   // read()
-                        // Riferimento al canale pronto
-                        SocketChannel client = (SocketChannel) key.channel();
-                        // Riferimento all'attachment della chiave del canale
-                        ByteBuffer[] buffers = (ByteBuffer[]) key.attachment();
-                        // Lettura della dimensione del messaggio
-                        client.read(buffers[0]);
-                        // Se non ha finito di leggere non fa nulla, continua a leggere dopo la prossima
-                        // select(),
-                        // altrimenti entra nel ramo if
-                        if (!buffers[0].hasRemaining()) {
-                            // Preparazione alla scrittura dopo la lettura
-                            buffers[0].flip();
-                            // Decodifica della dimensione del messaggio a intero
-                            int size = buffers[0].getInt();
-                            // Se il buffer per la lettura del messaggio è null allora lo alloco, altrimenti
-                            // significa
-                            // che non aveva finito di leggere i dati dopo la select() precedente, e quindi
-                            // non lo
-                            // alloco per non perdere i dati precedentemente letti e permettergli di
-                            // continuare
-                            if (buffers[1] == null)
-                                buffers[1] = ByteBuffer.allocate(size);
-                            // Lettura del messaggio
-                            client.read(buffers[1]);
-                            // Se ha letto tutto il messaggio entra nel ramo if, altrimenti non fa niente e
-                            // continuerà a leggere dopo la prossima select()
-                            if (buffers[1].position() == size) {
-                                // Preparazione alla scrittura dopo la lettura
-                                buffers[1].flip();
-                                // Task worker per soddisfare la richiesta del client
-                                WorkerTask task = new WorkerTask(client, buffers[1]);
-                                // Passaggio del task al thread pool
-                                threadPool.execute(task);
-                                // Resetto il buffer per la dimensione del messaggio, in modo che possa leggere
-                                // la
-                                // dimensione del prossimo
-                                buffers[0].clear();
-                                // Buffer per il messaggio a null, in modo che possa essere allocato con la
-                                // dimensione
-                                // del prossimo messaggio da leggere
-                                buffers[1] = null;
-                            }
-                        }
-                    }
+            // Avvio della stampa periodica delle statistiche
+            ServerMetrics.register("buffer-pool", BufferPool.shared()::stats);
+            // Creazione del thread pool dei worker, con la coda limitata
+            threadPool = new WorkerPool(ServerConfig.getWorkers(), ServerConfig.getWorkerQueueCapacity(),
+                    ServerConfig.getWorkerQueueHighWater());
+            ServerMetrics.register("worker-pool", threadPool::stats);
+            ServerMetrics.start(ServerConfig.getStatsInterval());
+            if (ServerConfig.getIoMode().equals("thread-per-connection")) {
+                // Un thread per connessione, con I/O bloccante: il thread main accetta le
+                // connessioni e le consegna all'executor
+                ExecutorService connectionThreads = newConnectionExecutor();
+                ServerMetrics.register("thread-per-connection", BlockingConnection::stats);
+                while (true) {
+                    SocketChannel client = serverSocketChannel.accept();
+                    connectionThreads.execute(new BlockingConnection(client));
+                }
+            } else if (ServerConfig.getReactors() == 1) {
+                // Un solo reactor, che accetta anche le connessioni ed esegue nel thread main
+                serverSocketChannel.configureBlocking(false);
+                Reactor reactor = new Reactor(0, threadPool);
+                reactor.registerAcceptor(serverSocketChannel);
+                reactor.run();
+            } else {
+                // Avvio dei reactor, ognuno nel proprio thread
+                Reactor[] reactors = new Reactor[ServerConfig.getReactors()];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new Reactor(i, threadPool);
+                    new Thread(reactors[i], "reactor-" + i).start();
+                }
+                System.out.println("Server: " + reactors.length + " reactor avviati");
+                // Il thread main fa da acceptor: accetta le connessioni in modalità bloccante
+                // e le consegna ai reactor in round-robin
+                int next = 0;
+                while (true) {
+                    SocketChannel client = serverSocketChannel.accept();
+                    reactors[next].register(client);
+                    next = (next + 1) % reactors.length;
                 }
             }
         } catch (Exception e) {
@@ -223,43 +356,338 @@ public class ServerMain {
     }
 
     /**
-     * Metodo per il salvataggio dello stato del sistema. Lo stato viene salvato
-     * all'interno di una directory, il cui nome è contenuto nella variabile
-     * d'istanza stateDirName. All'interno della directory c'è un file contenente lo
-     * stato degli utenti registrati al servizio (il cui nome è contenuto nella
-     * variabile d'istanza usersFilename) e una directory per ogni progetto creato
-     * in Worth. Infine, all'interno di ogni directory realtiva a un progetto, si
-     * trova un file che contiene i nomi dei membri di tale progetto (il cui nome è
-     * contenuto nella variabile d'istanza projectMembersFilename) e un file per
-     * ogni carta, al cui interno viene salvato lo stato della carta corrispondente.
+     * Metodo ausiliario che crea l'executor per la modalità thread-per-connection.
+     * Se la JVM supporta i thread virtuali (Java 21 o successivo) ogni connessione
+     * ha un thread virtuale, altrimenti un thread di piattaforma. Il metodo dei
+     * thread virtuali viene cercato per riflessione, in modo che il server compili
+     * ed esegua anche con le versioni precedenti di Java.
+     *
+     * @return l'executor che crea un nuovo thread per ogni task
      */
-    private static void saveState() {
-        // Oggetto di tipo Path relativo al filename della root directory dello stato
-        Path statePath = Paths.get(stateDirName);
+    private static ExecutorService newConnectionExecutor() {
         try {
-            // Se la directory esiste già viene eliminata con tutto ciò che contiene (butto
-            // via il vecchio stato)
-            if (Files.isDirectory(statePath))
-                deleteDirectory(stateDirName);
-            // Creazione di una nuova root directory per il salvataggio dello stato
-            Files.createDirectory(statePath);
-            // Scrittura del file per il salvataggio dello stato degli utenti registrati,
-            // all'interno della root
-            // directory
-            writeUsersFile();
-            // Acquisizione della read lock dei progetti
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Server: modalità thread-per-connection con thread virtuali");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Server: thread virtuali non disponibili, modalità thread-per-connection con thread di piattaforma");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Metodo per il salvataggio dello stato del sistema (snapshot). Lo stato
+     * viene salvato in una nuova generazione, all'interno della directory il cui
+     * nome è contenuto nella variabile d'istanza snapshotsDirName. All'interno
+     * della generazione c'è un file contenente lo stato degli utenti registrati
+     * al servizio (il cui nome è contenuto nella variabile d'istanza
+     * usersFilename) e una directory per ogni progetto creato in Worth. Infine,
+     * all'interno di ogni directory realtiva a un progetto, si trova un file che
+     * contiene i nomi dei membri di tale progetto (il cui nome è contenuto nella
+     * variabile d'istanza projectMembersFilename) e un file per ogni carta, al cui
+     * interno viene salvato lo stato della carta corrispondente.
+     * Uno snapshot incrementale contiene solo quello che è cambiato dopo la
+     * generazione precedente: gli utenti registrati dopo, le directory dei
+     * progetti modificati con i soli file delle carte modificate, e i nomi dei
+     * progetti e delle carte rimossi. Ogni ServerConfig.getSnapshotFullEvery()
+     * snapshot incrementali ne viene fatto uno completo.
+     * La generazione viene scritta con un nome provvisorio, sincronizzata sul
+     * disco e poi rinominata: un crash durante il salvataggio lascia intatta la
+     * generazione precedente. Le lock dello stato vengono tenute solo per
+     * fotografarlo, non durante la scrittura dei file. Dopo il salvataggio vengono
+     * cancellate le generazioni più vecchie e i segmenti del journal che non
+     * servono più. Se lo stato non è cambiato dall'ultimo snapshot non fa niente.
+     */
+    private static void saveState() {
+        synchronized (snapshotLock) {
+            long start = System.nanoTime();
+            lastSnapshotTime = start;
+            // Snapshot completo se non c'è una generazione su cui basarsi, o se la catena
+            // di snapshot incrementali ha raggiunto la lunghezza massima
+            boolean full = deltaCount < 0 || deltaCount >= ServerConfig.getSnapshotFullEvery();
+            long lastLsn;
+            int firstUser = full ? 0 : savedUsers;
+            ArrayList<User> users = new ArrayList<>();
+            LinkedHashMap<String, ProjectSnapshot> projects = new LinkedHashMap<>();
+            // Per ogni progetto, i nomi delle carte da scrivere (nessun elemento se lo
+            // snapshot è completo: si scrivono tutte)
+            HashMap<String, List<String>> dirtyCards = new HashMap<>();
+            ArrayList<String> deleted = new ArrayList<>();
+            // Acquisizione di tutte le lock dello stato in lettura: la read lock degli utenti
+            // (le registrazioni prendono la write lock), la read lock dei progetti e quella
+            // di ogni progetto. Ogni operazione scrive il suo record nel journal con le
+            // proprie lock acquisite, quindi lo stato fotografato contiene esattamente le
+            // operazioni fino all'ultimo LSN del journal
+            usersLock.readLock().lock();
             projectsLock.readLock().lock();
-            // Per ogni progetto creato in Worth
             for (Project project : createdProjects)
-                // Creazione di una nuova directory per il salvataggio dello stato del progetto,
-                // all'interno della
-                // root directory
-                createProjectDirectory(project);
-            // Rilascio della read lock dei progetti
-            projectsLock.readLock().unlock();
+                project.getLock().readLock().lock();
+            try {
+                lastLsn = journal == null ? 0 : journal.getLastLsn();
+                if (lastLsn == lastSnapshotLsn)
+                    return;
+                // Copie degli utenti, senza lo stato online e le liste delle callback (che
+                // non vengono salvati)
+                for (int i = firstUser; i < registeredUsers.size(); i++) {
+                    User user = registeredUsers.get(i);
+                    users.add(new User(user.getNickname(), user.getPassword()));
+                }
+                // Snapshot immutabili dei progetti (solo di quelli modificati, se lo snapshot
+                // è incrementale), da scrivere dopo il rilascio delle lock
+                for (Project project : createdProjects) {
+                    if (!full && !project.isDirty())
+                        continue;
+                    projects.put(project.getName(), project.getSnapshot());
+                    if (!full)
+                        dirtyCards.put(project.getName(), project.getDirtyCards());
+                    project.clearDirty();
+                }
+                if (!full)
+                    deleted.addAll(deletedProjects);
+                deletedProjects.clear();
+                // I record successivi allo snapshot vanno in un nuovo segmento del journal
+                if (journal != null)
+                    journal.rotate();
+            } catch (IOException e) {
+                // Le modifiche dimenticate non sono in nessuna generazione
+                deltaCount = -1;
+                e.printStackTrace();
+                return;
+            } finally {
+                // Rilascio delle lock, in ordine inverso
+                for (Project project : createdProjects)
+                    project.getLock().readLock().unlock();
+                projectsLock.readLock().unlock();
+                usersLock.readLock().unlock();
+                snapshotLockLatency.record(System.nanoTime() - start);
+            }
+            try {
+                lastSnapshotCards = writeGeneration(lastLsn, full ? -1 : lastSnapshotLsn, users, projects,
+                        full ? null : dirtyCards, deleted);
+                lastSnapshotLsn = lastLsn;
+                savedUsers = firstUser + users.size();
+                deltaCount = full ? 0 : deltaCount + 1;
+                // Lo stato nel formato precedente è ora in uno snapshot
+                if (Files.isDirectory(Paths.get(stateDirName)))
+                    deleteDirectory(stateDirName);
+                pruneGenerations();
+            } catch (IOException e) {
+                // Le modifiche fotografate non sono in nessuna generazione: il prossimo
+                // snapshot sarà completo
+                deltaCount = -1;
+                e.printStackTrace();
+            }
+            snapshotLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Metodo ausiliario che scrive una nuova generazione dello stato, la
+     * sincronizza sul disco e la rende la più recente con una rename atomica.
+     *
+     * @param lastLsn         l'LSN dell'ultima operazione contenuta nello stato
+     * @param parentLsn       l'LSN della generazione su cui si basa uno snapshot
+     *                        incrementale, oppure -1 per uno snapshot completo
+     * @param users           le copie degli utenti registrati da scrivere
+     * @param projects        gli snapshot dei progetti da scrivere, per nome
+     * @param dirtyCards      per ogni progetto, i nomi delle carte da scrivere
+     *                        (o da segnare come rimosse), oppure null per
+     *                        scrivere tutte le carte
+     * @param deletedProjects i nomi dei progetti cancellati dopo la generazione
+     *                        precedente
+     * @return il numero di file delle carte scritti
+     * @throws IOException in caso di errori di I/O
+     */
+    private static int writeGeneration(long lastLsn, long parentLsn, List<User> users,
+            Map<String, ProjectSnapshot> projects, Map<String, List<String>> dirtyCards,
+            List<String> deletedProjects) throws IOException {
+        Path snapshotsPath = Paths.get(snapshotsDirName);
+        Files.createDirectories(snapshotsPath);
+        Path generationPath = Paths.get(generationDirName(lastLsn));
+        Path incompletePath = Paths.get(generationPath + incompleteSuffix);
+        // Generazione lasciata a metà da un crash durante un salvataggio precedente
+        if (Files.exists(incompletePath))
+            deleteDirectory(incompletePath.toString());
+        Files.createDirectory(incompletePath);
+        if (parentLsn >= 0)
+            writeFile(incompletePath.resolve(parentFilename).toString(), parentLsn);
+        // Scrittura del file per il salvataggio dello stato degli utenti registrati,
+        // all'interno della generazione
+        if (parentLsn < 0 || !users.isEmpty())
+            writeFile(incompletePath.resolve(usersFilename).toString(), users);
+        if (!deletedProjects.isEmpty())
+            writeFile(incompletePath.resolve(deletedProjectsFilename).toString(), deletedProjects);
+        // Per ogni progetto da scrivere, creazione di una nuova directory per il
+        // salvataggio dello stato del progetto, all'interno della generazione
+        // (oppure, nel formato "packed", scrittura di tutti i progetti in un solo file)
+        HashMap<String, List<String>> deletedCards = new HashMap<>();
+        int writtenCards = 0;
+        StatePack.Writer pack = ServerConfig.getSnapshotFormat().equals("packed")
+                ? new StatePack.Writer(incompletePath.resolve(packFilename))
+                : null;
+        try {
+            for (Map.Entry<String, ProjectSnapshot> project : projects.entrySet()) {
+                List<String> cardNames = dirtyCards == null ? null : dirtyCards.get(project.getKey());
+                if (pack != null)
+                    writtenCards += packProject(pack, project.getKey(), project.getValue(), cardNames, deletedCards);
+                else
+                    writtenCards += createProjectDirectory(incompletePath, project.getKey(), project.getValue(),
+                            cardNames, deletedCards);
+            }
+            if (pack != null)
+                pack.finish(!ServerConfig.getJournalSync().equals("none"));
         } catch (IOException e) {
-            e.printStackTrace();
+            if (pack != null)
+                pack.abort();
+            throw e;
+        }
+        if (!deletedCards.isEmpty())
+            writeFile(incompletePath.resolve(deletedCardsFilename).toString(), deletedCards);
+        // LSN dell'ultima operazione compresa nello stato: all'avvio vengono ripetute
+        // solo le operazioni successive
+        writeFile(incompletePath.resolve(journalLsnFilename).toString(), lastLsn);
+        syncDirectory(incompletePath);
+        // Promozione della generazione: dopo la rename (e la sua sincronizzazione)
+        // all'avvio verrà letta questa
+        if (Files.exists(generationPath))
+            deleteDirectory(generationPath.toString());
+        Files.move(incompletePath, generationPath, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(snapshotsPath);
+        return writtenCards;
+    }
+
+    /**
+     * Metodo ausiliario che cancella le generazioni dello stato che non servono
+     * più: vengono conservate le più recenti (ServerConfig.getSnapshotKeep()) e
+     * quelle su cui si basano. Poi cancella i segmenti del journal che contengono
+     * solo operazioni comprese in tutte le generazioni conservate.
+     *
+     * @throws IOException in caso di errori di I/O
+     */
+    private static void pruneGenerations() throws IOException {
+        List<Long> generations = listGenerations();
+        if (generations.isEmpty())
+            return;
+        int firstKept = Math.max(generations.size() - ServerConfig.getSnapshotKeep(), 0);
+        // Generazioni conservate, con le catene di generazioni su cui si basano
+        HashSet<Long> needed = new HashSet<>();
+        for (int i = firstKept; i < generations.size(); i++) {
+            long lsn = generations.get(i);
+            while (lsn >= 0 && needed.add(lsn))
+                lsn = readParent(lsn);
+        }
+        for (long lsn : generations) {
+            if (!needed.contains(lsn))
+                deleteDirectory(generationDirName(lsn));
+        }
+        if (journal != null)
+            journal.prune(generations.get(firstKept));
+    }
+
+    /**
+     * Metodo ausiliario che elenca le generazioni complete dello stato
+     *
+     * @return gli LSN delle generazioni, in ordine crescente (vuota se non ce ne
+     *         sono)
+     */
+    private static List<Long> listGenerations() {
+        ArrayList<Long> generations = new ArrayList<>();
+        String[] files = new File(snapshotsDirName).list();
+        if (files == null)
+            return generations;
+        for (String filename : files) {
+            // Le generazioni incomplete hanno l'estensione e non vengono considerate
+            if (filename.startsWith(generationPrefix) && !filename.endsWith(incompleteSuffix))
+                generations.add(Long.parseLong(filename.substring(generationPrefix.length())));
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    /**
+     * Metodo ausiliario che restituisce il path della directory di una
+     * generazione
+     *
+     * @param lsn l'LSN della generazione
+     * @return il path della directory
+     */
+    private static String generationDirName(long lsn) {
+        return snapshotsDirName + File.separator + String.format("%s%019d", generationPrefix, lsn);
+    }
+
+    /**
+     * Metodo ausiliario che legge su quale generazione si basa una generazione
+     *
+     * @param lsn l'LSN della generazione
+     * @return l'LSN della generazione precedente, oppure -1 se la generazione è
+     *         completa
+     * @throws IOException in caso di errori di I/O durante una chiamata alla read()
+     */
+    private static long readParent(long lsn) throws IOException {
+        File parentFile = new File(generationDirName(lsn), parentFilename);
+        return parentFile.isFile() ? Long.parseLong(readFile(parentFile.getPath()).trim()) : -1;
+    }
+
+    /**
+     * Metodo ausiliario che sincronizza sul disco una directory e le directory
+     * dei progetti al suo interno, a meno che il journal non venga mai
+     * sincronizzato
+     *
+     * @param dir la directory
+     */
+    private static void syncDirectory(Path dir) {
+        if (ServerConfig.getJournalSync().equals("none"))
+            return;
+        File[] files = dir.toFile().listFiles(File::isDirectory);
+        if (files != null)
+            for (File file : files)
+                Journal.forceDirectory(file.toPath());
+        Journal.forceDirectory(dir);
+    }
+
+    /**
+     * Avvia il thread che fa gli snapshot dello stato in background, quando è
+     * passato l'intervallo configurato dall'ultimo o quando il journal ha superato
+     * la soglia di bytes. Se sono disabilitati entrambi non fa niente.
+     */
+    private static void startSnapshots() {
+        long intervalNanos = ServerConfig.getSnapshotInterval() * 1_000_000_000L;
+        long journalBytes = ServerConfig.getSnapshotJournalBytes();
+        if (intervalNanos == 0 && journalBytes == 0)
+            return;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshots");
+            // Il thread non deve impedire la terminazione del server
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Controllo ogni secondo delle due condizioni
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if ((intervalNanos > 0 && System.nanoTime() - lastSnapshotTime >= intervalNanos)
+                        || (journalBytes > 0 && journal.getSegmentBytes() >= journalBytes))
+                    saveState();
+            } catch (RuntimeException e) {
+                // Un'eccezione fermerebbe i controlli successivi
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Metodo per ottenere le statistiche degli snapshot
+     *
+     * @return una stringa con l'LSN dell'ultimo snapshot, la durata degli
+     *         snapshot e il tempo in cui hanno tenuto le lock dello stato
+     */
+    private static String snapshotStats() {
+        long lsn;
+        synchronized (snapshotLock) {
+            lsn = lastSnapshotLsn;
         }
+        return "lastLsn=" + lsn + " generations=" + listGenerations().size() + " lastCards=" + lastSnapshotCards
+                + " total["
+                + snapshotLatency.summary() + "] locked[" + snapshotLockLatency.summary() + "]";
     }
 
     /**
@@ -287,32 +715,6 @@ public class ServerMain {
         file.delete();
     }
 
-    /**
-     * Metodo per scrivere il file contenente il salvataggio dello stato degli
-     * utenti registrati al servizio.
-     * 
-     * @throws IOException in caso di errori di I/O durante una chiamata alla
-     *                     write()
-     */
-    private static void writeUsersFile() throws IOException {
-        // Aquisizione della write lock della lista degli utenti registrati
-        usersLock.writeLock().lock();
-        // Per ogni utente azzero le liste degli utenti e delle chat (non serve
-        // scriverle nel file)
-        for (User user : registeredUsers) {
-            user.setUsersList(new ArrayList<>());
-            user.setChatsList(new ArrayList<>());
-        }
-        // Rilascio della write lock
-        usersLock.writeLock().unlock();
-        // Aquisizione della read lock della lista degli utenti registrati
-        usersLock.readLock().lock();
-        // Scrittura del file
-        writeFile(stateDirName + File.separator + usersFilename, registeredUsers);
-        // Rilascio della read lock
-        usersLock.readLock().unlock();
-    }
-
     /**
      * Metodo per la creazione di una directory per il salvataggio dello stato di un
      * progetto. La directory avrà lo stesso nome del progetto. Al suo interno ci
@@ -320,66 +722,489 @@ public class ServerMain {
      * file relativo a una carta ha lo stesso nome della carta in questione, e al
      * suo interno vi è salvato il suo stato.
      * 
-     * @param project il nome del progetto per cui va creata una directory
+     * @param generationPath la directory della generazione dello stato
+     * @param projectName    il nome del progetto per cui va creata una directory
+     * @param snapshot       lo snapshot del progetto da salvare
+     * @param cardNames      i nomi delle carte da scrivere, oppure null per
+     *                       scriverle tutte: quelle che non ci sono più vengono
+     *                       aggiunte a deletedCards
+     * @param deletedCards   per ogni progetto, i nomi delle carte rimosse
+     * @return il numero di file delle carte scritti
      * @throws IOException in caso di errori di I/O durante una chiamata alla
      *                     write()
      */
-    private static void createProjectDirectory(Project project) throws IOException {
+    private static int createProjectDirectory(Path generationPath, String projectName, ProjectSnapshot snapshot,
+            List<String> cardNames, Map<String, List<String>> deletedCards) throws IOException {
         // Creazione della directory del progetto
-        Path projectPath = Paths.get(stateDirName + File.separator + project.getName());
+        Path projectPath = generationPath.resolve(projectName);
         Files.createDirectory(projectPath);
         // Creazione del file contenente tutti i nickname dei membri del progetto
-        writeFile(projectPath.toString() + File.separator + projectMembersFilename, project.getMembers());
+        writeFile(projectPath.toString() + File.separator + projectMembersFilename, snapshot.getMembers());
         // Creazione dei file delle carte del progetto
-        for (Card card : project.getAllCards())
+        if (cardNames == null)
+            cardNames = snapshot.getCardNames();
+        int writtenCards = 0;
+        for (String cardName : cardNames) {
+            Card card = snapshot.getCard(cardName);
+            if (card == null) {
+                deletedCards.computeIfAbsent(projectName, name -> new ArrayList<>()).add(cardName);
+                continue;
+            }
             writeFile(projectPath.toString() + File.separator + card.getName() + ".json", card);
+            writtenCards++;
+        }
+        return writtenCards;
     }
 
     /**
-     * Metodo per il ripristino dello stato dopo il riavvio del server. Se la
-     * directory contenente lo stato del sistema non esiste, allora non fa niente.
-     * Altrimenti ricrea la lista degli utenti registrati e la lista dei progetti
-     * creati, leggendo la prima dal relativo file e ricostruendo la seconda
-     * leggendo per ogni progetto la relativa directory.
+     * Metodo per l'aggiunta di un progetto al file impacchettato di una
+     * generazione (formato "packed"): come createProjectDirectory, ma i membri e
+     * le carte vanno nel blocco del progetto invece che in file separati.
+     * 
+     * @param pack         il file impacchettato della generazione
+     * @param projectName  il nome del progetto
+     * @param snapshot     lo snapshot del progetto da salvare
+     * @param cardNames    i nomi delle carte da scrivere, oppure null per
+     *                     scriverle tutte: quelle che non ci sono più vengono
+     *                     aggiunte a deletedCards
+     * @param deletedCards per ogni progetto, i nomi delle carte rimosse
+     * @return il numero di carte scritte
+     * @throws IOException in caso di errori di I/O durante una chiamata alla
+     *                     write()
      */
-    private static void restoreState() {
-        // Oggetto di tipo File relativo alla root directory dello stato
-        File stateDirectory = new File(stateDirName);
-        // Se la root directory non esiste non fa nulla (non c'è nessuno stato da
-        // ripristinare)
-        if (!stateDirectory.isDirectory())
-            return;
+    private static int packProject(StatePack.Writer pack, String projectName, ProjectSnapshot snapshot,
+            List<String> cardNames, Map<String, List<String>> deletedCards) throws IOException {
+        if (cardNames == null)
+            cardNames = snapshot.getCardNames();
+        // Stato delle carte serializzato con il TypeAdapter delle carte, come nei file
+        LinkedHashMap<String, String> cards = new LinkedHashMap<>();
+        for (String cardName : cardNames) {
+            Card card = snapshot.getCard(cardName);
+            if (card == null)
+                deletedCards.computeIfAbsent(projectName, name -> new ArrayList<>()).add(cardName);
+            else
+                cards.put(cardName, JsonCodec.stateGson().toJson(card));
+        }
+        pack.addProject(projectName, JsonCodec.stateGson().toJson(snapshot.getMembers()), cards);
+        return cards.size();
+    }
+
+    /**
+     * Metodo per il ripristino dello stato dopo il riavvio del server. Lo stato
+     * viene letto dalla generazione più recente degli snapshot, applicando in
+     * ordine la catena di generazioni a partire dall'ultima completa, oppure, se
+     * non ce ne sono, dalla directory dello stato nel formato precedente; se non
+     * esiste neanche quella, allora non fa niente. Altrimenti ricrea la lista
+     * degli utenti registrati e la lista dei progetti creati, leggendo la prima
+     * dal relativo file e ricostruendo la seconda leggendo per ogni progetto la
+     * relativa directory. Infine ripete le operazioni del journal successive.
+     *
+     * @throws IOException se lo stato salvato o il journal non sono leggibili
+     *                     (anche per un contenuto non valido)
+     */
+    private static void restoreState() throws IOException {
+        // Le generazioni salvate in un formato diverso da quello scelto vengono
+        // convertite prima di essere lette
+        convertGenerations();
+        List<Long> generations = listGenerations();
+        // Le directory da leggere, in ordine: la generazione completa e poi quelle
+        // incrementali
+        ArrayList<File> chain = new ArrayList<>();
+        // LSN dell'ultima operazione del journal compresa nello stato salvato
+        long snapshotLsn = 0;
+        // Utenti compresi nello stato salvato (senza quelli registrati dal journal)
+        int restoredUsers = 0;
         try {
-            // Ripristina la lista degli utenti registrati
-            restoreUsersState();
-            // Lista dei nomi delle directories dei progetti, più il nome del file degli
-            // utenti
-            String[] files = stateDirectory.list();
+            if (generations.isEmpty()) {
+                if (new File(stateDirName).isDirectory())
+                    chain.add(new File(stateDirName));
+            } else {
+                for (long lsn = generations.get(generations.size() - 1); lsn >= 0; lsn = readParent(lsn)) {
+                    File generation = new File(generationDirName(lsn));
+                    if (!generation.isDirectory())
+                        throw new IOException("Generazione dello stato mancante: " + generation);
+                    chain.add(0, generation);
+                }
+            }
+            // Se non c'è nessuna directory non c'è nessuno stato salvato da ripristinare,
+            // ma solo il journal
+            if (!chain.isEmpty()) {
+                // Membri e carte di ogni progetto, aggiornati da ogni generazione della catena
+                LinkedHashMap<String, String[]> members = new LinkedHashMap<>();
+                LinkedHashMap<String, LinkedHashMap<String, Card>> cards = new LinkedHashMap<>();
+                for (File stateDirectory : chain)
+                    restoreGeneration(stateDirectory, members, cards);
+                // Ricostruzione dei progetti e aggiunta alla lista dei progetti creati
+                for (Map.Entry<String, String[]> project : members.entrySet())
+                    restoreProject(project.getKey(), project.getValue(), cards.get(project.getKey()).values());
+                // Lo stato salvato prima dell'introduzione del journal non ha il file dell'LSN
+                File lsnFile = new File(chain.get(chain.size() - 1), journalLsnFilename);
+                if (lsnFile.isFile())
+                    snapshotLsn = Long.parseLong(readFile(lsnFile.getPath()).trim());
+            }
+            restoredUsers = registeredUsers.size();
+            // Ripetizione delle operazioni del journal successive allo stato salvato
+            openJournal(snapshotLsn);
+        } catch (RuntimeException e) {
+            // File con un contenuto non valido (JSON o numeri)
+            throw new IOException("Stato salvato non valido: " + e.getMessage(), e);
+        }
+        // Lo stato nel formato precedente verrà riscritto nel primo snapshot, che sarà
+        // completo; altrimenti il prossimo snapshot può basarsi sulla generazione letta
+        if (!generations.isEmpty()) {
+            lastSnapshotLsn = snapshotLsn;
+            deltaCount = chain.size() - 1;
+            savedUsers = restoredUsers;
+        } else if (chain.isEmpty()) {
+            lastSnapshotLsn = 0;
+        }
+    }
+
+    /**
+     * Metodo ausiliario che converte tutte le generazioni dello stato nel formato
+     * scelto all'avvio (ServerConfig.getSnapshotFormat()). Ogni generazione viene
+     * convertita sul posto, e il passaggio da un formato all'altro è la creazione
+     * (con una rename) o la cancellazione del file impacchettato: se la
+     * conversione si interrompe la generazione resta leggibile nel formato
+     * precedente, e viene convertita al prossimo avvio. Un file impacchettato
+     * viene controllato prima di cancellare qualsiasi cosa: se è danneggiato la
+     * generazione resta com'è e il ripristino dello stato fallisce.
+     *
+     * @throws IOException in caso di errori di I/O, o se un file impacchettato è
+     *                     incompleto o danneggiato
+     */
+    private static void convertGenerations() throws IOException {
+        boolean packed = ServerConfig.getSnapshotFormat().equals("packed");
+        boolean force = !ServerConfig.getJournalSync().equals("none");
+        int converted = 0;
+        for (long lsn : listGenerations()) {
+            File generation = new File(generationDirName(lsn));
+            Path packPath = generation.toPath().resolve(packFilename);
+            boolean isPacked = Files.isRegularFile(packPath);
+            // Directory dei progetti: nel formato "packed" sono resti di una
+            // conversione interrotta
+            File[] projectDirectories = generation.listFiles(File::isDirectory);
+            assert projectDirectories != null;
+            if (packed) {
+                if (!isPacked) {
+                    // Scrittura dei progetti nel file impacchettato, con il nome provvisorio
+                    Path incompletePath = Paths.get(packPath + incompleteSuffix);
+                    StatePack.Writer pack = new StatePack.Writer(incompletePath);
+                    try {
+                        for (File projectDirectory : projectDirectories)
+                            packProjectDirectory(pack, projectDirectory);
+                        pack.finish(force);
+                    } catch (IOException e) {
+                        pack.abort();
+                        throw e;
+                    }
+                    Files.move(incompletePath, packPath, StandardCopyOption.ATOMIC_MOVE);
+                    syncDirectory(generation.toPath());
+                    converted++;
+                } else if (projectDirectories.length > 0) {
+                    // Il file va controllato prima di cancellare i resti di una conversione
+                    // interrotta
+                    StatePack.read(packPath);
+                }
+                for (File projectDirectory : projectDirectories)
+                    deleteDirectory(projectDirectory.getPath());
+            } else if (isPacked) {
+                // Lettura (e controllo) del file prima di cancellare qualsiasi cosa
+                List<StatePack.Entry> entries = StatePack.read(packPath);
+                // Resti di una conversione interrotta
+                for (File projectDirectory : projectDirectories)
+                    deleteDirectory(projectDirectory.getPath());
+                // Scrittura di una directory per progetto, con un file per carta
+                for (StatePack.Entry entry : entries) {
+                    Path projectPath = generation.toPath().resolve(entry.getName());
+                    Files.createDirectory(projectPath);
+                    writeStringFile(projectPath.resolve(projectMembersFilename).toString(), entry.getMembers());
+                    for (Map.Entry<String, String> card : entry.getCards().entrySet())
+                        writeStringFile(projectPath.resolve(card.getKey() + ".json").toString(), card.getValue());
+                }
+                syncDirectory(generation.toPath());
+                // Da qui la generazione viene letta dalle directory
+                Files.delete(packPath);
+                syncDirectory(generation.toPath());
+                converted++;
+            }
+        }
+        if (converted > 0)
+            System.out.println("Server: convertite " + converted + " generazioni dello stato nel formato "
+                    + ServerConfig.getSnapshotFormat());
+    }
+
+    /**
+     * Metodo ausiliario che aggiunge al file impacchettato di una generazione un
+     * progetto letto dalla sua directory, senza deserializzarlo
+     *
+     * @param pack             il file impacchettato
+     * @param projectDirectory la directory del progetto
+     * @throws IOException in caso di errori di I/O durante una chiamata alla read()
+     */
+    private static void packProjectDirectory(StatePack.Writer pack, File projectDirectory) throws IOException {
+        String members = readFile(projectDirectory.getPath() + File.separator + projectMembersFilename);
+        LinkedHashMap<String, String> cards = new LinkedHashMap<>();
+        String[] files = projectDirectory.list();
+        assert files != null;
+        for (String filename : files) {
+            // Il nome della carta è quello del file senza l'estensione
+            if (!filename.equals(projectMembersFilename) && filename.endsWith(".json"))
+                cards.put(filename.substring(0, filename.length() - ".json".length()),
+                        readFile(projectDirectory.getPath() + File.separator + filename));
+        }
+        pack.addProject(projectDirectory.getName(), members, cards);
+    }
+
+    /**
+     * Metodo ausiliario che legge una generazione dello stato (oppure la
+     * directory dello stato nel formato precedente): registra gli utenti e
+     * aggiorna membri e carte dei progetti con quello che contiene.
+     *
+     * @param stateDirectory la directory della generazione
+     * @param members        i membri di ogni progetto, per nome del progetto
+     * @param cards          le carte di ogni progetto, per nome del progetto
+     * @throws IOException in caso di errori di I/O durante una chiamata alla read()
+     */
+    private static void restoreGeneration(File stateDirectory, Map<String, String[]> members,
+            Map<String, LinkedHashMap<String, Card>> cards) throws IOException {
+        // Ripristina la lista degli utenti registrati (una generazione incrementale
+        // contiene solo quelli nuovi, e non ha il file se non ce ne sono)
+        if (new File(stateDirectory, usersFilename).isFile())
+            restoreUsersState(stateDirectory);
+        Gson gson = new Gson();
+        // Progetti cancellati dopo la generazione precedente
+        File deletedProjectsFile = new File(stateDirectory, deletedProjectsFilename);
+        if (deletedProjectsFile.isFile()) {
+            for (String projectName : gson.fromJson(readFile(deletedProjectsFile.getPath()), String[].class)) {
+                members.remove(projectName);
+                cards.remove(projectName);
+            }
+        }
+        File packFile = new File(stateDirectory, packFilename);
+        if (packFile.isFile()) {
+            // Formato "packed": tutti i progetti sono nel file (eventuali directory sono
+            // resti di una conversione interrotta)
+            for (StatePack.Entry entry : StatePack.read(packFile.toPath())) {
+                members.put(entry.getName(), gson.fromJson(entry.getMembers(), String[].class));
+                LinkedHashMap<String, Card> projectCards = cards.computeIfAbsent(entry.getName(),
+                        name -> new LinkedHashMap<>());
+                for (Map.Entry<String, String> card : entry.getCards().entrySet())
+                    projectCards.put(card.getKey(), JsonCodec.stateGson().fromJson(card.getValue(), Card.class));
+            }
+        } else {
+            // Lista delle directories dei progetti, più i file della generazione
+            File[] files = stateDirectory.listFiles();
             assert files != null;
-            // Per ogni filename trovato, se è il nome di una directory (e quindi di un
-            // progetto) ripristino il relativo
-            // progetto
-            for (String filename : files) {
-                File file = new File(stateDirName + File.separator + filename);
+            // Per ogni file trovato, se è una directory (e quindi un progetto) leggo il
+            // relativo progetto
+            for (File file : files) {
                 if (file.isDirectory())
-                    // ripristina il progetto e lo aggiunge alla lista dei progetti creati
-                    restoreProject(file);
+                    readProjectDirectory(file, members, cards);
             }
+        }
+        // Carte rimosse dopo la generazione precedente
+        File deletedCardsFile = new File(stateDirectory, deletedCardsFilename);
+        if (deletedCardsFile.isFile()) {
+            Map<String, String[]> deletedCards = gson.fromJson(readFile(deletedCardsFile.getPath()),
+                    new TypeToken<HashMap<String, String[]>>() {
+                    }.getType());
+            for (Map.Entry<String, String[]> project : deletedCards.entrySet()) {
+                LinkedHashMap<String, Card> projectCards = cards.get(project.getKey());
+                if (projectCards != null)
+                    for (String cardName : project.getValue())
+                        projectCards.remove(cardName);
+            }
+        }
+    }
+
+    /**
+     * Metodo ausiliario che ripete le operazioni del journal successive allo
+     * stato salvato, e poi apre il journal per le nuove operazioni.
+     *
+     * @param snapshotLsn l'LSN dell'ultima operazione compresa nello stato salvato
+     * @throws IOException in caso di errori di I/O durante la lettura o
+     *                     l'apertura del journal
+     */
+    private static void openJournal(long snapshotLsn) throws IOException {
+        Path journalPath = Paths.get(journalDirName);
+        // Il journal in un solo file diventa il primo segmento
+        Path legacyPath = Paths.get(journalFilename);
+        if (Files.exists(legacyPath)) {
+            Files.createDirectories(journalPath);
+            Files.move(legacyPath, journalPath.resolve(String.format("segment-%019d.log", 0)));
+        }
+        // Numero di operazioni ripetute
+        long[] replayed = { 0 };
+        long lastLsn = Journal.replay(journalPath, snapshotLsn, record -> {
+            applyRecord(record);
+            replayed[0]++;
+        });
+        if (replayed[0] > 0)
+            System.out.println("Server: ripetute " + replayed[0] + " operazioni dal journal");
+        journal = new Journal(journalPath, lastLsn, ServerConfig.getJournalSync(),
+                ServerConfig.getJournalGroupSize(), ServerConfig.getJournalGroupWait(), ServerMain::journalFailed);
+    }
+
+    /**
+     * Metodo eseguito dal flusher del journal quando la scrittura di un gruppo di
+     * record fallisce (journal-sync=group). Le operazioni dei record non scritti
+     * sono già applicate in memoria, ma ai client è stato risposto che non sono
+     * state eseguite: da qui in poi il server non risponde più a nessuna richiesta
+     * (vedi isJournalFailed), perché nessuno veda quelle operazioni, e termina.
+     * Lo snapshot dello stato all'uscita viene rifiutato dal journal, quindi al
+     * riavvio lo stato è quello dei soli record sul disco.
+     */
+    private static void journalFailed() {
+        journalFailed = true;
+        System.err.println("Server: journal non più scrivibile, il server termina (lo stato al riavvio sarà quello"
+                + " delle sole operazioni confermate)");
+        // La terminazione esegue l'hook di salvataggio, che non va eseguito dal flusher
+        new Thread(() -> System.exit(1), "journal-failure").start();
+    }
+
+    /**
+     * Metodo per sapere se la scrittura di un gruppo di record del journal è
+     * fallita: lo stato in memoria può contenere operazioni non confermate,
+     * quindi le richieste dei client vengono rifiutate. Nelle altre modalità le
+     * operazioni il cui record non è stato scritto vengono annullate subito.
+     *
+     * @return true se il server non deve più rispondere alle richieste
+     */
+    public static boolean isJournalFailed() {
+        return journalFailed;
+    }
+
+    /**
+     * Metodo ausiliario che ripete un'operazione del journal durante il
+     * ripristino dello stato. Non ci sono altri thread, quindi i metodi che
+     * richiedono le lock vengono chiamati senza acquisirle. Le operazioni che non
+     * si possono ripetere (ad esempio su un progetto che non esiste) vengono
+     * ignorate.
+     *
+     * @param record il record dell'operazione
+     */
+    private static void applyRecord(Journal.Record record) {
+        switch (record.getType()) {
+            case REGISTER -> {
+                if (!usersByNickname.containsKey(record.getField(0)))
+                    registerUserLocked(new User(record.getField(0), record.getField(1)));
+            }
+            case CREATE_PROJECT -> {
+                if (!projectsByName.containsKey(record.getField(1))) {
+                    Project project = new Project(record.getField(1));
+                    project.addMember(getUserId(record.getField(0)));
+                    bindChatAddress(project);
+                    addProjectLocked(project);
+                }
+            }
+            case ADD_MEMBER -> {
+                Project project = projectsByName.get(record.getField(0));
+                if (project != null)
+                    addMemberLocked(project, record.getField(1));
+            }
+            case ADD_CARD -> {
+                Project project = projectsByName.get(record.getField(0));
+                if (project != null)
+                    addCardLocked(project, record.getField(1), record.getField(2), record.getTime());
+            }
+            case MOVE_CARD -> {
+                Project project = projectsByName.get(record.getField(0));
+                Card card = project == null ? null : project.getCard(record.getField(1));
+                if (card != null)
+                    project.moveCard(card, CardList.parse(record.getField(2)), record.getTime());
+            }
+            case CANCEL_PROJECT -> {
+                Project project = projectsByName.get(record.getField(0));
+                if (project != null) {
+                    removeProjectLocked(project);
+                    project.setDeleted(true);
+                    addressesToBeReallocated.add(project.getMulticastAddress());
+                }
+            }
+        }
+    }
+
+    /**
+     * Metodo ausiliario che aggiunge dei record al journal, con le lock delle
+     * operazioni ancora acquisite. Se il journal non è aperto non fa niente. Se
+     * la scrittura fallisce il chiamante deve annullare le operazioni dei record
+     * (al riavvio non verrebbero ripetute) e rispondere con un errore.
+     *
+     * @param records i record da aggiungere
+     * @return true se i record sono stati aggiunti o il journal non è aperto,
+     *         false in caso di errore
+     */
+    private static boolean logRecords(List<Journal.Record> records) {
+        if (journal == null)
+            return true;
+        try {
+            journal.append(records);
+            return true;
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Server: scrittura del journal fallita, operazione annullata (" + e.getMessage() + ")");
+            return false;
         }
     }
 
+    /**
+     * Metodo per ottenere, e azzerare, l'LSN dell'ultimo record aggiunto al
+     * journal dal thread corrente
+     *
+     * @return l'LSN del record, oppure 0 se il thread non ha aggiunto record o il
+     *         journal non è aperto
+     */
+    public static long takeJournalLsn() {
+        return journal == null ? 0 : journal.takeAppendedLsn();
+    }
+
+    /**
+     * Metodo per sapere se un record del journal è sul disco
+     *
+     * @param lsn l'LSN del record
+     * @return true se il record è sul disco o il journal non è aperto
+     */
+    public static boolean isJournalDurable(long lsn) {
+        return journal == null || journal.isDurable(lsn);
+    }
+
+    /**
+     * Esegue un'azione quando un record del journal è sul disco, oppure un'altra
+     * se non può essere scritto (vedi Journal.whenDurable)
+     *
+     * @param lsn       l'LSN del record
+     * @param action    l'azione da eseguire
+     * @param onFailure l'azione da eseguire se il record non può essere scritto
+     */
+    public static void whenJournalDurable(long lsn, Runnable action, Runnable onFailure) {
+        if (journal == null)
+            action.run();
+        else
+            journal.whenDurable(lsn, action, onFailure);
+    }
+
+    /**
+     * Attende che un record del journal sia sul disco
+     *
+     * @param lsn l'LSN del record
+     * @return true se il record è sul disco o il journal non è aperto, false se
+     *         non può essere scritto
+     */
+    public static boolean awaitJournal(long lsn) {
+        return journal == null || journal.awaitDurable(lsn);
+    }
+
     /**
      * Metodo ausiliario per ripristinare la lista degli utenti registrati, leggendo
      * la lista serializzata dal file apposito (quello il cui nome è memorizzato
      * nella variabile d'istanza usersFilename) e deserializzandola.
      * 
+     * @param stateDirectory la directory dello stato da ripristinare
      * @throws IOException in caso di errori di I/O durante una chiamata alla read()
      */
-    private static void restoreUsersState() throws IOException {
+    private static void restoreUsersState(File stateDirectory) throws IOException {
         // Lettura del file in un'unica stringa
-        String str = readFile(stateDirName + File.separator + usersFilename);
+        String str = readFile(stateDirectory.getPath() + File.separator + usersFilename);
         // Deserializzazione
         Gson gson = new Gson();
         User[] users = gson.fromJson(str, User[].class);
@@ -389,27 +1214,28 @@ public class ServerMain {
             // fatto partire il server
             // tutti gli utenti saranno offline
             user.setOnline(false);
-            // Aggiunta dell'utente alla lista degli utenti registrati
+            // Aggiunta dell'utente alla lista e agli indici degli utenti registrati
             usersLock.writeLock().lock();
-            registeredUsers.add(user);
+            registerUserLocked(user);
             usersLock.writeLock().unlock();
         }
     }
 
     /**
-     * Metodo che ripristina un progetto a partire dalla sua directory, e lo
-     * aggiunge alla lista dei progetti creati.
+     * Metodo ausiliario che legge la directory di un progetto in una generazione
+     * dello stato: i membri sostituiscono quelli letti dalle generazioni
+     * precedenti, e le carte sostituiscono quelle con lo stesso nome.
      * 
-     * @param projectDirectory la directory relativa ad un progetto da ripristinare
+     * @param projectDirectory la directory relativa ad un progetto
+     * @param members          i membri di ogni progetto, per nome del progetto
+     * @param cards            le carte di ogni progetto, per nome del progetto
      * @throws IOException in caso di errori di I/O durante una chiamata alla read()
      */
-    private static void restoreProject(File projectDirectory) throws IOException {
-        // Creazione del progetto con il nome della directory
-        Project project = new Project(projectDirectory.getName(), null);
-        // Tolgo il membro a null dalla lista
-        project.getMembers().remove(null);
+    private static void readProjectDirectory(File projectDirectory, Map<String, String[]> members,
+            Map<String, LinkedHashMap<String, Card>> cards) throws IOException {
+        String projectName = projectDirectory.getName();
         // Path della directory del progetto
-        String projectPathName = stateDirName + File.separator + projectDirectory.getName();
+        String projectPathName = projectDirectory.getPath();
         // Path del file dei membri del progetto (che si trova all'interno della
         // directory del progetto)
         String membersPathName = projectPathName + File.separator + projectMembersFilename;
@@ -417,11 +1243,8 @@ public class ServerMain {
         String str = readFile(membersPathName);
         // Deserializzazione
         Gson gson = new Gson();
-        String[] members = gson.fromJson(str, String[].class);
-        // Ogni membro trovato lo riaggiungo alla lista dei membri del progetto
-        for (String member : members) {
-            project.getMembers().add(member);
-        }
+        members.put(projectName, gson.fromJson(str, String[].class));
+        LinkedHashMap<String, Card> projectCards = cards.computeIfAbsent(projectName, name -> new LinkedHashMap<>());
         // Lista dei nomi dei files all'interno della directory del progetto (files
         // delle carte + file dei membri)
         String[] files = projectDirectory.list();
@@ -433,18 +1256,39 @@ public class ServerMain {
                 // Lettura del file
                 str = readFile(projectPathName + File.separator + filename);
                 // Deserializzazione
-                Card card = gson.fromJson(str, Card.class);
-                // Aggiunta della carta alla lista di appartenenza del progetto
-                project.getList(card.getLocation().toLowerCase()).add(card);
-                // Aggiunta della carta alla lista del progetto che contiene tutte le carte
-                project.getAllCards().add(card);
+                Card card = JsonCodec.stateGson().fromJson(str, Card.class);
+                projectCards.put(card.getName(), card);
             }
         }
+    }
+
+    /**
+     * Metodo che ricostruisce un progetto letto dalle generazioni dello stato, e
+     * lo aggiunge alla lista dei progetti creati.
+     * 
+     * @param projectName il nome del progetto
+     * @param members     i nickname dei membri del progetto
+     * @param cards       le carte del progetto
+     */
+    private static void restoreProject(String projectName, String[] members, Collection<Card> cards) {
+        // Creazione del progetto
+        Project project = new Project(projectName);
+        // Ogni membro trovato lo riaggiungo ai membri del progetto, con il suo
+        // identificativo (i nickname non registrati vengono ignorati)
+        for (String member : members) {
+            project.addMember(getUserId(member));
+        }
+        // Aggiunta delle carte al progetto, ognuna nella lista in cui si trova
+        for (Card card : cards)
+            project.addCard(card);
+        // Il progetto è uguale a quello salvato: il prossimo snapshot incrementale
+        // non deve riscriverlo
+        project.clearDirty();
         // Assegnazione della porta e dell'indirizzo multicast per la chat
         bindChatAddress(project);
         // Aggiunta del progetto alla lista dei progetti creati
         projectsLock.writeLock().lock();
-        createdProjects.add(project);
+        addProjectLocked(project);
         projectsLock.writeLock().unlock();
     }
 
@@ -458,20 +1302,36 @@ public class ServerMain {
      *                     write()
      */
     private static void writeFile(String pathName, Object objToWrite) throws IOException {
+        // Serializzazione (con il TypeAdapter delle carte per i file dello stato)
+        writeStringFile(pathName, JsonCodec.stateGson().toJson(objToWrite));
+    }
+
+    /**
+     * Metodo per la scrittura di una stringa già serializzata su un file. Se il
+     * file non esiste lo crea.
+     *
+     * @param pathName path del file su cui scrivere la stringa
+     * @param str      la stringa da scrivere sul file
+     * @throws IOException in caso di errori di I/O durante una chiamata alla
+     *                     write()
+     */
+    private static void writeStringFile(String pathName, String str) throws IOException {
         // Oggetto di tipo Path per aprire il file
         Path membersPath = Paths.get(pathName);
         // Apertura del file. Se non esiste lo crea, altrimenti lo sovrascrive
-        FileChannel fileChannel = FileChannel.open(membersPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
-                StandardOpenOption.TRUNCATE_EXISTING);
-        // Serializzazione
-        Gson gson = new Gson();
-        String str = gson.toJson(objToWrite);
-        // Allocazione del byte buffer, inizializzato con la codifica in bytes della
-        // stringa risultato della serializzazione
-        ByteBuffer byteBuffer = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
-        // Scrittura sul file
-        while (byteBuffer.hasRemaining())
-            fileChannel.write(byteBuffer);
+        try (FileChannel fileChannel = FileChannel.open(membersPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Allocazione del byte buffer, inizializzato con la codifica in bytes della
+            // stringa risultato della serializzazione
+            ByteBuffer byteBuffer = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+            // Scrittura sul file
+            while (byteBuffer.hasRemaining())
+                fileChannel.write(byteBuffer);
+            // Dopo lo snapshot i segmenti del journal vengono cancellati: lo stato deve
+            // essere sul disco, a meno che il journal non venga mai sincronizzato
+            if (!ServerConfig.getJournalSync().equals("none"))
+                fileChannel.force(true);
+        }
     }
 
     /**
@@ -511,7 +1371,8 @@ public class ServerMain {
      * Metodo per gestire la richiesta di login: controlla se l'utente può fare una
      * login verificando che si sia registrato, che la password sia corretta e che
      * non sia già online. Una volta verificato il tutto setta l'utente a online.
-     * Genera un messaggio di risposta per il client. Il metodo è thread safe.
+     * Non acquisisce lock: la ricerca usa l'indice per nickname e il passaggio a
+     * online è atomico sul singolo utente. Genera un messaggio di risposta per il client. Il metodo è thread safe.
      * 
      * @param nickname il nome con cui si è registrato l'utente
      * @param password la password fornita al momento della registrazione
@@ -521,34 +1382,16 @@ public class ServerMain {
      */
     public static ClientServerMessage login(String nickname, String password) {
         ClientServerMessage message = new ClientServerMessage();
-        // Utente fittizio per la ricerca nella lista degli utenti registrati
-        // (ridefinita la equals: due utenti sono
-        // uguali se hanno lo stesso nickname)
-        User tmp = new User(nickname, password);
-        // Acquisizione della write lock degli utenti
-        usersLock.writeLock().lock();
-        // Indice dell'utente nella lista degli utenti registrati del server
-        int index = registeredUsers.indexOf(tmp);
+        // Ricerca dell'utente nell'indice degli utenti registrati, senza lock
+        User user = usersByNickname.get(nickname);
         // Controllo dei possibili errori
-        if (index == -1) { // Se non è nella lista significa che l'utente non è registrato
-            // Rilascio della write lock degli utenti
-            usersLock.writeLock().unlock();
+        if (user == null) { // Se non è nell'indice significa che l'utente non è registrato
             message.setReply(Replies.NOT_REGISTERED);
-        } else if (!registeredUsers.get(index).getPassword().equals(password)) { // Password sbagliata
-            // Rilascio della write lock degli utenti
-            usersLock.writeLock().unlock();
+        } else if (!user.getPassword().equals(password)) { // Password sbagliata
             message.setReply(Replies.WRONG_PASSW);
-        } else if (registeredUsers.get(index).isOnline()) { // Utente già online
-            // Rilascio della write lock degli utenti
-            usersLock.writeLock().unlock();
+        } else if (!user.compareAndSetOnline(false, true)) { // Utente già online
             message.setReply(Replies.ALREADY_ONLINE);
         } else { // Ok
-            // Setta l'utente come online
-            registeredUsers.get(index).setOnline(true);
-            // Riferimento all'utente
-            User user = registeredUsers.get(index);
-            // Rilascio della write lock degli utenti
-            usersLock.writeLock().unlock();
             // Setta un campo del messaggio con il riferimento all'utente
             message.setUser(user);
             // Setta la reply a OK
@@ -558,46 +1401,44 @@ public class ServerMain {
     }
 
     /**
-     * Metodo per gestire la richiesta di logout: setta l'utente (l'oggetto passato
-     * per argomento) a offline e controlla che sia nella lista degli utenti
-     * registrati. Se non c'è non fa niente, altrimenti lo aggiorna nella lista
-     * degli utenti registrati. Genera un messaggio di risposta per il client. Il
-     * metodo è thread safe.
+     * Metodo per gestire la richiesta di logout: setta a offline l'utente della
+     * sessione (nella lista degli utenti registrati del server). Genera un
+     * messaggio di risposta per il client. Il metodo è thread safe.
      * 
-     * @param user l'utente che vuole fare la logout
+     * @param nickname il nickname dell'utente della sessione che vuole fare la
+     *                 logout
      * @return un messaggio di risposta per il client, contenente un valore di
      *         Replies che notifichi il client sull'esito dell'operazione
      */
-    public static ClientServerMessage logout(User user) {
+    public static ClientServerMessage logout(String nickname) {
         ClientServerMessage message = new ClientServerMessage();
-        // Utente offline
-        user.setOnline(false);
-        // Cancellazione della lista degli utenti per non avere riferimenti circolari in
-        // json (nella lista degli utenti registrati del server, per ogni elemento non 
-        // riporto mai la rispettiva lista degli utenti)
-        user.setUsersList(new ArrayList<>());
-        // Lista delle chat inutile da mantenere
-        user.setChatsList(new ArrayList<>());
-        // Acquisizione write lock degli utenti
-        usersLock.writeLock().lock();
-        // Indice dell'utente nella lista degli utenti registrati
-        int index = registeredUsers.indexOf(user);
-        if (index != -1) {
-            // Aggiornamento dell'utente nella lista
-            registeredUsers.set(index, user);
-            // Rilascio della write lock degli utenti
-            usersLock.writeLock().unlock();
-            // Ok
+        if (setOffline(nickname))
             message.setReply(Replies.OK);
-            return message;
-        }
-        // Rilascio della write lock degli utenti
-        usersLock.writeLock().unlock();
-        // Utente non trovato nella lista
-        message.setReply(Replies.UNKNOWN_ERROR);
+        else // Utente non trovato nella lista, oppure già offline
+            message.setReply(Replies.UNKNOWN_ERROR);
         return message;
     }
 
+    /**
+     * Metodo ausiliario che setta un utente a offline. Le liste degli utenti e
+     * delle chat dell'utente vengono svuotate: nella lista degli utenti
+     * registrati del server, per ogni elemento non si riporta mai la rispettiva
+     * lista degli utenti (per non avere riferimenti circolari in json), e la
+     * lista delle chat è inutile da mantenere. Il metodo è thread safe.
+     * 
+     * @param nickname il nickname dell'utente
+     * @return true se l'utente era online, false se era offline o non è registrato
+     */
+    private static boolean setOffline(String nickname) {
+        User user = usersByNickname.get(nickname);
+        // Solo chi porta l'utente da online a offline ne svuota le liste
+        if (user == null || !user.compareAndSetOnline(true, false))
+            return false;
+        user.setUsersList(new ArrayList<>());
+        user.setChatsList(new ArrayList<>());
+        return true;
+    }
+
     /**
      * Metodo per gestire la richiesta di visualizzare la lista dei progetti: cerca
      * nella lista dei progetti creati tutti i progetti di cui l'utente è membro.
@@ -611,15 +1452,15 @@ public class ServerMain {
     public static ClientServerMessage listProjects(String nickname) {
         ClientServerMessage message = new ClientServerMessage();
         ArrayList<Project> userProjects = new ArrayList<>();
-        // Acquisizione della read lock
-        projectsLock.readLock().lock();
-        // Per ogni progetto creato controllo se l'utente è membro
-        for (Project project : createdProjects) {
-            if (project.getMembers().contains(nickname))
-                userProjects.add(project);
+        // Progetti di cui l'utente è membro, dall'indice inverso dei membri; la read
+        // lock dei progetti evita di trovare un identificativo già riassegnato
+        User user = usersByNickname.get(nickname);
+        if (user != null) {
+            projectsLock.readLock().lock();
+            for (int projectId : user.getProjectIds())
+                userProjects.add(projectsById[projectId]);
+            projectsLock.readLock().unlock();
         }
-        // Rilascio della read lock
-        projectsLock.readLock().unlock();
         message.setReply(Replies.OK);
         message.setProjects(userProjects);
         return message;
@@ -638,8 +1479,15 @@ public class ServerMain {
      */
     public static ClientServerMessage createProject(String nickname, String projectName) {
         ClientServerMessage message = new ClientServerMessage();
-        // Creazione del progetto
-        Project project = new Project(projectName, nickname);
+        // Richiesta senza nome del progetto: l'indice non ammette chiavi null, e la
+        // ricerca fallirebbe con la write lock dei progetti acquisita
+        if (projectName == null) {
+            message.setReply(Replies.UNKNOWN_ERROR);
+            return message;
+        }
+        // Creazione del progetto, con l'utente come primo membro
+        Project project = new Project(projectName);
+        project.addMember(getUserId(nickname));
         // Controllo di disponibilità di indirizzi multicast
         if (!bindChatAddress(project)) {
             message.setReply(Replies.UNABLE_CREATE_PROJECT);
@@ -647,17 +1495,34 @@ public class ServerMain {
         }
         // Se non esiste già un progetto con quel nome lo aggiungo (equals per i
         // progetti ridefinita per nome). Controllo e modifica atomici
+        Replies reply;
         projectsLock.writeLock().lock();
-        if (createdProjects.contains(project)) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.PROJECT_EXISTS);
-        } else {
-            // Aggiorno la lista di tutti i progetti
-            createdProjects.add(project);
-            // Rilascio della write lock
+        try {
+            if (projectsByName.containsKey(projectName))
+                reply = Replies.PROJECT_EXISTS;
+            // Il record va nel journal prima che il progetto sia visibile nell'indice,
+            // e quindi prima di qualsiasi operazione sul progetto
+            else if (!logRecords(List.of(new Journal.Record(Journal.Type.CREATE_PROJECT,
+                    System.currentTimeMillis(), nickname, projectName))))
+                reply = Replies.UNKNOWN_ERROR;
+            else {
+                // Aggiorno la lista di tutti i progetti e gli indici
+                addProjectLocked(project);
+                reply = Replies.OK;
+            }
+        } finally {
+            // Rilascio della write lock (anche se il journal solleva un'eccezione)
             projectsLock.writeLock().unlock();
-            message.setReply(Replies.OK);
+        }
+        message.setReply(reply);
+        if (reply == Replies.UNKNOWN_ERROR) {
+            // L'indirizzo multicast torna tra quelli da riutilizzare
+            try {
+                addressesToBeReallocated.put(project.getMulticastAddress());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        } else if (reply == Replies.OK) {
             // Callback per le liste delle chat
             updateAllChatsLists();
             sendChatMsg(project, nickname + " ha creato il progetto " + projectName);
@@ -666,76 +1531,186 @@ public class ServerMain {
     }
 
     /**
-     * Metodo per gestire la richiesta di aggiunta di un membro a un progetto:
-     * controlla se è possibile effettuare l'operazione verificando che il progetto
-     * esista, che l'utente ne faccia parte, che il nuovo membro sia un utente
-     * registrato e che non sia già membro del progetto. Se è possibile lo aggiunge
-     * ai membri del progetto, il quale si trova nella lista dei progetti creati.
-     * Genera un messaggio di risposta per il client. Il metodo è thread safe.
-     * 
-     * @param nickname      il nickname dell'utente che richiede l'operazione
-     * @param projectName   il nome del progetto a cui aggiungere un nuovo membro
-     * @param nickNewMember il nickname dell'utente da aggiungere al progetto
-     * @return un messaggio di risposta per il client, contenente un valore di
-     *         Replies che notifichi il client sull'esito dell'operazione
+     * Metodo per gestire la richiesta di aggiunta di un membro a un progetto:
+     * controlla se è possibile effettuare l'operazione verificando che il progetto
+     * esista, che l'utente ne faccia parte, che il nuovo membro sia un utente
+     * registrato e che non sia già membro del progetto. Se è possibile lo aggiunge
+     * ai membri del progetto, il quale si trova nella lista dei progetti creati.
+     * Genera un messaggio di risposta per il client. Il metodo è thread safe.
+     * 
+     * @param nickname      il nickname dell'utente che richiede l'operazione
+     * @param projectName   il nome del progetto a cui aggiungere un nuovo membro
+     * @param nickNewMember il nickname dell'utente da aggiungere al progetto
+     * @return un messaggio di risposta per il client, contenente un valore di
+     *         Replies che notifichi il client sull'esito dell'operazione
+     */
+    public static ClientServerMessage addMember(String nickname, String projectName, String nickNewMember) {
+        ClientServerMessage message = new ClientServerMessage();
+        // Richiesta senza nickname del nuovo membro: l'indice degli utenti non ammette
+        // chiavi null, e la ricerca fallirebbe con la write lock del progetto acquisita
+        if (nickNewMember == null) {
+            message.setReply(Replies.NOT_REGISTERED);
+            return message;
+        }
+        // Ricerca del progetto e acquisizione della sua write lock
+        Project project = lockProject(projectName, nickname, true);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
+            message.setReply(Replies.NONEXISTENT_PROJECT);
+            return message;
+        }
+        Replies reply;
+        try {
+            // Aggiunta del nuovo membro al progetto (modificando il progetto nella lista
+            // dei progetti creati)
+            reply = addMemberLocked(project, nickNewMember);
+            if (reply == Replies.OK && !logRecords(List.of(new Journal.Record(Journal.Type.ADD_MEMBER,
+                    System.currentTimeMillis(), projectName, nickNewMember)))) {
+                // Senza il record l'operazione non può essere confermata
+                removeMemberLocked(project, nickNewMember);
+                reply = Replies.UNKNOWN_ERROR;
+            }
+        } finally {
+            // Rilascio della write lock del progetto
+            project.getLock().writeLock().unlock();
+        }
+        message.setReply(reply);
+        if (reply == Replies.OK) {
+            // Callback per le liste delle chat
+            updateAllChatsLists();
+            // Messaggio sulla chat del progetto che notifica l'aggiunta del nuovo membro
+            sendChatMsg(project, nickname + " ha aggiunto un nuovo membro: " + nickNewMember);
+        }
+        return message;
+    }
+
+    /**
+     * Metodo ausiliario che aggiunge un membro a un progetto, dopo aver controllato
+     * che il nuovo membro sia un utente registrato e che non sia già membro del
+     * progetto. Va chiamato con la write lock del progetto acquisita, dopo aver
+     * verificato che l'utente che richiede l'operazione sia membro del progetto.
+     *
+     * @param project       il progetto a cui aggiungere il membro
+     * @param nickNewMember il nickname dell'utente da aggiungere al progetto
+     * @return un valore di Replies che rappresenta l'esito dell'operazione
+     */
+    private static Replies addMemberLocked(Project project, String nickNewMember) {
+        // Controllo che il nuovo membro sia un utente registrato
+        User newMember = usersByNickname.get(nickNewMember);
+        if (newMember == null)
+            return Replies.NOT_REGISTERED;
+        // Aggiunta del nuovo membro al progetto (se non è già membro) e all'indice
+        // inverso dei membri
+        if (!project.addMember(newMember.getId()))
+            return Replies.ALREADY_MEMBER;
+        newMember.addProject(project.getId());
+        return Replies.OK;
+    }
+
+    /**
+     * Metodo ausiliario che cerca un progetto nell'indice e ne acquisisce la lock,
+     * in lettura o in scrittura. Se il progetto viene cancellato tra la ricerca e
+     * l'acquisizione della lock viene trattato come inesistente, così come se
+     * l'utente non ne è membro. Il metodo è thread safe.
+     *
+     * @param projectName il nome del progetto
+     * @param nickname    il nickname dell'utente che richiede l'operazione
+     * @param write       true per acquisire la write lock, false per la read lock
+     * @return il progetto, con la lock acquisita, oppure null (senza nessuna lock
+     *         acquisita) se il progetto non esiste o l'utente non ne è membro
+     */
+    private static Project lockProject(String projectName, String nickname, boolean write) {
+        // Richiesta senza nome del progetto (l'indice non ammette chiavi null)
+        if (projectName == null)
+            return null;
+        Project project = projectsByName.get(projectName);
+        int userId = getUserId(nickname);
+        if (project == null || userId == -1)
+            return null;
+        Lock lock = write ? project.getLock().writeLock() : project.getLock().readLock();
+        lock.lock();
+        if (project.isDeleted() || !project.isMember(userId)) {
+            lock.unlock();
+            return null;
+        }
+        return project;
+    }
+
+    /**
+     * Metodo ausiliario che cerca un progetto nell'indice e ne restituisce lo
+     * snapshot dell'ultima versione, senza acquisire lock. Come per lockProject,
+     * un progetto cancellato viene trattato come inesistente, così come se
+     * l'utente non ne è membro. Il metodo è thread safe.
+     *
+     * @param projectName il nome del progetto
+     * @param nickname    il nickname dell'utente che richiede l'operazione
+     * @return lo snapshot del progetto, oppure null se il progetto non esiste o
+     *         l'utente non ne è membro
+     */
+    private static ProjectSnapshot snapshotProject(String projectName, String nickname) {
+        // Richiesta senza nome del progetto (l'indice non ammette chiavi null)
+        if (projectName == null)
+            return null;
+        Project project = projectsByName.get(projectName);
+        int userId = getUserId(nickname);
+        if (project == null || userId == -1)
+            return null;
+        ProjectSnapshot snapshot = project.getSnapshot();
+        if (snapshot.isDeleted() || !snapshot.isMember(userId))
+            return null;
+        return snapshot;
+    }
+
+    /**
+     * Metodo ausiliario che rimuove un membro da un progetto e dall'indice inverso
+     * dei membri. Va chiamato con la write lock del progetto acquisita.
+     *
+     * @param project  il progetto
+     * @param nickname il nickname del membro da rimuovere
+     */
+    private static void removeMemberLocked(Project project, String nickname) {
+        int userId = getUserId(nickname);
+        project.removeMember(userId);
+        usersById[userId].removeProject(project.getId());
+    }
+
+    /**
+     * Metodo ausiliario che aggiunge un progetto alla lista dei progetti creati,
+     * all'indice per nome e all'indice inverso dei membri, assegnandogli il primo
+     * identificativo libero. Va chiamato con la write lock dei progetti acquisita.
+     *
+     * @param project il progetto da aggiungere
+     */
+    private static void addProjectLocked(Project project) {
+        int projectId = usedProjectIds.nextClearBit(0);
+        usedProjectIds.set(projectId);
+        if (projectId == projectsById.length)
+            projectsById = Arrays.copyOf(projectsById, projectId * 2);
+        projectsById[projectId] = project;
+        project.setId(projectId);
+        createdProjects.add(project);
+        projectsByName.put(project.getName(), project);
+        for (int userId : project.getMemberIds())
+            usersById[userId].addProject(projectId);
+    }
+
+    /**
+     * Metodo ausiliario che rimuove un progetto dalla lista dei progetti creati e
+     * dagli indici, liberandone l'identificativo. Va chiamato con la write lock
+     * dei progetti acquisita.
+     *
+     * @param project il progetto da rimuovere
      */
-    public static ClientServerMessage addMember(String nickname, String projectName, String nickNewMember) {
-        ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della write lock dei progetti
-        projectsLock.writeLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della write lock dei progetti
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della write lock dei progetti
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Acquisizione della read lock degli utenti
-        usersLock.readLock().lock();
-        // Indice del nuovo membro del progetto nella lista degli utenti registrati
-        int newMemberIndex = registeredUsers.indexOf(new User(nickNewMember, null));
-        // Controllo che il nuovo membro sia un utente registrato
-        if (newMemberIndex == -1) {
-            // Rilascio della read lock degli utenti
-            usersLock.readLock().unlock();
-            // Rilascio della write lock dei progetti
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NOT_REGISTERED);
-            return message;
-        }
-        // Rilascio della read lock degli utenti
-        usersLock.readLock().unlock();
-        // Controllo che l'utente da aggiungere non sia già membro del progetto
-        if (project.getMembers().contains(nickNewMember)) {
-            // Rilascio della write lock dei progetti
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.ALREADY_MEMBER);
-            return message;
-        }
-        // Aggiunta del nuovo membro al progetto (modificando il progetto nella lista
-        // dei progetti creati)
-        project.getMembers().add(nickNewMember);
-        // Rilascio della write lock dei progetti
-        projectsLock.writeLock().unlock();
-        // Ok
-        message.setReply(Replies.OK);
-        // Callback per le liste delle chat
-        updateAllChatsLists();
-        // Messaggio sulla chat del progetto che notifica l'aggiunta del nuovo membro
-        sendChatMsg(project, nickname + " ha aggiunto un nuovo membro: " + nickNewMember);
-        return message;
+    private static void removeProjectLocked(Project project) {
+        // Il prossimo snapshot incrementale deve cancellare il progetto
+        deletedProjects.add(project.getName());
+        createdProjects.remove(project);
+        projectsByName.remove(project.getName());
+        for (int userId : project.getMemberIds())
+            usersById[userId].removeProject(project.getId());
+        projectsById[project.getId()] = null;
+        usedProjectIds.clear(project.getId());
     }
 
     /**
@@ -753,31 +1728,17 @@ public class ServerMain {
      */
     public static ClientServerMessage showMembers(String nickname, String projectName) {
         ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della read lock
-        projectsLock.readLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
+        // Snapshot dell'ultima versione del progetto, letto senza lock
+        ProjectSnapshot project = snapshotProject(projectName, nickname);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
             message.setReply(Replies.NONEXISTENT_PROJECT);
             return message;
         }
-        // Aggiungo la lista dei membri del progetto al messaggio
+        // Aggiungo la lista dei membri del progetto al messaggio (immutabile, come
+        // tutto lo snapshot)
         message.setMembers(project.getMembers());
-        // Rilascio della read lock
-        projectsLock.readLock().unlock();
         // Ok
         message.setReply(Replies.OK);
         return message;
@@ -798,39 +1759,18 @@ public class ServerMain {
      */
     public static ClientServerMessage showCards(String nickname, String projectName) {
         ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della read lock
-        projectsLock.readLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
+        // Snapshot dell'ultima versione del progetto, letto senza lock
+        ProjectSnapshot project = snapshotProject(projectName, nickname);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
             message.setReply(Replies.NONEXISTENT_PROJECT);
             return message;
         }
-        // Lista di carte del progetto
-        ArrayList<String> cardNames = new ArrayList<>();
-        // Metto in lista tutte le carte del progetto
-        for (Card card : project.getAllCards()) {
-            cardNames.add(card.getName());
-        }
-        // Rilascio della read lock
-        projectsLock.readLock().unlock();
         // Ok
         message.setReply(Replies.OK);
-        // Aggiungo la lista di carte al messaggio
-        message.setCards(cardNames);
+        // Aggiungo la lista dei nomi delle carte al messaggio
+        message.setCards(project.getCardNames());
         return message;
     }
 
@@ -850,44 +1790,60 @@ public class ServerMain {
      */
     public static ClientServerMessage showCard(String nickname, String projectName, String cardName) {
         ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della read lock
-        projectsLock.readLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
+        // Snapshot dell'ultima versione del progetto, letto senza lock
+        ProjectSnapshot project = snapshotProject(projectName, nickname);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
             message.setReply(Replies.NONEXISTENT_PROJECT);
             return message;
         }
-        int cardIndex = project.getAllCards().indexOf(new Card(cardName, null));
+        // Copia immutabile della carta
+        Card card = project.getCard(cardName);
         // Controllo dell'appartenenza della carta al progetto
-        if (cardIndex == -1) {
-            // Rilascio della read lock
-            projectsLock.readLock().unlock();
+        if (card == null) {
             message.setReply(Replies.NONEXISTENT_CARD);
             return message;
         }
         // Includo la carta nel messaggio
-        message.setCard(project.getAllCards().get(cardIndex));
-        // Rilascio della read lock
-        projectsLock.readLock().unlock();
+        message.setCard(card);
         // Ok
         message.setReply(Replies.OK);
         return message;
     }
 
+    /**
+     * Metodo per gestire la richiesta di visualizzare il riepilogo di un progetto:
+     * controlla se è possibile effettuare l'operazione verificando che il progetto
+     * esista e che l'utente ne faccia parte. Genera un messaggio di risposta per il
+     * client. Include infine nel messaggio il numero di carte di ogni lista, letto
+     * dal riepilogo del progetto senza lock e senza scorrere le carte. Il metodo è
+     * thread safe.
+     * 
+     * @param nickname    il nome con cui l'utente si è registrato
+     * @param projectName il nome del progetto
+     * @return un messaggio di risposta per il client, contenente un valore di
+     *         Replies che notifichi il client sull'esito dell'operazione e, nel
+     *         caso sia positivo, il numero di carte in ogni lista del progetto
+     */
+    public static ClientServerMessage showSummary(String nickname, String projectName) {
+        ClientServerMessage message = new ClientServerMessage();
+        // Riepilogo dell'ultima versione del progetto, letto senza lock: a differenza dello
+        // snapshot non viene ricostruito dopo ogni modifica
+        Project project = projectName == null ? null : projectsByName.get(projectName);
+        ProjectSummary summary = project == null ? null : project.getSummary();
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (summary == null || summary.isDeleted() || !summary.isMember(getUserId(nickname))) {
+            message.setReply(Replies.NONEXISTENT_PROJECT);
+            return message;
+        }
+        // Ok: numero di carte di ogni lista, nell'ordine di CardList
+        message.setReply(Replies.OK);
+        message.setCardCounts(summary.getCardCounts());
+        return message;
+    }
+
     /**
      * Metodo per gestire la richiesta di aggiungere una carta ad un progetto:
      * controlla se è possibile effettuare l'operazione verificando che il progetto
@@ -906,51 +1862,61 @@ public class ServerMain {
     public static ClientServerMessage addCard(String nickname, String projectName, String cardName,
             String description) {
         ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della write lock
-        projectsLock.writeLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
+        // Richiesta senza nome della carta (la descrizione invece può mancare)
+        if (cardName == null) {
+            message.setReply(Replies.UNKNOWN_ERROR);
             return message;
         }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
+        // Ricerca del progetto e acquisizione della sua write lock
+        Project project = lockProject(projectName, nickname, true);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
             message.setReply(Replies.NONEXISTENT_PROJECT);
             return message;
         }
-        // Creazione della carta
-        Card card = new Card(cardName, description);
-        // Controllo se esiste già una carta con lo stesso nome del progetto (ridefinito
-        // equals per uguaglianza in
-        // base al nome)
-        if (project.getAllCards().contains(card)) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.CARD_EXISTS);
-            return message;
+        Replies reply;
+        try {
+            // Aggiunta della carta al progetto
+            long time = System.currentTimeMillis();
+            reply = addCardLocked(project, cardName, description, time);
+            if (reply == Replies.OK && !logRecords(
+                    List.of(new Journal.Record(Journal.Type.ADD_CARD, time, projectName, cardName, description)))) {
+                // Senza il record l'operazione non può essere confermata
+                project.removeCard(project.getCard(cardName));
+                reply = Replies.UNKNOWN_ERROR;
+            }
+        } finally {
+            // Rilascio della write lock del progetto
+            project.getLock().writeLock().unlock();
         }
-        // Aggiungo la carta al progetto (sia nella lista delle carte totali, sia nella
-        // lista TODO)
-        project.getAllCards().add(card);
-        project.getToDo().add(card);
-        // Rilascio della write lock
-        projectsLock.writeLock().unlock();
-        // Ok
-        message.setReply(Replies.OK);
+        message.setReply(reply);
         // Manda una notifica per gli utenti sulla chat del progetto
-        sendChatMsg(project, nickname + " ha aggiunto la carta " + cardName);
+        if (reply == Replies.OK)
+            sendChatMsg(project, nickname + " ha aggiunto la carta " + cardName);
         return message;
     }
 
+    /**
+     * Metodo ausiliario che aggiunge una carta alla lista TODO di un progetto, dopo
+     * aver controllato che non esista già una carta con lo stesso nome. Va chiamato
+     * con la write lock del progetto acquisita, dopo aver verificato che l'utente
+     * che richiede l'operazione sia membro del progetto.
+     *
+     * @param project     il progetto a cui aggiungere la carta
+     * @param cardName    il nome della carta
+     * @param description la descrizione della carta
+     * @param time        l'istante di creazione della carta, in millisecondi
+     * @return un valore di Replies che rappresenta l'esito dell'operazione
+     */
+    private static Replies addCardLocked(Project project, String cardName, String description, long time) {
+        // Aggiungo la carta al progetto (nella lista TODO), se non esiste già una
+        // carta con lo stesso nome
+        if (!project.addCard(new Card(cardName, description, time)))
+            return Replies.CARD_EXISTS;
+        return Replies.OK;
+    }
+
     /**
      * Metodo per gestire la richiesta di spostamento di una carta da una lista a
      * un'altra all'interno del progetto: controlla se è possibile effettuare
@@ -973,102 +1939,120 @@ public class ServerMain {
     public static ClientServerMessage moveCard(String nickname, String projectName, String cardName, String sourceList,
             String destList) {
         ClientServerMessage message = new ClientServerMessage();
+        // Richiesta senza una delle due liste
+        if (sourceList == null || destList == null) {
+            message.setReply(Replies.NONEXISTENT_LIST);
+            return message;
+        }
         // Prendo entrambi i nomi delle liste maiuscoli
         String sourceListName = sourceList.toUpperCase();
         String destListName = destList.toUpperCase();
-        // Controllo di esistenza delle due liste
-        if (isNotList(sourceListName) || isNotList(destListName)) {
-            message.setReply(Replies.NONEXISTENT_LIST);
+        // Controllo dei nomi delle liste e dei vincoli sullo spostamento
+        Replies moveCheck = checkMove(sourceListName, destListName);
+        if (moveCheck != null) {
+            message.setReply(moveCheck);
             return message;
         }
-        // Controllo che lista di partenza e di destinazione non siano uguali
-        if (sourceListName.equals(destListName)) {
-            message.setReply(Replies.CARD_EXISTS);
+        // Ricerca del progetto e acquisizione della sua write lock
+        Project project = lockProject(projectName, nickname, true);
+        // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+        // ha richiesto l'operazione
+        if (project == null) {
+            message.setReply(Replies.NONEXISTENT_PROJECT);
             return message;
         }
+        Replies reply;
+        try {
+            // Spostamento della carta
+            long time = System.currentTimeMillis();
+            reply = moveCardLocked(project, cardName, sourceListName, destListName, time);
+            if (reply == Replies.OK && !logRecords(
+                    List.of(new Journal.Record(Journal.Type.MOVE_CARD, time, projectName, cardName, destListName)))) {
+                // Senza il record l'operazione non può essere confermata
+                project.revertMove(project.getCard(cardName));
+                reply = Replies.UNKNOWN_ERROR;
+            }
+        } finally {
+            // Rilascio della write lock del progetto
+            project.getLock().writeLock().unlock();
+        }
+        message.setReply(reply);
+        // Notifica dello spostamento agli altri utenti, con un messaggio sulla chat
+        if (reply == Replies.OK)
+            sendChatMsg(project, nickname + " ha spostato la carta " + cardName + " dalla lista " + sourceListName
+                    + " alla lista " + destListName + ".");
+        return message;
+    }
+
+    /**
+     * Metodo ausiliario che controlla, prima di acquisire le lock, che uno
+     * spostamento di una carta sia valido: le due liste devono esistere, devono
+     * essere diverse e devono essere rispettati i vincoli sugli spostamenti.
+     *
+     * @param sourceListName il nome maiuscolo della lista di partenza
+     * @param destListName   il nome maiuscolo della lista di destinazione
+     * @return null se lo spostamento è valido, altrimenti il valore di Replies
+     *         che rappresenta l'errore
+     */
+    private static Replies checkMove(String sourceListName, String destListName) {
+        // Controllo di esistenza delle due liste
+        if (isNotList(sourceListName) || isNotList(destListName))
+            return Replies.NONEXISTENT_LIST;
+        // Controllo che lista di partenza e di destinazione non siano uguali
+        if (sourceListName.equals(destListName))
+            return Replies.CARD_EXISTS;
         // Controllo che siano rispettati i vincoli sullo spostamento
         switch (destListName) {
             case "TODO" -> {
                 // Nessuna carta può essere spostata in TODO
-                message.setReply(Replies.MOVE_FORBIDDEN);
-                return message;
+                return Replies.MOVE_FORBIDDEN;
             }
             case "INPROGRESS" -> {
                 // Controllo che non venga spostata in INPROGRESS da DONE (vietato)
-                if (sourceListName.equals("DONE")) {
-                    message.setReply(Replies.MOVE_FORBIDDEN);
-                    return message;
-                }
+                if (sourceListName.equals("DONE"))
+                    return Replies.MOVE_FORBIDDEN;
             }
             case "TOBEREVISED" -> {
                 // Controllo che venga spostata in TOBEREVISED da INPROGRESS (unica lista di
                 // partenza permessa)
-                if (!sourceListName.equals("INPROGRESS")) {
-                    message.setReply(Replies.MOVE_FORBIDDEN);
-                    return message;
-                }
+                if (!sourceListName.equals("INPROGRESS"))
+                    return Replies.MOVE_FORBIDDEN;
             }
             case "DONE" -> {
                 // Controllo che non venga spostata in DONE direttamente da TODO (vietato)
-                if (sourceListName.equals("TODO")) {
-                    message.setReply(Replies.MOVE_FORBIDDEN);
-                    return message;
-                }
+                if (sourceListName.equals("TODO"))
+                    return Replies.MOVE_FORBIDDEN;
             }
             default -> {
             }
         }
-        // Acquisizione della write lock
-        projectsLock.writeLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento alla lista di partenza
-        ArrayList<Card> sList = getList(sourceListName, projectIndex);
-        // Riferimento alla lista di destinazione
-        ArrayList<Card> dList = getList(destListName, projectIndex);
-        // Indice della carta nella lista di partenza
-        int cardIndex = sList.indexOf(new Card(cardName, null));
+        return null;
+    }
+
+    /**
+     * Metodo ausiliario che sposta una carta tra due liste di un progetto, dopo
+     * aver controllato che la carta sia effettivamente nella lista di partenza. Va
+     * chiamato con la write lock del progetto acquisita, dopo aver verificato con
+     * checkMove() che lo spostamento sia valido e che l'utente che richiede
+     * l'operazione sia membro del progetto.
+     *
+     * @param project        il progetto in cui si trova la carta
+     * @param cardName       il nome della carta
+     * @param sourceListName il nome maiuscolo della lista di partenza
+     * @param destListName   il nome maiuscolo della lista di destinazione
+     * @param time           l'istante dello spostamento, in millisecondi
+     * @return un valore di Replies che rappresenta l'esito dell'operazione
+     */
+    private static Replies moveCardLocked(Project project, String cardName, String sourceListName,
+            String destListName, long time) {
+        Card card = project.getCard(cardName);
         // Controllo che la carta da spostare sia effettivamente nella lista di partenza
-        if (cardIndex == -1) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_CARD);
-            return message;
-        }
+        if (card == null || card.getList() != CardList.parse(sourceListName))
+            return Replies.NONEXISTENT_CARD;
         // Spostamento della carta da sourceList a destList, e aggiornamento della sua
         // storia
-        Card card = sList.remove(cardIndex);
-        card.updateHistory(destListName);
-        dList.add(card);
-        // Indice della carta nella lista di tutte le carte del progetto
-        int cardIndex2 = project.getAllCards().indexOf(card);
-        // Aggiornamento della carta nella lista di tutte le carte del progetto
-        project.getAllCards().set(cardIndex2, card);
-        // Rilascio della write lock
-        projectsLock.writeLock().unlock();
-        // Ok
-        message.setReply(Replies.OK);
-        // Notifica dello spostamento agli altri utenti, con un messaggio sulla chat
-        sendChatMsg(project, nickname + " ha spostato la carta " + cardName + " dalla lista " + sourceListName
-                + " alla lista " + destListName + ".");
-        return message;
+        project.moveCard(card, CardList.parse(destListName), time);
+        return Replies.OK;
     }
 
     /**
@@ -1088,24 +2072,187 @@ public class ServerMain {
     }
 
     /**
-     * Metodo ausiliario: dato il nome maiuscolo di una lista di un progetto, e dato
-     * l'indice del progetto nella lista dei progetti creati del server, restituisce
-     * il riferimento alla lista del progetto in questione.
-     * 
-     * @param listName     nome della lista maiuscolo
-     * @param projectIndex indice del progetto nella lista dei progetti del server
-     * @return il riferimento alla lista del progetto, oppure null se non esiste
+     * Metodo per gestire una richiesta BATCH, ovvero una lista di sotto-comandi
+     * (ADD_MEMBER, ADD_CARD, MOVE_CARD) inviati in un unico messaggio. I
+     * sotto-comandi vengono raggruppati per progetto, e quelli di ogni progetto
+     * vengono eseguiti, nell'ordine in cui sono stati inviati, con un'unica
+     * acquisizione della write lock del progetto. Le notifiche sulle chat e le
+     * callback vengono inviate dopo il rilascio della lock. In modalità
+     * all-or-nothing (possibile solo se tutti i sotto-comandi riguardano lo
+     * stesso progetto) al primo sotto-comando fallito vengono annullati quelli
+     * già eseguiti. Genera un messaggio di risposta per il client. Il metodo è
+     * thread safe.
+     *
+     * @param nickname     il nome con cui l'utente si è registrato
+     * @param commands     i sotto-comandi da eseguire
+     * @param allOrNothing true se i sotto-comandi vanno eseguiti tutti o nessuno
+     * @return un messaggio di risposta per il client, contenente un valore di
+     *         Replies che notifichi il client sull'esito dell'operazione e la
+     *         lista degli esiti dei singoli sotto-comandi, nello stesso ordine
      */
-    private static ArrayList<Card> getList(String listName, int projectIndex) {
-        ArrayList<Card> list;
-        switch (listName) {
-            case "TODO" -> list = createdProjects.get(projectIndex).getToDo();
-            case "INPROGRESS" -> list = createdProjects.get(projectIndex).getInProgress();
-            case "TOBEREVISED" -> list = createdProjects.get(projectIndex).getToBeRevised();
-            case "DONE" -> list = createdProjects.get(projectIndex).getDone();
-            default -> list = null;
+    public static ClientServerMessage batch(String nickname, List<ClientServerMessage> commands,
+            boolean allOrNothing) {
+        ClientServerMessage message = new ClientServerMessage();
+        if (commands == null || commands.isEmpty()) {
+            message.setReply(Replies.OK);
+            message.setBatchReplies(new ArrayList<>());
+            return message;
+        }
+        // Raggruppamento degli indici dei sotto-comandi per progetto, mantenendo l'ordine
+        LinkedHashMap<String, ArrayList<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            ClientServerMessage command = commands.get(i);
+            // Nel batch sono ammessi solo i comandi che modificano un singolo progetto, con
+            // tutti i campi necessari: il controllo va fatto prima di acquisire le lock
+            if (!isValidBatchCommand(command)) {
+                message.setReply(Replies.BATCH_FORBIDDEN);
+                return message;
+            }
+            groups.computeIfAbsent(command.getProjectName(), name -> new ArrayList<>()).add(i);
+        }
+        // Un batch all-or-nothing deve riguardare un solo progetto
+        if (allOrNothing && groups.size() > 1) {
+            message.setReply(Replies.BATCH_FORBIDDEN);
+            return message;
+        }
+        Replies[] replies = new Replies[commands.size()];
+        // Messaggi da inviare sulle chat dei progetti dopo il rilascio della lock
+        ArrayList<Project> chatProjects = new ArrayList<>();
+        ArrayList<String> chatMessages = new ArrayList<>();
+        boolean membersChanged = false;
+        boolean aborted = false;
+        // true se la scrittura del journal è fallita per almeno un progetto
+        boolean failed = false;
+        for (Map.Entry<String, ArrayList<Integer>> group : groups.entrySet()) {
+            // Acquisizione della write lock del progetto, una volta per tutti i suoi sotto-comandi
+            Project project = lockProject(group.getKey(), nickname, true);
+            // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente
+            if (project == null) {
+                for (int i : group.getValue())
+                    replies[i] = Replies.NONEXISTENT_PROJECT;
+                aborted = allOrNothing;
+                continue;
+            }
+            try {
+                // Operazioni per annullare i sotto-comandi eseguiti, in modalità all-or-nothing
+                ArrayList<Runnable> undoLog = new ArrayList<>();
+                // Record del journal dei sotto-comandi eseguiti, scritti insieme alla fine
+                ArrayList<Journal.Record> records = new ArrayList<>();
+                // Messaggi sulle chat già accodati per i progetti precedenti
+                int chatMessagesBefore = chatMessages.size();
+                for (int i : group.getValue()) {
+                    ClientServerMessage command = commands.get(i);
+                    long time = System.currentTimeMillis();
+                    switch (command.getComando()) {
+                        case ADD_MEMBER -> {
+                            String newMember = command.getNewMember();
+                            replies[i] = addMemberLocked(project, newMember);
+                            if (replies[i] == Replies.OK) {
+                                undoLog.add(() -> removeMemberLocked(project, newMember));
+                                records.add(new Journal.Record(Journal.Type.ADD_MEMBER, time, group.getKey(),
+                                        newMember));
+                                chatProjects.add(project);
+                                chatMessages.add(nickname + " ha aggiunto un nuovo membro: " + newMember);
+                            }
+                        }
+                        case ADD_CARD -> {
+                            String cardName = command.getCardName();
+                            replies[i] = addCardLocked(project, cardName, command.getDescrizione(), time);
+                            if (replies[i] == Replies.OK) {
+                                Card card = project.getCard(cardName);
+                                undoLog.add(() -> project.removeCard(card));
+                                records.add(new Journal.Record(Journal.Type.ADD_CARD, time, group.getKey(), cardName,
+                                        command.getDescrizione()));
+                                chatProjects.add(project);
+                                chatMessages.add(nickname + " ha aggiunto la carta " + cardName);
+                            }
+                        }
+                        default -> {
+                            String cardName = command.getCardName();
+                            String sourceListName = command.getListaPartenza().toUpperCase();
+                            String destListName = command.getListaDestinazione().toUpperCase();
+                            replies[i] = checkMove(sourceListName, destListName);
+                            if (replies[i] == null)
+                                replies[i] = moveCardLocked(project, cardName, sourceListName, destListName, time);
+                            if (replies[i] == Replies.OK) {
+                                Card card = project.getCard(cardName);
+                                undoLog.add(() -> project.revertMove(card));
+                                records.add(new Journal.Record(Journal.Type.MOVE_CARD, time, group.getKey(), cardName,
+                                        destListName));
+                                chatProjects.add(project);
+                                chatMessages.add(nickname + " ha spostato la carta " + cardName + " dalla lista "
+                                        + sourceListName + " alla lista " + destListName + ".");
+                            }
+                        }
+                    }
+                    // In modalità all-or-nothing il primo errore annulla tutto il batch
+                    if (allOrNothing && replies[i] != Replies.OK) {
+                        aborted = true;
+                        break;
+                    }
+                    if (command.getComando() == Commands.ADD_MEMBER && replies[i] == Replies.OK)
+                        membersChanged = true;
+                }
+                if (aborted) {
+                    // Annullamento dei sotto-comandi eseguiti, in ordine inverso
+                    for (int j = undoLog.size() - 1; j >= 0; j--)
+                        undoLog.get(j).run();
+                    chatProjects.clear();
+                    chatMessages.clear();
+                    membersChanged = false;
+                } else if (!logRecords(records)) {
+                    // Record dei sotto-comandi eseguiti sul progetto, con una sola append: se
+                    // la scrittura fallisce i sotto-comandi vengono annullati
+                    for (int j = undoLog.size() - 1; j >= 0; j--)
+                        undoLog.get(j).run();
+                    for (int i : group.getValue()) {
+                        if (replies[i] == Replies.OK)
+                            replies[i] = Replies.UNKNOWN_ERROR;
+                    }
+                    chatProjects.subList(chatMessagesBefore, chatProjects.size()).clear();
+                    chatMessages.subList(chatMessagesBefore, chatMessages.size()).clear();
+                    failed = true;
+                }
+            } finally {
+                // Rilascio della write lock del progetto, anche in caso di eccezioni
+                project.getLock().writeLock().unlock();
+            }
+        }
+        ArrayList<Replies> batchReplies = new ArrayList<>();
+        for (Replies reply : replies) {
+            // I sotto-comandi annullati o non eseguiti vengono segnalati come tali
+            batchReplies.add(aborted && (reply == null || reply == Replies.OK) ? Replies.BATCH_ABORTED : reply);
         }
-        return list;
+        message.setBatchReplies(batchReplies);
+        message.setReply(failed ? Replies.UNKNOWN_ERROR : aborted ? Replies.BATCH_ABORTED : Replies.OK);
+        // Callback per le liste delle chat, una sola volta per tutto il batch
+        if (membersChanged)
+            updateAllChatsLists();
+        // Notifiche sulle chat dei progetti
+        for (int i = 0; i < chatMessages.size(); i++)
+            sendChatMsg(chatProjects.get(i), chatMessages.get(i));
+        return message;
+    }
+
+    /**
+     * Metodo ausiliario che controlla un sotto-comando di un batch: deve essere
+     * ADD_MEMBER, ADD_CARD o MOVE_CARD, con i campi necessari (la descrizione di
+     * una carta può mancare, il nome del progetto viene controllato durante
+     * l'esecuzione).
+     *
+     * @param command il sotto-comando
+     * @return true se il sotto-comando può essere eseguito
+     */
+    private static boolean isValidBatchCommand(ClientServerMessage command) {
+        if (command == null || command.getComando() == null)
+            return false;
+        return switch (command.getComando()) {
+            case ADD_MEMBER -> command.getNewMember() != null;
+            case ADD_CARD -> command.getCardName() != null;
+            case MOVE_CARD -> command.getCardName() != null && command.getListaPartenza() != null
+                    && command.getListaDestinazione() != null;
+            default -> false;
+        };
     }
 
     /**
@@ -1123,47 +2270,45 @@ public class ServerMain {
      */
     public static ClientServerMessage cancelProject(String nickname, String projectName) {
         ClientServerMessage message = new ClientServerMessage();
-        // Acquisizione della write lock
+        // Acquisizione della write lock dei progetti, necessaria per rimuovere il progetto
+        String chatAddress;
         projectsLock.writeLock().lock();
-        // Indice del progetto nella lista dei progetti creati del server
-        int projectIndex = createdProjects.indexOf(new Project(projectName, null));
-        // Controllo dell'esistenza del progetto
-        if (projectIndex == -1) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Riferimento al progetto
-        Project project = createdProjects.get(projectIndex);
-        // Controllo dell'appartenenza al progetto dell'utente che ha richiesto
-        // l'operazione
-        if (!project.getMembers().contains(nickname)) {
-            // Rilascio della write lock
-            projectsLock.writeLock().unlock();
-            message.setReply(Replies.NONEXISTENT_PROJECT);
-            return message;
-        }
-        // Controllo che tutte le carte siano nella lista DONE
-        boolean ok = true;
-        for (Card card : project.getAllCards()) {
-            if (!card.getLocation().equals("DONE")) {
-                ok = false;
-                break;
+        try {
+            // Ricerca del progetto e acquisizione della sua write lock (dopo quella dei progetti)
+            Project project = lockProject(projectName, nickname, true);
+            // Controllo dell'esistenza del progetto e dell'appartenenza al progetto dell'utente che
+            // ha richiesto l'operazione
+            if (project == null) {
+                message.setReply(Replies.NONEXISTENT_PROJECT);
+                return message;
             }
-        }
-        if (!ok) {
-            // Rilascio della write lock
+            try {
+                // Controllo che tutte le carte siano nella lista DONE (confronto tra contatori)
+                if (!project.isAllDone()) {
+                    message.setReply(Replies.CANCEL_FORBIDDEN);
+                    return message;
+                }
+                // Il record va nel journal prima della cancellazione: se la scrittura fallisce
+                // il progetto resta com'è
+                if (!logRecords(List.of(new Journal.Record(Journal.Type.CANCEL_PROJECT, System.currentTimeMillis(),
+                        projectName)))) {
+                    message.setReply(Replies.UNKNOWN_ERROR);
+                    return message;
+                }
+                // Indirizzo multicast della chat del progetto
+                chatAddress = project.getMulticastAddress();
+                // Cancellazione del progetto dalla lista e dagli indici; chi lo ha già trovato
+                // nell'indice lo vedrà cancellato quando ne acquisisce la lock
+                removeProjectLocked(project);
+                project.setDeleted(true);
+            } finally {
+                // Rilascio della write lock del progetto
+                project.getLock().writeLock().unlock();
+            }
+        } finally {
+            // Rilascio della write lock dei progetti (sempre dopo quella del progetto)
             projectsLock.writeLock().unlock();
-            message.setReply(Replies.CANCEL_FORBIDDEN);
-            return message;
         }
-        // Indirizzo multicast della chat del progetto
-        String chatAddress = project.getMulticastAddress();
-        // Cancellazione del progetto
-        createdProjects.remove(project);
-        // Rilascio della write lock
-        projectsLock.writeLock().unlock();
         // Aggiungo l'indirizzo multicast del progetto cancellato alla lista degli
         // indirizzi da riutilizzare
         try {
@@ -1230,30 +2375,124 @@ public class ServerMain {
     public static void removeStub(NotifyEventInterface clientStub) {
         callbackLock.writeLock().lock();
         clientsRegisteredForCallback.remove(clientStub);
+        callbackStubs.values().remove(clientStub);
+        callbackLock.writeLock().unlock();
+    }
+
+    /**
+     * Associa lo stub di un client all'utente che ha fatto la login. Il metodo è
+     * thread safe.
+     * 
+     * @param nickname   il nickname dell'utente
+     * @param clientStub lo stub dell'oggetto remoto del client
+     */
+    public static void bindStub(String nickname, NotifyEventInterface clientStub) {
+        callbackLock.writeLock().lock();
+        callbackStubs.put(nickname, clientStub);
         callbackLock.writeLock().unlock();
     }
 
+    /**
+     * Metodo per gestire la chiusura della connessione di un utente che non ha
+     * fatto la logout (il client è terminato, la connessione è caduta o è
+     * rimasta inattiva troppo a lungo): l'utente viene messo offline come con una
+     * logout, lo stub del suo client viene cancellato dal servizio di callback e
+     * gli altri utenti ricevono la lista degli utenti aggiornata. Il metodo è
+     * thread safe, ma non va chiamato dal thread di un reactor perché esegue le
+     * callback.
+     * 
+     * @param nickname il nickname dell'utente
+     */
+    public static void disconnect(String nickname) {
+        // Stesso stato che avrebbe dopo una logout
+        boolean wasOnline = setOffline(nickname);
+        // Cancellazione dello stub dal servizio di callback
+        callbackLock.writeLock().lock();
+        NotifyEventInterface clientStub = callbackStubs.remove(nickname);
+        if (clientStub != null)
+            clientsRegisteredForCallback.remove(clientStub);
+        callbackLock.writeLock().unlock();
+        if (wasOnline) {
+            System.out.println("Server: connessione di " + nickname + " chiusa senza logout, utente disconnesso");
+            // Gli altri utenti vedono l'utente offline
+            updateAllUsersLists();
+        }
+    }
+
 
     /**
      * Metodo utilizzato dall'oggetto remoto nella fase di registrazione. Controlla
-     * se l'utente si trova nella lista degli utenti registrati, e in caso contrario
-     * lo aggiunge. Il metodo è thread safe.
+     * se l'utente si trova nell'indice degli utenti registrati, e in caso contrario
+     * lo aggiunge all'indice e alla lista. Il metodo è thread safe.
      * 
      * @param user l'oggetto di tipo User relativo all'utente da registrare
-     * @return true se era già registrato, false se lo ha registrato adesso
+     * @return ALREADY_REGISTERED se era già registrato, OK se lo ha registrato
+     *         adesso, UNKNOWN_ERROR se la scrittura del journal è fallita (e
+     *         quindi l'utente non è stato registrato)
      */
-    public static boolean putIfAbsent(User user) {
-        boolean contains = true;
-        // Acquisizione della write lock degli utenti
+    public static Replies putIfAbsent(User user) {
+        Replies reply = Replies.OK;
+        // Acquisizione della write lock degli utenti: controllo e registrazione atomici
         usersLock.writeLock().lock();
-        // Se non è già registrato lo aggiunge alla lista
-        if (!registeredUsers.contains(user)) {
-            contains = false;
-            registeredUsers.add(user);
+        try {
+            // Se è già nell'indice l'utente è già registrato
+            if (usersByNickname.containsKey(user.getNickname()))
+                reply = Replies.ALREADY_REGISTERED;
+            // Il record va nel journal prima che l'utente sia visibile nell'indice, e
+            // quindi prima di qualsiasi operazione che lo riguarda
+            else if (!logRecords(List.of(new Journal.Record(Journal.Type.REGISTER, System.currentTimeMillis(),
+                    user.getNickname(), user.getPassword()))))
+                reply = Replies.UNKNOWN_ERROR;
+            else
+                registerUserLocked(user);
+        } finally {
+            // Rilascio della write lock degli utenti
+            usersLock.writeLock().unlock();
         }
-        // Rilascio della write lock degli utenti
-        usersLock.writeLock().unlock();
-        return contains;
+        return reply;
+    }
+
+    /**
+     * Metodo ausiliario che assegna un identificativo a un utente e lo aggiunge
+     * alla lista e agli indici degli utenti registrati. Va chiamato con la write
+     * lock degli utenti acquisita.
+     *
+     * @param user l'utente da registrare
+     */
+    private static void registerUserLocked(User user) {
+        int userId = registeredUsers.size();
+        user.setId(userId);
+        registeredUsers.add(user);
+        User[] users = usersById;
+        if (userId == users.length)
+            users = Arrays.copyOf(users, userId * 2);
+        users[userId] = user;
+        // Pubblicazione dell'array (scrittura volatile), poi dell'utente nell'indice
+        usersById = users;
+        usersByNickname.put(user.getNickname(), user);
+    }
+
+    /**
+     * Metodo per ottenere l'identificativo di un utente registrato. Il metodo è
+     * thread safe.
+     * 
+     * @param nickname il nickname dell'utente
+     * @return l'identificativo dell'utente, oppure -1 se non è registrato
+     */
+    public static int getUserId(String nickname) {
+        User user = nickname == null ? null : usersByNickname.get(nickname);
+        return user == null ? -1 : user.getId();
+    }
+
+    /**
+     * Metodo per ottenere il nickname di un utente registrato a partire dal suo
+     * identificativo. Il metodo è thread safe.
+     * 
+     * @param userId l'identificativo dell'utente
+     * @return il nickname dell'utente
+     */
+    public static String getNickname(int userId) {
+        return usersById[userId].getNickname();
     }
 
     /**
@@ -1333,6 +2572,10 @@ public class ServerMain {
      */
     public static void updateAllChatsLists() {
         projectsLock.readLock().lock();
+        // I progetti vengono serializzati durante le chiamate remote: si acquisiscono le
+        // read lock di tutti i progetti, sempre dopo quella dei progetti
+        for (Project project : createdProjects)
+            project.getLock().readLock().lock();
         callbackLock.readLock().lock();
         // Per ogni client iscritto al servizio di callback
         for (NotifyEventInterface client : clientsRegisteredForCallback)
@@ -1343,6 +2586,8 @@ public class ServerMain {
                 e.printStackTrace();
             }
         callbackLock.readLock().unlock();
+        for (Project project : createdProjects)
+            project.getLock().readLock().unlock();
         projectsLock.readLock().unlock();
     }
 
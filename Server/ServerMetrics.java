@@ -0,0 +1,59 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Raccolta delle statistiche del server. Ogni componente registra una sorgente,
+ * ovvero una funzione che restituisce una riga di testo con i propri contatori;
+ * le righe vengono stampate periodicamente da un thread dedicato.
+ */
+public class ServerMetrics {
+
+    /** Le sorgenti registrate, ordinate per nome */
+    private static final Map<String, Supplier<String>> sources = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registra una sorgente di statistiche. Se esiste già una sorgente con lo
+     * stesso nome viene rimpiazzata.
+     *
+     * @param name   il nome della sorgente
+     * @param source la funzione che restituisce le statistiche della sorgente
+     */
+    public static void register(String name, Supplier<String> source) {
+        sources.put(name, source);
+    }
+
+    /**
+     * Metodo per ottenere un resoconto delle statistiche di tutte le sorgenti
+     *
+     * @return una stringa con una riga per ogni sorgente registrata
+     */
+    public static String report() {
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, Supplier<String>> entry : sources.entrySet())
+            str.append(entry.getKey()).append(": ").append(entry.getValue().get()).append("\n");
+        return str.toString();
+    }
+
+    /**
+     * Avvia la stampa periodica delle statistiche. Se l'intervallo è 0 non fa
+     * niente.
+     *
+     * @param intervalSeconds l'intervallo in secondi tra due stampe
+     */
+    public static void start(int intervalSeconds) {
+        if (intervalSeconds == 0)
+            return;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            // Il thread non deve impedire la terminazione del server
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.print(report()), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+}
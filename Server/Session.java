@@ -0,0 +1,50 @@
+import java.security.SecureRandom;
+
+/**
+ * Sessione di un utente che ha fatto la login. La sessione è legata alla
+ * connessione su cui è stata fatta la login: le richieste successive arrivate
+ * sulla stessa connessione vengono eseguite a nome dell'utente della sessione,
+ * senza fidarsi del nickname (o dell'oggetto User) scritto dal client nel
+ * messaggio. L'identificativo viene comunicato al client nella risposta alla
+ * login; il client non è obbligato a rimandarlo, ma se lo fa deve coincidere.
+ */
+public class Session {
+
+    /** Generatore degli identificativi, non prevedibili */
+    private static final SecureRandom random = new SecureRandom();
+
+    /** L'identificativo della sessione */
+    private final long id;
+
+    /** Il nickname dell'utente */
+    private final String nickname;
+
+    /**
+     * Costruttore: crea una nuova sessione con un identificativo casuale
+     *
+     * @param nickname il nickname dell'utente che ha fatto la login
+     */
+    public Session(String nickname) {
+        this.id = random.nextLong();
+        this.nickname = nickname;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public String getNickname() {
+        return this.nickname;
+    }
+
+    /**
+     * Controlla se l'identificativo inviato dal client corrisponde alla sessione
+     *
+     * @param sessionId l'identificativo inviato dal client, oppure null se non
+     *                  lo ha inviato
+     * @return true se il client non ha inviato l'identificativo o se coincide
+     */
+    public boolean matches(Long sessionId) {
+        return sessionId == null || sessionId == this.id;
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * File impacchettato con i progetti di una generazione dello stato, in
+ * alternativa a una directory per progetto con un file per carta: con molte
+ * carte il salvataggio e il ripristino sarebbero dominati dalla creazione,
+ * dall'apertura e dall'elenco dei file.
+ * <p>
+ * Forma del file: un intero magico, poi un blocco per ogni progetto (membri in
+ * JSON, numero di carte, e per ogni carta nome e stato in JSON), poi l'indice
+ * (numero di progetti, e per ognuno nome e posizione del blocco nel file),
+ * infine la posizione dell'indice (long), il CRC32 di tutto quello che precede
+ * (int) e di nuovo l'intero magico. Le stringhe sono scritte come lunghezza
+ * (int) seguita dai bytes UTF-8. Il file viene letto partendo dalla fine.
+ */
+public class StatePack {
+
+    /** Intero magico all'inizio e alla fine del file ("WPK1") */
+    private static final int MAGIC = 0x57504B31;
+
+    /** Dimensione della coda del file (posizione dell'indice, CRC, intero magico) */
+    private static final int TRAILER_SIZE = 16;
+
+    /** Un progetto letto dal file */
+    public static class Entry {
+
+        /** Il nome del progetto */
+        private final String name;
+
+        /** I nickname dei membri, in JSON */
+        private final String members;
+
+        /** Lo stato in JSON di ogni carta, per nome, nell'ordine del file */
+        private final LinkedHashMap<String, String> cards;
+
+        private Entry(String name, String members, LinkedHashMap<String, String> cards) {
+            this.name = name;
+            this.members = members;
+            this.cards = cards;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getMembers() {
+            return this.members;
+        }
+
+        public LinkedHashMap<String, String> getCards() {
+            return this.cards;
+        }
+    }
+
+    /**
+     * Scrittore di un file impacchettato: i progetti vengono aggiunti uno alla
+     * volta, e finish() scrive l'indice e chiude il file.
+     */
+    public static class Writer {
+
+        /** Il file */
+        private final FileOutputStream file;
+
+        /** Lo stream bufferizzato sul file */
+        private final DataOutputStream out;
+
+        /** CRC di tutto quello che è stato scritto */
+        private final CRC32 crc = new CRC32();
+
+        /** Buffer per aggiornare il CRC con gli interi e i long */
+        private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES);
+
+        /** Numero di bytes scritti */
+        private long position;
+
+        /** Posizione del blocco di ogni progetto, per nome */
+        private final LinkedHashMap<String, Long> index = new LinkedHashMap<>();
+
+        /**
+         * Costruttore: crea il file (o lo svuota) e scrive l'intero magico
+         *
+         * @param path il file da scrivere
+         * @throws IOException in caso di errori di I/O
+         */
+        public Writer(Path path) throws IOException {
+            this.file = new FileOutputStream(path.toFile());
+            this.out = new DataOutputStream(new BufferedOutputStream(this.file, 64 * 1024));
+            writeInt(MAGIC);
+        }
+
+        /**
+         * Aggiunge il blocco di un progetto
+         *
+         * @param name    il nome del progetto
+         * @param members i nickname dei membri, in JSON
+         * @param cards   lo stato in JSON delle carte da scrivere, per nome
+         * @throws IOException in caso di errori di I/O
+         */
+        public void addProject(String name, String members, Map<String, String> cards) throws IOException {
+            this.index.put(name, this.position);
+            writeString(members);
+            writeInt(cards.size());
+            for (Map.Entry<String, String> card : cards.entrySet()) {
+                writeString(card.getKey());
+                writeString(card.getValue());
+            }
+        }
+
+        /**
+         * Scrive l'indice e la coda del file, e lo chiude
+         *
+         * @param force true se il file va sincronizzato sul disco prima di chiuderlo
+         * @throws IOException in caso di errori di I/O
+         */
+        public void finish(boolean force) throws IOException {
+            try {
+                long indexPosition = this.position;
+                writeInt(this.index.size());
+                for (Map.Entry<String, Long> project : this.index.entrySet()) {
+                    writeString(project.getKey());
+                    writeLong(project.getValue());
+                }
+                writeLong(indexPosition);
+                // Il CRC comprende anche la posizione dell'indice
+                this.out.writeInt((int) this.crc.getValue());
+                this.out.writeInt(MAGIC);
+                this.out.flush();
+                if (force)
+                    this.file.getChannel().force(true);
+            } finally {
+                this.out.close();
+            }
+        }
+
+        /**
+         * Chiude il file senza completarlo, dopo un errore
+         */
+        public void abort() {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                // Il file incompleto verrà cancellato dal chiamante
+            }
+        }
+
+        /**
+         * Metodo ausiliario che scrive una stringa (lunghezza e bytes UTF-8)
+         *
+         * @param str la stringa
+         * @throws IOException in caso di errori di I/O
+         */
+        private void writeString(String str) throws IOException {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            this.out.write(bytes);
+            this.crc.update(bytes);
+            this.position += bytes.length;
+        }
+
+        /**
+         * Metodo ausiliario che scrive un intero
+         *
+         * @param value l'intero
+         * @throws IOException in caso di errori di I/O
+         */
+        private void writeInt(int value) throws IOException {
+            this.out.writeInt(value);
+            this.crc.update(this.scratch.putInt(0, value).array(), 0, Integer.BYTES);
+            this.position += Integer.BYTES;
+        }
+
+        /**
+         * Metodo ausiliario che scrive un long
+         *
+         * @param value il long
+         * @throws IOException in caso di errori di I/O
+         */
+        private void writeLong(long value) throws IOException {
+            this.out.writeLong(value);
+            this.crc.update(this.scratch.putLong(0, value).array(), 0, Long.BYTES);
+            this.position += Long.BYTES;
+        }
+    }
+
+    /**
+     * Legge un file impacchettato, controllandone il CRC, e ne restituisce i
+     * progetti seguendo l'indice
+     *
+     * @param path il file da leggere
+     * @return i progetti, nell'ordine dell'indice
+     * @throws IOException in caso di errori di I/O, o se il file è incompleto o
+     *                     danneggiato
+     */
+    public static List<Entry> read(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        int trailer = data.limit() - TRAILER_SIZE;
+        if (trailer < Integer.BYTES || data.getInt(0) != MAGIC || data.getInt(trailer + 12) != MAGIC)
+            throw new IOException("File dello stato incompleto: " + path);
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), 0, trailer + 8);
+        if ((int) crc.getValue() != data.getInt(trailer + 8))
+            throw new IOException("File dello stato danneggiato: " + path);
+        ArrayList<Entry> entries = new ArrayList<>();
+        try {
+            // Lettura dell'indice, poi del blocco di ogni progetto
+            data.position((int) data.getLong(trailer));
+            int projects = data.getInt();
+            for (int i = 0; i < projects; i++) {
+                String name = readString(data);
+                long position = data.getLong();
+                ByteBuffer block = data.duplicate().position((int) position);
+                String members = readString(block);
+                int cards = block.getInt();
+                LinkedHashMap<String, String> projectCards = new LinkedHashMap<>();
+                for (int j = 0; j < cards; j++)
+                    projectCards.put(readString(block), readString(block));
+                entries.add(new Entry(name, members, projectCards));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("File dello stato danneggiato: " + path, e);
+        }
+        return entries;
+    }
+
+    /**
+     * Metodo ausiliario che legge una stringa (lunghezza e bytes UTF-8)
+     *
+     * @param data il buffer, posizionato all'inizio della stringa
+     * @return la stringa letta
+     */
+    private static String readString(ByteBuffer data) {
+        int length = data.getInt();
+        String str = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return str;
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel: un array circolare di slot, ognuno dei quali rappresenta
+ * un intervallo di tempo (tick) e contiene gli elementi che scadono in quel
+ * tick (o in un giro successivo della ruota). Inserire un elemento costa O(1) e
+ * a ogni tick viene esaminato solo lo slot corrente, indipendentemente dal numero
+ * totale di elementi. Gli elementi non si cancellano: chi li riceve alla
+ * scadenza controlla se sono ancora validi, ed eventualmente li reinserisce con
+ * una nuova scadenza. La classe non è thread safe: viene usata solo dal thread
+ * di un reactor.
+ *
+ * @param <T> il tipo degli elementi
+ */
+public class TimerWheel<T> {
+
+    /** Elemento della ruota con la sua scadenza */
+    private static class Entry<T> {
+
+        private final T item;
+
+        private final long deadline;
+
+        public Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Gli slot della ruota (il numero di slot è una potenza di 2) */
+    private final ArrayList<Entry<T>>[] slots;
+
+    /** Durata di un tick in millisecondi */
+    private final long tickMillis;
+
+    /** Il prossimo tick da esaminare */
+    private long nextTick;
+
+    /** Numero di elementi nella ruota */
+    private int size;
+
+    /**
+     * Costruttore
+     *
+     * @param slots      il numero di slot (arrotondato alla potenza di 2 successiva)
+     * @param tickMillis la durata di un tick in millisecondi
+     * @param nowMillis  l'istante attuale in millisecondi
+     */
+    public TimerWheel(int slots, long tickMillis, long nowMillis) {
+        int length = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        // Array di un tipo generico: va creato con il tipo grezzo
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayList<Entry<T>>[] wheel = (ArrayList<Entry<T>>[]) new ArrayList[length];
+        this.slots = wheel;
+        for (int i = 0; i < length; i++)
+            this.slots[i] = new ArrayList<>();
+        this.tickMillis = tickMillis;
+        this.nextTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Inserisce un elemento nella ruota
+     *
+     * @param item           l'elemento
+     * @param deadlineMillis l'istante di scadenza in millisecondi
+     */
+    public void schedule(T item, long deadlineMillis) {
+        // Un elemento già scaduto va nel prossimo slot da esaminare
+        long tick = Math.max(deadlineMillis / this.tickMillis, this.nextTick);
+        this.slots[(int) (tick & (this.slots.length - 1))].add(new Entry<>(item, deadlineMillis));
+        this.size++;
+    }
+
+    /**
+     * Fa avanzare la ruota fino all'istante attuale, passando alla funzione gli
+     * elementi scaduti, che vengono tolti dalla ruota. Se è passato più di un
+     * giro dall'ultima chiamata ogni slot viene esaminato una volta sola.
+     *
+     * @param nowMillis l'istante attuale in millisecondi
+     * @param expired   la funzione da chiamare per ogni elemento scaduto
+     */
+    public void advance(long nowMillis, Consumer<T> expired) {
+        long currentTick = nowMillis / this.tickMillis;
+        // Non serve esaminare più di un giro di slot
+        long firstTick = Math.max(this.nextTick, currentTick - this.slots.length + 1);
+        ArrayList<T> due = new ArrayList<>();
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            ArrayList<Entry<T>> slot = this.slots[(int) (tick & (this.slots.length - 1))];
+            // Rimozione degli elementi scaduti, mantenendo quelli dei giri successivi
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Entry<T> entry = slot.get(i);
+                if (entry.deadline <= nowMillis)
+                    due.add(entry.item);
+                else
+                    slot.set(kept++, entry);
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        this.nextTick = Math.max(this.nextTick, currentTick + 1);
+        this.size -= due.size();
+        // La funzione viene chiamata dopo la scansione, perché può reinserire gli elementi
+        for (T item : due)
+            expired.accept(item);
+    }
+
+    /**
+     * @return il numero di elementi nella ruota
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return la durata di un tick in millisecondi
+     */
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+}
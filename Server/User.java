@@ -1,10 +1,13 @@
 import java.io.IOException;
 import java.io.Serial;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Implementazione di un utente in Worth. Gli utenti sono identificati 
@@ -20,8 +23,11 @@ public class User implements Serializable {
     /** La password dell'utente */
     private final String password;
 
-    /** True se l'utente è online, false se è offline */
-    private boolean online;
+    /**
+     * True se l'utente è online, false se è offline. Il server cambia lo stato
+     * con compareAndSetOnline, senza lock globali.
+     */
+    private volatile boolean online;
 
     /** 
      * Una copia della lista degli utenti reigstrati del server, aggiornata 
@@ -35,6 +41,34 @@ public class User implements Serializable {
      */
     private ArrayList<Chat> chats;
 
+    /**
+     * Identificativo numerico dell'utente, assegnato dal server alla
+     * registrazione (o al ripristino dello stato). Non viene salvato né inviato
+     * ai client.
+     */
+    private transient int id;
+
+    /**
+     * Gli identificativi dei progetti di cui l'utente è membro, in ordine di
+     * aggiunta (solo i primi projectCount elementi sono validi). Usati solo dal
+     * server, protetti dal monitor dell'utente.
+     */
+    private transient int[] projectIds;
+
+    /** Il numero di progetti di cui l'utente è membro */
+    private transient int projectCount;
+
+    /** Accesso atomico al campo online */
+    private static final VarHandle ONLINE;
+
+    static {
+        try {
+            ONLINE = MethodHandles.lookup().findVarHandle(User.class, "online", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
      * Costruttore
      * 
@@ -49,10 +83,76 @@ public class User implements Serializable {
         this.chats = new ArrayList<>();
     }
 
+    /**
+     * Costruttore utilizzato dalla codifica binaria dei messaggi (BinaryCodec),
+     * che ricostruisce l'utente con tutto il suo stato
+     * 
+     * @param nickname il nickname dell'utente
+     * @param password la password dell'utente
+     * @param online   true se l'utente è online
+     * @param users    la lista degli utenti registrati
+     * @param chats    la lista delle chat dell'utente
+     */
+    public User(String nickname, String password, boolean online, ArrayList<User> users, ArrayList<Chat> chats) {
+        this.nickname = nickname;
+        this.password = password;
+        this.online = online;
+        this.users = users;
+        this.chats = chats;
+    }
+
     public String getNickname() {
         return this.nickname;
     }
 
+    public int getId() {
+        return this.id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Aggiunge un progetto a quelli di cui l'utente è membro
+     * 
+     * @param projectId l'identificativo del progetto
+     */
+    public synchronized void addProject(int projectId) {
+        // L'array non c'è per gli utenti letti dal file di stato (Gson non
+        // inizializza i campi transient)
+        if (this.projectIds == null)
+            this.projectIds = new int[4];
+        else if (this.projectCount == this.projectIds.length)
+            this.projectIds = Arrays.copyOf(this.projectIds, this.projectCount * 2);
+        this.projectIds[this.projectCount++] = projectId;
+    }
+
+    /**
+     * Toglie un progetto da quelli di cui l'utente è membro
+     * 
+     * @param projectId l'identificativo del progetto
+     */
+    public synchronized void removeProject(int projectId) {
+        for (int i = 0; i < this.projectCount; i++) {
+            if (this.projectIds[i] == projectId) {
+                System.arraycopy(this.projectIds, i + 1, this.projectIds, i, this.projectCount - i - 1);
+                this.projectCount--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Metodo per ottenere gli identificativi dei progetti di cui l'utente è
+     * membro
+     * 
+     * @return una copia degli identificativi, in ordine di aggiunta
+     */
+    public synchronized int[] getProjectIds() {
+        return this.projectIds == null ? new int[0] : Arrays.copyOf(this.projectIds, this.projectCount);
+    }
+
     public String getPassword() {
         return this.password;
     }
@@ -103,6 +203,18 @@ public class User implements Serializable {
         this.online = online;
     }
 
+    /**
+     * Cambia atomicamente lo stato dell'utente, solo se è quello atteso. Due
+     * login concorrenti dello stesso utente non possono avere entrambe successo.
+     * 
+     * @param expected lo stato atteso
+     * @param online   il nuovo stato
+     * @return true se lo stato è stato cambiato, false se non era quello atteso
+     */
+    public boolean compareAndSetOnline(boolean expected, boolean online) {
+        return ONLINE.compareAndSet(this, expected, online);
+    }
+
 
     /**
      * Lettura di una chat di un progetto.
@@ -0,0 +1,124 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool dei worker con controllo di ammissione. La coda del pool è
+ * limitata e, prima di passare un task al pool, il reactor chiede di ammetterlo
+ * con admit(): se i task ammessi e non ancora iniziati (in coda nel pool o
+ * nell'executor seriale di una connessione) hanno raggiunto la soglia
+ * configurata, il task viene rifiutato e al client viene risposto subito
+ * SERVER_BUSY, invece di lasciar crescere le code (e la latenza di tutti i
+ * client) senza limite.
+ */
+public class WorkerPool implements Executor {
+
+    /** Il thread pool vero e proprio */
+    private final ThreadPoolExecutor executor;
+
+    /** Soglia di task in attesa oltre la quale le nuove richieste vengono rifiutate */
+    private final int highWaterMark;
+
+    /** Numero di task ammessi e non ancora iniziati */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** Numero di richieste rifiutate con SERVER_BUSY */
+    private final AtomicLong busyReplies = new AtomicLong();
+
+    /**
+     * Task rifiutati dalla coda piena del pool, in attesa che un worker li
+     * esegua al termine del task corrente. Solo le richieste dei client passano
+     * dal controllo di ammissione: i task interni (disconnessione di un utente,
+     * task successivo di un executor seriale, risposte rimandate fino alla
+     * scrittura del journal) vengono sottomessi dal reactor o dal thread del
+     * journal e non devono mai essere eseguiti da quei thread, quindi se la coda
+     * è piena finiscono qui
+     */
+    private final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<>();
+
+    /** Numero di task rifiutati dalla coda piena del pool e messi in overflow */
+    private final AtomicLong queueRejections = new AtomicLong();
+
+    /**
+     * Costruttore
+     *
+     * @param workers       il numero di thread del pool
+     * @param queueCapacity la capacità della coda del pool
+     * @param highWaterMark la soglia di task in attesa per il controllo di ammissione
+     */
+    public WorkerPool(int workers, int queueCapacity, int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), (task, pool) -> {
+                    // Coda piena: il task non viene eseguito dal thread chiamante
+                    // (potrebbe essere il reactor) ma messo in overflow
+                    this.queueRejections.incrementAndGet();
+                    this.overflow.add(task);
+                }) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable error) {
+                // La coda era piena quando i task sono finiti in overflow, quindi
+                // c'è sempre almeno un altro task in esecuzione o in coda al cui
+                // termine l'overflow viene svuotato
+                drainOverflow();
+            }
+        };
+    }
+
+    /**
+     * Esegue nel worker corrente i task in overflow, se ci sono
+     */
+    private void drainOverflow() {
+        Runnable task;
+        while ((task = this.overflow.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Controllo di ammissione di un task. Se c'è posto, restituisce il task
+     * pronto per essere passato al pool (direttamente o tramite un executor
+     * seriale), altrimenti null: in quel caso il chiamante deve rispondere
+     * SERVER_BUSY al client.
+     *
+     * @param task il task da ammettere
+     * @return il task da eseguire, oppure null se il server è sovraccarico
+     */
+    public Runnable admit(Runnable task) {
+        if (this.pending.incrementAndGet() > this.highWaterMark) {
+            this.pending.decrementAndGet();
+            this.busyReplies.incrementAndGet();
+            return null;
+        }
+        return () -> {
+            // Il task non è più in attesa
+            this.pending.decrementAndGet();
+            task.run();
+        };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        this.executor.execute(task);
+    }
+
+    /**
+     * Metodo per ottenere le statistiche del pool
+     *
+     * @return una stringa con i contatori del pool
+     */
+    public String stats() {
+        return "pending=" + this.pending.get() + " queue=" + this.executor.getQueue().size() + " highWater="
+                + this.highWaterMark + " active=" + this.executor.getActiveCount() + " completed="
+                + this.executor.getCompletedTaskCount() + " busyReplies=" + this.busyReplies.get()
+                + " queueRejections=" + this.queueRejections.get() + " overflow=" + this.overflow.size();
+    }
+}
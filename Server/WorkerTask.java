@@ -1,47 +1,83 @@
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-
-import com.google.gson.Gson;
 
 /**
  * Un oggetto WorkerTask rappresenta un task creato dal server, il cui compito 
- * è di soddisfare una richiesta del client. Al task viene passato il canale 
- * per la comunicazione con il client e un byte buffer, il quale contiene la
+ * è di soddisfare una richiesta del client. Al task viene passata la connessione 
+ * con il client e un byte buffer, il quale contiene la
  * codifica in bytes del messaggio che il client ha inviato al server. Il messaggio 
  * contiene la richiesta del client e tutte le informazioni che servono al thread 
- * per soddisfarla.
+ * per soddisfarla. La decodifica del messaggio viene fatta dal worker, all'inizio
+ * di run(), così che il reactor che ha letto il frame non debba occuparsene.
  */
 public class WorkerTask implements Runnable {
 
-    /** Il messaggio che il client ha inviato al server */
-    private final ClientServerMessage message;
+    /** Il messaggio che il client ha inviato al server (decodificato in run()) */
+    private ClientServerMessage message;
+
+    /** La connessione con il client, su cui inviare la risposta */
+    private final ClientConnection client;
 
-    /** Il canale per la comunicazione con il client */
-    private final SocketChannel client;
+    /** Il buffer del messaggio, da restituire al pool al termine del task */
+    private final ByteBuffer byteBuffer;
 
     /**
-     * Costruttore: decodifica il contenuto del byte buffer per ricavare una stringa 
-     * che corrisponde al messaggio serializzato, lo deserializza e salva il 
-     * riferimento del messaggio nella variabile d'istanza this.message. Infine
-     * salva il riferimento al canale nella variabile d'istanza this.client.
+     * L'identificativo della richiesta, da riportare nella risposta (oppure
+     * Frames.NO_REQUEST_ID se il client non lo ha specificato)
+     */
+    private final long requestId;
+
+    /**
+     * Costruttore: salva i riferimenti alla connessione con il client e al byte
+     * buffer con il messaggio ancora da decodificare.
      * 
-     * @param client     il canale per la comunicazione con il client
+     * @param client     la connessione con il client
      * @param byteBuffer il buffer contenente la codifica in bytes del messaggio 
      *                   serializzato
+     * @param requestId  l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
      */
-    public WorkerTask(SocketChannel client, ByteBuffer byteBuffer) {
-        StringBuilder stringBuilder = new StringBuilder();
-        while (byteBuffer.hasRemaining())
-            stringBuilder.append(StandardCharsets.UTF_8.decode(byteBuffer).toString());
-        Gson gson = new Gson();
-        this.message = gson.fromJson(stringBuilder.toString(), ClientServerMessage.class);
+    public WorkerTask(ClientConnection client, ByteBuffer byteBuffer, long requestId) {
         this.client = client;
+        this.byteBuffer = byteBuffer;
+        this.requestId = requestId;
     }
 
     @Override
     public void run() {
+        try {
+            try {
+                // Decodifica del messaggio: con la codifica binaria se la connessione l'ha
+                // negoziata, altrimenti JSON (direttamente dal buffer)
+                this.message = this.client.isBinaryCodec() ? BinaryCodec.decode(this.byteBuffer)
+                        : JsonCodec.decode(this.byteBuffer);
+            } catch (RuntimeException e) {
+                System.err.println("Server: messaggio non valido dal client (" + e.getMessage() + ")");
+            }
+            if (this.message == null || this.message.getComando() == null) {
+                // Messaggio non decodificabile: il client viene avvisato con un errore generico
+                ClientServerMessage replyMessage = new ClientServerMessage();
+                replyMessage.setReply(Replies.UNKNOWN_ERROR);
+                sendToClient(replyMessage);
+                return;
+            }
+            if (ServerMain.isJournalFailed()) {
+                // Il journal ha perso operazioni già applicate in memoria: nessuna richiesta
+                // viene più eseguita, nemmeno le letture, finché il server non riparte
+                ClientServerMessage replyMessage = new ClientServerMessage();
+                replyMessage.setReply(Replies.UNKNOWN_ERROR);
+                sendToClient(replyMessage);
+                return;
+            }
+            execute();
+        } finally {
+            // Il buffer del messaggio torna nel pool
+            BufferPool.shared().release(this.byteBuffer);
+        }
+    }
+
+    /**
+     * Esegue la richiesta del client e accoda il messaggio di risposta
+     */
+    private void execute() {
         /*
         Chiama un diverso metodo del server a seconda della richiesta del client. 
         I parametri che servono ai metodi sono anch'essi tutti contenuti nel messaggio.
@@ -51,69 +87,86 @@ public class WorkerTask implements Runnable {
         Ricapitolando, a seconda del case chiama un diverso metodo ottenendo così un 
         messaggio di risposta, che infine invia al client.
          */
+        if (this.message.getComando() == Commands.LOGIN) {
+            login();
+            return;
+        }
+        // Tutte le altre richieste vengono eseguite a nome dell'utente della sessione
+        // legata alla connessione: il nickname scritto dal client non viene usato
+        Session session = client.getSession();
+        if (session == null || !session.matches(this.message.getSessionId())) {
+            ClientServerMessage replyMessage = new ClientServerMessage();
+            replyMessage.setReply(Replies.NOT_LOGGED_IN);
+            sendToClient(replyMessage);
+            return;
+        }
+        String nickname = session.getNickname();
         switch (this.message.getComando()) {
-            case LOGIN -> {
-                ClientServerMessage replyMessage = ServerMain.login(this.message.getNickname(), this.message.getPassword());
-                sendToClient(replyMessage);
-            }
-
             case LOGOUT -> {
-                ClientServerMessage replyMessage = ServerMain.logout(this.message.getUser());
-                sendToClient(replyMessage);
-                try {
-                    // Chiusura del canale
-                    client.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                // Dopo la logout la chiusura della connessione non deve disconnettere l'utente
+                client.unbindSession();
+                ClientServerMessage replyMessage = ServerMain.logout(nickname);
+                // Il canale viene chiuso dopo l'invio della risposta
+                client.sendAndClose(encode(client, replyMessage, this.requestId));
             }
 
             case LIST_PROJECTS -> {
-                ClientServerMessage replyMessage = ServerMain.listProjects(this.message.getNickname());
+                ClientServerMessage replyMessage = ServerMain.listProjects(nickname);
                 sendToClient(replyMessage);
             }
 
             case CREATE_PROJECT -> {
-                ClientServerMessage replyMessage = ServerMain.createProject(this.message.getNickname(),
+                ClientServerMessage replyMessage = ServerMain.createProject(nickname,
                         this.message.getProjectName());
                 sendToClient(replyMessage);
             }
 
             case ADD_MEMBER -> {
-                ClientServerMessage replyMessage = ServerMain.addMember(this.message.getNickname(), this.message.getProjectName(),
+                ClientServerMessage replyMessage = ServerMain.addMember(nickname, this.message.getProjectName(),
                         this.message.getNewMember());
                 sendToClient(replyMessage);
             }
 
             case SHOW_MEMBERS -> {
-                ClientServerMessage replyMessage = ServerMain.showMembers(this.message.getNickname(), this.message.getProjectName());
+                ClientServerMessage replyMessage = ServerMain.showMembers(nickname, this.message.getProjectName());
                 sendToClient(replyMessage);
             }
 
             case SHOW_CARDS -> {
-                ClientServerMessage replyMessage = ServerMain.showCards(this.message.getNickname(), this.message.getProjectName());
+                ClientServerMessage replyMessage = ServerMain.showCards(nickname, this.message.getProjectName());
                 sendToClient(replyMessage);
             }
 
             case SHOW_CARD -> {
-                ClientServerMessage replyMessage = ServerMain.showCard(this.message.getNickname(), this.message.getProjectName(), this.message.getCardName());
+                ClientServerMessage replyMessage = ServerMain.showCard(nickname, this.message.getProjectName(), this.message.getCardName());
+                sendToClient(replyMessage);
+            }
+
+            case SHOW_SUMMARY -> {
+                ClientServerMessage replyMessage = ServerMain.showSummary(nickname, this.message.getProjectName());
                 sendToClient(replyMessage);
             }
 
             case ADD_CARD -> {
-                ClientServerMessage replyMessage = ServerMain.addCard(this.message.getNickname(), this.message.getProjectName(),
+                ClientServerMessage replyMessage = ServerMain.addCard(nickname, this.message.getProjectName(),
                         this.message.getCardName(), this.message.getDescrizione());
                 sendToClient(replyMessage);
             }
 
             case MOVE_CARD -> {
-                ClientServerMessage replyMessage = ServerMain.moveCard(this.message.getNickname(), this.message.getProjectName(),
+                ClientServerMessage replyMessage = ServerMain.moveCard(nickname, this.message.getProjectName(),
                         this.message.getCardName(), this.message.getListaPartenza(), this.message.getListaDestinazione());
                 sendToClient(replyMessage);
             }
 
             case CANCEL_PROJECT -> {
-                ClientServerMessage replyMessage = ServerMain.cancelProject(this.message.getNickname(), this.message.getProjectName());
+                ClientServerMessage replyMessage = ServerMain.cancelProject(nickname, this.message.getProjectName());
+                sendToClient(replyMessage);
+            }
+
+            case BATCH -> {
+                ClientServerMessage replyMessage = ServerMain.batch(nickname, this.message.getBatch(),
+                        this.message.isAllOrNothing());
                 sendToClient(replyMessage);
             }
 
@@ -122,36 +175,121 @@ public class WorkerTask implements Runnable {
     }
 
     /**
-     * Metodo per l'invio del messaggio di risposta al client. I messaggi sono 
-     * oggetti di tipo ClientServerMessage che contengono tutte le informazioni 
-     * che servono al client. Il messaggio viene serializzato, e vengono inviati al
-     * client i bytes contenuti in due byte buffers: uno contenente i byte della 
-     * stringa ottenuta con la serializzazione del messaggio, l'altro contenente il 
-     * numero di bytes del precedente (il quale servirà al client per allocare un
-     * byte buffer grande abbastanza per leggere tutto il messaggio).
+     * Esegue la richiesta di login. Se ha successo, crea la sessione dell'utente,
+     * la lega alla connessione e ne comunica l'identificativo al client. Su una
+     * connessione con una sessione non si può fare un'altra login.
+     */
+    private void login() {
+        String nickname = this.message.getNickname();
+        if (client.getSession() != null) {
+            ClientServerMessage replyMessage = new ClientServerMessage();
+            replyMessage.setReply(Replies.ALREADY_ONLINE);
+            sendToClient(replyMessage);
+            return;
+        }
+        ClientServerMessage replyMessage = ServerMain.login(nickname, this.message.getPassword());
+        if (replyMessage.getReply() == Replies.OK) {
+            Session session = new Session(nickname);
+            // La sessione viene legata alla connessione, per disconnettere l'utente se si
+            // chiude senza logout; se si è già chiusa lo si disconnette subito
+            if (client.bindSession(session))
+                replyMessage.setSessionId(session.getId());
+            else
+                ServerMain.disconnect(nickname);
+        }
+        sendToClient(replyMessage);
+    }
+
+    /**
+     * Risponde SERVER_BUSY a una richiesta che non è stata ammessa nel thread
+     * pool perché il server è sovraccarico. Viene chiamato dal reactor, senza
+     * decodificare la richiesta.
+     *
+     * @param client    la connessione con il client
+     * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+     */
+    public static void replyBusy(ClientConnection client, long requestId) {
+        ClientServerMessage replyMessage = new ClientServerMessage();
+        replyMessage.setReply(Replies.SERVER_BUSY);
+        client.send(encode(client, replyMessage, requestId));
+    }
+
+    /**
+     * Metodo per l'invio del messaggio di risposta al client. Il messaggio viene
+     * codificato e accodato sulla connessione: sarà il reactor a inviarlo quando
+     * il canale è pronto, quindi il worker non resta mai bloccato su un client
+     * lento.
+     * Se la richiesta ha aggiunto record al journal che non sono ancora sul disco
+     * (journal-sync=group), la risposta viene inviata dal flusher del journal
+     * dopo la fsync, e le richieste successive della stessa connessione partono
+     * solo allora; con una connessione bloccante il thread aspetta la fsync. Se
+     * la scrittura dei record fallisce il client riceve UNKNOWN_ERROR al posto
+     * della risposta.
      * 
      * @param message il messaggio di risposta per il client
      */
     private void sendToClient(ClientServerMessage message) {
-        Gson gson = new Gson();
-        // Serializzazione del messaggio
-        String str = gson.toJson(message);
-        // Codifica della stringa in un array di byte
-        byte[] byteArray = str.getBytes(StandardCharsets.UTF_8);
-        // Allocazione del byte buffer utilizzato per inviare il numero di bytes del messaggio serializzato
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(Integer.BYTES);
-        // Inizializzazione con la lunghezza dell'array di byte
-        sizeBuffer.putInt(byteArray.length);
-        // Preparazione del buffer alla scrittura dopo la lettura
-        sizeBuffer.flip();
-        // Creazione del buffer contenente i bytes del messaggio serializzato
-        ByteBuffer dataBuffer = ByteBuffer.wrap(byteArray);
-        // Finché i bytes di entrambi i buffer non sono stati inviati continua
-        while (sizeBuffer.hasRemaining() && dataBuffer.hasRemaining())
-            try {
-                client.write(new ByteBuffer[]{sizeBuffer, dataBuffer});
-            } catch (IOException e) {
-                e.printStackTrace();
+        ByteBuffer frame = encode(client, message, this.requestId);
+        long lsn = ServerMain.takeJournalLsn();
+        if (lsn > 0 && !ServerMain.isJournalDurable(lsn)) {
+            if (client instanceof BlockingConnection) {
+                if (!ServerMain.awaitJournal(lsn)) {
+                    BufferPool.shared().release(frame);
+                    client.send(journalFailure(client, this.requestId));
+                    return;
+                }
+            } else {
+                // Il worker torna subito al pool
+                Runnable resume = SerialExecutor.defer();
+                ServerMain.whenJournalDurable(lsn, () -> {
+                    client.send(frame);
+                    if (resume != null)
+                        resume.run();
+                }, () -> {
+                    BufferPool.shared().release(frame);
+                    client.send(journalFailure(client, this.requestId));
+                    if (resume != null)
+                        resume.run();
+                });
+                return;
             }
         }
-}
\ No newline at end of file
+        client.send(frame);
+    }
+
+    /**
+     * Metodo ausiliario che codifica la risposta a una richiesta i cui record
+     * del journal non sono stati scritti: l'operazione non viene confermata.
+     *
+     * @param client    la connessione su cui verrà inviato il messaggio
+     * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+     * @return il buffer contenente il messaggio codificato
+     */
+    private static ByteBuffer journalFailure(ClientConnection client, long requestId) {
+        ClientServerMessage replyMessage = new ClientServerMessage();
+        replyMessage.setReply(Replies.UNKNOWN_ERROR);
+        return encode(client, replyMessage, requestId);
+    }
+
+    /**
+     * Metodo per la codifica del messaggio di risposta. I messaggi sono oggetti di
+     * tipo ClientServerMessage che contengono tutte le informazioni che servono al
+     * client. Il messaggio viene serializzato in JSON, oppure con la codifica
+     * binaria se la connessione l'ha negoziata, e il buffer restituito contiene
+     * l'intestazione del frame (il numero di bytes del messaggio serializzato e
+     * l'eventuale identificativo della richiesta) seguita dai bytes stessi.
+     * 
+     * @param client    la connessione su cui verrà inviato il messaggio
+     * @param message   il messaggio di risposta per il client
+     * @param requestId l'identificativo della richiesta, oppure Frames.NO_REQUEST_ID
+     * @return il buffer contenente il messaggio codificato, pronto per la lettura
+     */
+    private static ByteBuffer encode(ClientConnection client, ClientServerMessage message, long requestId) {
+        // Creazione del frame (in un buffer preso dal pool, che tornerà nel pool quando
+        // la connessione avrà finito di inviarlo)
+        if (client.isBinaryCodec())
+            return Frames.frame(BinaryCodec.encode(message), requestId);
+        // Serializzazione del messaggio in JSON direttamente nel buffer del frame
+        return JsonCodec.encodeFrame(message, requestId);
+    }
+}
@@ -14,10 +14,13 @@ public class WorthImpl extends RemoteServer implements WorthInterface {
         // Creazione dell'utente
         User user = new User(nickname, password);
         // Controlla se è già registrato, e se non lo è lo aggiunge
-        boolean wasAlreadyRegistered = ServerMain.putIfAbsent(user);
-        // Se l'utente era già registrato
-        if (wasAlreadyRegistered)
-            return Replies.ALREADY_REGISTERED;
+        Replies reply = ServerMain.putIfAbsent(user);
+        // Se l'utente era già registrato, o se la registrazione non è stata scritta nel journal
+        if (reply != Replies.OK)
+            return reply;
+        // La registrazione deve essere sul disco prima della risposta (journal-sync=group)
+        if (!ServerMain.awaitJournal(ServerMain.takeJournalLsn()))
+            return Replies.UNKNOWN_ERROR;
         // Altrimenti aggiorna le copie delle liste degli utenti registrati agli User
         ServerMain.updateAllUsersLists();
         // Ok
@@ -37,6 +40,13 @@ public class WorthImpl extends RemoteServer implements WorthInterface {
         }
     }
 
+    @Override
+    public void registerForCallback(String nickname, NotifyEventInterface clientStub) throws RemoteException {
+        // Associazione dello stub all'utente, per poterlo cancellare se la connessione si chiude
+        ServerMain.bindStub(nickname, clientStub);
+        registerForCallback(clientStub);
+    }
+
     @Override
     public void unregisterForCallback(NotifyEventInterface clientStub) throws RemoteException {
         // Cancella la registrazione al servizio di callback
@@ -31,6 +31,17 @@ public interface WorthInterface extends Remote {
      */
     void registerForCallback(NotifyEventInterface clientStub) throws RemoteException;
 
+    /**
+     * Come registerForCallback(clientStub), ma associa lo stub all'utente che ha
+     * fatto la login: se la connessione del client si chiude senza una logout,
+     * il server cancella lo stub dal servizio di callback.
+     * 
+     * @param nickname   il nickname dell'utente che ha fatto la login
+     * @param clientStub lo stub dell'oggetto remoto del client
+     * @throws RemoteException metodo remoto
+     */
+    void registerForCallback(String nickname, NotifyEventInterface clientStub) throws RemoteException;
+
     /**
      * Metodo remoto chiamato da un client per cancellarsi dal servizio di callback 
      * dopo una logout: cancella la registrazione e invia a tutti gli utenti online 